@@ -3,6 +3,17 @@ package com.focusit.agent;
 import java.io.*;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 
 /**
@@ -10,20 +21,124 @@ import java.lang.instrument.Instrumentation;
  * Useful to find out permgen/metaspace issues.
  * It writes to file every loaded class fqn and Also log contains thread name and stack where class was loaded.
  * Besides it dumps content of class being loaded at the moment.
+ *
+ * Class loading threads only queue what was loaded, a background writer does the rest:
+ * - dumped.classes.zip keeps every distinct class file once, named by the SHA-1 of its bytes
+ * - class-index.tsv has a line per loaded class: time, loader, class, SHA-1 and stack id
+ * - class-stacks.log has every distinct loading stack once, under its id
+ * - class-loading-stat.log gets a report of load rates per loader class and per generated name pattern
+ * When the queue is full classes are dropped and counted rather than making class loading wait for the disk.
+ *
+ * The agent argument is an optional comma separated list of more generated name patterns.
  */
 public class ClassDumper implements ClassFileTransformer {
 
-    private BufferedOutputStream logStream = new BufferedOutputStream(new FileOutputStream("class-loading-stat.log"));
-    private PrintWriter logger = new PrintWriter(logStream);
+    private static final String LOG_FILE = "class-loading-stat.log";
+    private static final String ARCHIVE_FILE = "dumped.classes.zip";
+    private static final String INDEX_FILE = "class-index.tsv";
+    private static final String STACKS_FILE = "class-stacks.log";
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
-    public ClassDumper() throws FileNotFoundException {
+    // parts of names bytecode generators give their classes
+    private static final String[] GENERATED_PATTERNS = {
+            "$$EnhancerBySpringCGLIB$$", "$$FastClassBySpringCGLIB$$", "$$EnhancerByCGLIB$$", "$$FastClassByCGLIB$$",
+            "_$$_javassist", "_$$_jvst", "$$ByteBuddy", "$ByteBuddy$", "$$Lambda$", "$Proxy",
+            "GeneratedMethodAccessor", "GeneratedConstructorAccessor", "GeneratedSerializationConstructorAccessor"
+    };
+
+    /**
+     * What transform captured about one loaded class
+     */
+    private static final class LoadedClass {
+        final String className;
+        final String loaderClass;
+        final String loaderName;
+        final long timestamp;
+        final byte[] bytes;
+        // frames are resolved by the writer, filling the backtrace in is all the loading thread pays for
+        final Throwable stack;
+
+        LoadedClass(String className, String loaderClass, String loaderName, long timestamp, byte[] bytes, Throwable stack) {
+            this.className = className;
+            this.loaderClass = loaderClass;
+            this.loaderName = loaderName;
+            this.timestamp = timestamp;
+            this.bytes = bytes;
+            this.stack = stack;
+        }
+    }
+
+    /**
+     * Classes loaded under one key of the report
+     */
+    private static final class LoadCounter {
+        long total;
+        long sinceReport;
+        // distinct loader instances, only kept per loader class
+        final Set<String> loaders = new HashSet<>();
+    }
+
+    private final BlockingQueue<LoadedClass> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private final List<String> patterns = new ArrayList<>(Arrays.asList(GENERATED_PATTERNS));
+
+    private final Writer logger = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(LOG_FILE)), 64 * 1024);
+    private final Writer index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(INDEX_FILE)), 64 * 1024);
+    private final Writer stacks = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(STACKS_FILE)), 64 * 1024);
+    private final ZipOutputStream archive = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(ARCHIVE_FILE), 64 * 1024));
+    private volatile boolean stopped = false;
+
+    // state below is only touched by the writer, or by shutdown after it
+    private final MessageDigest digest;
+    private final Set<String> storedHashes = new HashSet<>();
+    private final Map<String, Integer> stackIds = new HashMap<>();
+    private final Map<String, LoadCounter> byLoader = new TreeMap<>();
+    private final Map<String, LoadCounter> byPattern = new TreeMap<>();
+    private long loadedClasses = 0;
+    private long storedBytes = 0;
+    private long duplicateBytes = 0;
+    private long lastReport = System.currentTimeMillis();
+
+    public ClassDumper(String agentArgument) throws FileNotFoundException {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (agentArgument != null) {
+            for (String pattern : agentArgument.split(",")) {
+                if (pattern.trim().length() > 0) {
+                    patterns.add(pattern.trim());
+                }
+            }
+        }
+        archive.setLevel(Deflater.BEST_SPEED);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ClassDumper writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, "ClassDumper shutdown"));
     }
 
     /**
      * add agent
      */
     public static void premain(final String agentArgument, final Instrumentation instrumentation) throws FileNotFoundException {
-        instrumentation.addTransformer(new ClassDumper());
+        instrumentation.addTransformer(new ClassDumper(agentArgument));
     }
 
     /**
@@ -32,40 +147,179 @@ public class ClassDumper implements ClassFileTransformer {
     public byte[] transform(final ClassLoader loader, final String className, final Class clazz,
                             final java.security.ProtectionDomain domain, final byte[] bytes) {
 
-        String loaderName = loader == null ? "system" : loader.toString();
-        String clsName = className.replace("/", ".");
-        logger.println("Load Class: " + clsName + " Thread: " + Thread.currentThread().getName() + " classloader: " + loaderName);
-        getCurrentThreadStackTrace(logger);
-        logger.println();
-        logger.flush();
+        if (className == null || bytes == null) {
+            return null;
+        }
+
+        // loader.toString() may be overridden and costly, class and identity hash tell loaders apart as well
+        String loaderClass = loader == null ? "system" : loader.getClass().getName();
+        String loaderName = loader == null ? "system" : loaderClass + "@" + Integer.toHexString(System.identityHashCode(loader));
+        LoadedClass loaded = new LoadedClass(className.replace("/", "."), loaderClass, loaderName, System.currentTimeMillis(), bytes, new Throwable());
+        if (!queue.offer(loaded)) {
+            dropped.incrementAndGet();
+        }
+
+        // the class is not changed
+        return null;
+    }
 
-        String dumpBaseDir = "dumped.classes" + File.separator + loaderName;
-        File dir = new File(dumpBaseDir);
-        if (!dir.exists()) {
-            dir.mkdirs();
+    private void writeLoop() {
+        List<LoadedClass> batch = new ArrayList<>(BATCH_SIZE);
+        while (!stopped || !queue.isEmpty()) {
+            try {
+                LoadedClass first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    writeBatch(batch);
+                }
+                if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL_MILLIS) {
+                    writeReport();
+                }
+            } catch (InterruptedException e) {
+                stopped = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
         }
+    }
 
-        File cls = new File(dumpBaseDir + File.separator + clsName);
-        if (cls.exists()) {
-            cls.delete();
+    private synchronized void writeBatch(List<LoadedClass> batch) throws IOException {
+        for (LoadedClass loaded : batch) {
+            String hash = store(loaded.bytes);
+            int stackId = internStack(loaded.stack);
+            index.write(loaded.timestamp + "\t" + loaded.loaderName + "\t" + loaded.className + "\t" + hash + "\t" + stackId + "\n");
+            count(loaded);
         }
+        index.flush();
+        stacks.flush();
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(cls)) {
-            fos.write(bytes);
-            fos.flush();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Adds the class file to the archive unless the same bytes are there already
+     */
+    private String store(byte[] bytes) throws IOException {
+        String hash = toHex(digest.digest(bytes));
+        if (storedHashes.add(hash)) {
+            archive.putNextEntry(new ZipEntry(hash + ".class"));
+            archive.write(bytes);
+            archive.closeEntry();
+            storedBytes += bytes.length;
+        } else {
+            duplicateBytes += bytes.length;
         }
-        return bytes;
+        return hash;
     }
 
-    private void getCurrentThreadStackTrace(PrintWriter s) {
-        StackTraceElement[] trace = Thread.currentThread().getStackTrace();
+    private int internStack(Throwable stack) throws IOException {
+        StackTraceElement[] trace = stack.getStackTrace();
+        StringBuilder frames = new StringBuilder();
+        // the first frame is transform itself
+        for (int i = 1; i < trace.length; i++) {
+            frames.append("\tat ").append(trace[i]).append('\n');
+        }
+
+        String key = frames.toString();
+        Integer id = stackIds.get(key);
+        if (id == null) {
+            id = stackIds.size() + 1;
+            stackIds.put(key, id);
+            stacks.write("Stack " + id + ":\n" + key + "\n");
+        }
+        return id;
+    }
+
+    private void count(LoadedClass loaded) {
+        loadedClasses++;
+
+        LoadCounter loader = getCounter(byLoader, loaded.loaderClass);
+        loader.total++;
+        loader.sinceReport++;
+        loader.loaders.add(loaded.loaderName);
+
+        for (String pattern : patterns) {
+            if (loaded.className.contains(pattern)) {
+                LoadCounter counter = getCounter(byPattern, pattern);
+                counter.total++;
+                counter.sinceReport++;
+                break;
+            }
+        }
+    }
+
+    private static LoadCounter getCounter(Map<String, LoadCounter> counters, String key) {
+        LoadCounter counter = counters.get(key);
+        if (counter == null) {
+            counter = new LoadCounter();
+            counters.put(key, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Appends classes loaded since the previous report per loader class and per pattern, with rates and totals
+     */
+    private synchronized void writeReport() throws IOException {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastReport) / 1000.0;
+        lastReport = now;
+
+        logger.write("Report at " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(now)) + ": " + loadedClasses + " classes loaded, "
+                + storedHashes.size() + " distinct class files, " + storedBytes + " bytes stored, " + duplicateBytes + " duplicate bytes skipped\n");
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            logger.write("Dropped " + lost + " classes, the writer queue was full\n");
+        }
+        writeCounters("loader", byLoader, seconds);
+        writeCounters("pattern", byPattern, seconds);
+        logger.write("\n");
+        logger.flush();
+    }
+
+    private void writeCounters(String kind, Map<String, LoadCounter> counters, double seconds) throws IOException {
+        for (Map.Entry<String, LoadCounter> entry : counters.entrySet()) {
+            LoadCounter counter = entry.getValue();
+            if (counter.sinceReport == 0) {
+                continue;
+            }
+            String instances = counter.loaders.isEmpty() ? "" : ", " + counter.loaders.size() + " loader instances";
+            logger.write(String.format("\t%s %s: +%d classes, %.1f/s, %d total%s\n", kind, entry.getKey(), counter.sinceReport,
+                    counter.sinceReport / seconds, counter.total, instances));
+            counter.sinceReport = 0;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    private void shutdown() {
+        stopped = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        for (StackTraceElement traceElement : trace) {
-            s.println("\tat " + traceElement);
+        synchronized (this) {
+            try {
+                writeReport();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (Closeable file : new Closeable[]{archive, index, stacks, logger}) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 }
@@ -1,6 +1,6 @@
 cd java
 rm -f -r classes
 mkdir -p classes
-javac -d classes Agent.java
-(cd classes; jar -cf ../../agent.jar Agent.class)
+javac -d classes Agent.java SnapshotReader.java
+(cd classes; jar -cf ../../agent.jar *.class)
 cd ..
\ No newline at end of file
@@ -1,3 +1,4 @@
+import java.lang.ref.WeakReference;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class Agent {
@@ -7,12 +8,127 @@ public class Agent {
 
     private static int ready = 0;
     private static int memory = 0;
-    
+    // events per thread buffer, set by the agent when batching is on
+    private static int batch = 0;
+    private static long batchFlushNanos = 0;
+    // set by tracing.profiler=java: calls are only counted, in Java, and never reach native code
+    private static int counting = 0;
+
+    // bits of active probes, a long[] per cnum indexed by mnum; classes without a row follow probesOff
+    private static long[][] probes = new long[0][];
+    private static int probesOff = 0;
+
+    // [0] - next free slot, then pairs of (cnum<<32 | mnum<<1 | exit, nanoTime)
+    private static final ThreadLocal<long[]> events = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            long[] buffer = new long[batch * 2 + 1];
+            buffer[0] = 1;
+            return buffer;
+        }
+    };
+
+    /**
+     * Call counters of one thread: methods[cnum][mnum * 2] calls and
+     * methods[cnum][mnum * 2 + 1] returns. Only the owner thread writes them,
+     * the agent reads them through JNI when it exports data.
+     * Nothing here may call an instrumented method: it would come back to
+     * count() before the tables are in place. Hence no Math.max and no
+     * Thread.getId(), the agent asks the thread for its id itself.
+     * The thread is held weakly: an ended thread and its tables go away once
+     * the agent has folded them in.
+     */
+    private static final class Counters {
+        final WeakReference<Thread> thread;
+        // Thread.getId(), filled in by the agent when it first reads the tables
+        long id = -1;
+        long[][] methods = new long[0][];
+
+        Counters(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+
+        long[] grow(int cnum, int mnum) {
+            long[][] current = methods;
+            if (cnum >= current.length) {
+                int length = current.length * 2 > cnum ? current.length * 2 : cnum + 1;
+                long[][] wider = new long[length][];
+                System.arraycopy(current, 0, wider, 0, current.length);
+                current = wider;
+            }
+            long[] counts = current[cnum];
+            if (counts == null || mnum * 2 + 1 >= counts.length) {
+                int length = counts == null ? 16 : counts.length * 2;
+                if (length < mnum * 2 + 2) {
+                    length = mnum * 2 + 2;
+                }
+                long[] longer = new long[length];
+                if (counts != null) {
+                    System.arraycopy(counts, 0, longer, 0, counts.length);
+                }
+                current[cnum] = longer;
+                counts = longer;
+            }
+            methods = current;
+            return counts;
+        }
+    }
+
+    // counters[0..registered) of threads, grown by doubling under the lock of Agent.class;
+    // the agent holds it while it reads them and drops the ones of ended threads
+    private static Counters[] counters = new Counters[16];
+    private static int registered = 0;
+
+    private static final ThreadLocal<Counters> threadCounters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            Counters result = new Counters(Thread.currentThread());
+            synchronized (Agent.class) {
+                if (registered == counters.length) {
+                    Counters[] wider = new Counters[counters.length * 2];
+                    System.arraycopy(counters, 0, wider, 0, registered);
+                    counters = wider;
+                }
+                counters[registered++] = result;
+            }
+            return result;
+        }
+    };
+
+    private static void count(int cnum, int mnum, int exit)
+    {
+        Counters owner = threadCounters.get();
+        long[][] classes = owner.methods;
+        long[] counts;
+        if (cnum >= classes.length || (counts = classes[cnum]) == null || mnum * 2 + 1 >= counts.length) {
+            counts = owner.grow(cnum, mnum);
+        }
+        counts[mnum * 2 + exit]++;
+    }
+
+    private static boolean isProbeActive(int cnum, int mnum)
+    {
+        long[][] all = probes;
+        if (cnum < all.length) {
+            long[] row = all[cnum];
+            if (row != null) {
+                return (row[mnum >>> 6] & (1L << mnum)) != 0;
+            }
+        }
+        return probesOff == 0;
+    }
+
     private static native void native_entry(int cnum, int mnum);
     public static void agent_entry(int cnum, int mnum)
     {
-        if ( ready != 0 ) {
-            native_entry(cnum, mnum);
+        if ( ready != 0 && isProbeActive(cnum, mnum) ) {
+            if ( counting != 0 ) {
+                count(cnum, mnum, 0);
+            } else if ( batch != 0 ) {
+                record(cnum, mnum, 0);
+            } else {
+                native_entry(cnum, mnum);
+            }
         }
     }
 
@@ -20,15 +136,63 @@ public class Agent {
     private static native void native_exit(int cnum, int mnum);
     public static void agent_exit(int cnum, int mnum)
     {
-        if ( ready != 0 ) {
-            native_exit(cnum, mnum);
+        if ( ready != 0 && isProbeActive(cnum, mnum) ) {
+            if ( counting != 0 ) {
+                count(cnum, mnum, 1);
+            } else if ( batch != 0 ) {
+                record(cnum, mnum, 1);
+            } else {
+                native_exit(cnum, mnum);
+            }
+        }
+    }
+
+    private static void record(int cnum, int mnum, long exit)
+    {
+        long[] buffer = events.get();
+        int position = (int) buffer[0];
+        long now = System.nanoTime();
+
+        buffer[position] = ((long) cnum << 32) | ((long) mnum << 1) | exit;
+        buffer[position + 1] = now;
+        position += 2;
+
+        // full, or the oldest event waited long enough
+        if (position == buffer.length || now - buffer[2] >= batchFlushNanos) {
+            native_flush(buffer, position);
+            position = 1;
+        }
+        buffer[0] = position;
+    }
+
+    private static native void native_flush(long[] events, int length);
+    /** Hands the current thread's buffered events over, e.g. before taking a snapshot */
+    public static void agent_flush()
+    {
+        if ( ready != 0 && batch != 0 ) {
+            long[] buffer = events.get();
+            native_flush(buffer, (int) buffer[0]);
+            buffer[0] = 1;
         }
     }
     
+    // one in allocationInterval allocations is passed to native code, threads share the countdown racily
+    private static int allocationInterval = 1;
+    private static int allocationCountdown = 1;
+
+    private static boolean isAllocationSampled()
+    {
+        if (--allocationCountdown > 0) {
+            return false;
+        }
+        allocationCountdown = allocationInterval;
+        return true;
+    }
+
     private static native void native_newobj(Object o);
     public static void agent_newobj(Object o)
     {
-        if ( ready != 0 && memory != 0) {
+        if ( ready != 0 && memory != 0 && isAllocationSampled() ) {
             native_newobj(o);
         }
     }
@@ -36,7 +200,7 @@ public class Agent {
     private static native void native_newarr(Object a);
     public static void agent_newarr(Object a)
     {
-        if ( ready != 0 && memory != 0) {
+        if ( ready != 0 && memory != 0 && isAllocationSampled() ) {
             native_newarr(a);
         }
     }
@@ -61,6 +225,23 @@ public class Agent {
       return native_csv();
     }
 
+    private static native boolean native_snapshot(String path);
+    public static boolean agent_snapshot(String path){
+      return native_snapshot(path);
+    }
+
+    // comma separated prefixes like agent.include and friends, changed classes are retransformed
+    private static native boolean native_rules(String include, String includeIgnore, String exclude, String excludeIgnore);
+    public static boolean agent_rules(String include, String includeIgnore, String exclude, String excludeIgnore){
+      return native_rules(include, includeIgnore, exclude, excludeIgnore);
+    }
+
+    // switches probes of a package, class or method on or off without retransforming, returns methods changed
+    private static native int native_probes(String pattern, boolean enabled);
+    public static int agent_probes(String pattern, boolean enabled){
+      return native_probes(pattern, enabled);
+    }
+
     public static void setStartMark(long val) {
         start = new AtomicLong(val);
     }
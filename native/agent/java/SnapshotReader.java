@@ -0,0 +1,341 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a binary snapshot written by the agent (see snapshotwriter.h)
+ * to CSV or to collapsed stacks for flame graph tools. Given a directory it
+ * sums every *.snapshot file in it, which turns a series of periodic delta
+ * snapshots back into totals for the time they cover. Nodes with latency
+ * histograms get p50, p90, p99, p999 and max columns in the CSV.
+ *
+ * java -cp agent.jar SnapshotReader file.snapshot|dir [csv|collapsed] [field]
+ */
+public class SnapshotReader {
+
+    private static final int RECORD_END = 0;
+    private static final int RECORD_SCHEMA = 1;
+    private static final int RECORD_METHOD = 2;
+    private static final int RECORD_NODE = 3;
+    private static final int RECORD_INFO = 4;
+    private static final int RECORD_HISTOGRAM = 5;
+    // latencyhistogram.h: values from 2^40 on share the last bucket
+    private static final int HISTOGRAM_VALUE_BITS = 40;
+
+    static class Node {
+        long threadId;
+        long nodeId;
+        long parentId;
+        long methodId;
+        long[] fields;
+        long childrenTotal;
+        Histogram histogram;
+    }
+
+    /**
+     * Latencies of a node in the log-linear buckets of latencyhistogram.h
+     */
+    static class Histogram {
+        final int precision;
+        final long max;
+        final long[] counts;
+
+        Histogram(int precision, long max, long[] counts) {
+            this.precision = precision;
+            this.max = max;
+            this.counts = counts;
+        }
+
+        long getTotalCount() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        long getHighestValue(int bucket) {
+            int subBuckets = 1 << precision;
+            if (bucket < subBuckets) {
+                return bucket;
+            }
+            int shift = bucket / subBuckets - 1;
+            long low = ((long) (bucket % subBuckets + subBuckets)) << shift;
+            return low + (1L << shift) - 1;
+        }
+
+        long getValueAtPercentile(double percentile) {
+            long total = getTotalCount();
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(getHighestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    private final List<String> schema = new ArrayList<String>();
+    private final Map<Long, String> methods = new HashMap<Long, String>();
+    // nodes by thread and node id, node ids are unique within a thread only
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private boolean histograms = false;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SnapshotReader <snapshot or dir> [csv|collapsed] [field]");
+            System.exit(1);
+        }
+
+        SnapshotReader reader = new SnapshotReader();
+        File source = new File(args[0]);
+        if (source.isDirectory()) {
+            File[] files = source.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(".snapshot")) {
+                    reader.read(file.getPath());
+                }
+            }
+        } else {
+            reader.read(source.getPath());
+        }
+
+        String format = args.length > 1 ? args[1] : "csv";
+        if ("collapsed".equals(format)) {
+            String field = args.length > 2 ? args[2] : null;
+            reader.printCollapsed(System.out, field);
+        } else {
+            reader.printCsv(System.out);
+        }
+    }
+
+    public void read(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+        try {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!"BOND".equals(new String(magic, "US-ASCII"))) {
+                throw new IOException("Not a snapshot: " + path);
+            }
+            long version = readVarint(in);
+            if (version != 1 && version != 2) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+
+            while (true) {
+                int tag = (int) readVarint(in);
+                if (tag == RECORD_END) {
+                    break;
+                }
+                switch (tag) {
+                    case RECORD_SCHEMA:
+                        schema.clear();
+                        long count = readVarint(in);
+                        for (long i = 0; i < count; i++) {
+                            schema.add(readString(in));
+                        }
+                        break;
+                    case RECORD_METHOD:
+                        long methodId = readVarint(in);
+                        methods.put(methodId, readString(in));
+                        break;
+                    case RECORD_NODE:
+                        readNode(in);
+                        break;
+                    case RECORD_HISTOGRAM:
+                        readHistogram(in);
+                        break;
+                    case RECORD_INFO:
+                        // delta flag, timestamp and sequence: deltas are summed like full snapshots
+                        readVarint(in);
+                        readVarint(in);
+                        readVarint(in);
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + tag);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot: " + path, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readNode(DataInputStream in) throws IOException {
+        Node node = new Node();
+        node.threadId = readVarint(in);
+        node.nodeId = readVarint(in);
+        node.parentId = readVarint(in);
+        node.methodId = readVarint(in);
+        node.fields = new long[(int) readVarint(in)];
+        for (int i = 0; i < node.fields.length; i++) {
+            node.fields[i] = readVarint(in);
+        }
+
+        String key = key(node.threadId, node.nodeId);
+        Node known = nodes.get(key);
+        if (known == null) {
+            nodes.put(key, node);
+            return;
+        }
+        for (int i = 0; i < known.fields.length && i < node.fields.length; i++) {
+            known.fields[i] += node.fields[i];
+        }
+    }
+
+    /**
+     * A histogram holds all latencies of the node so far, it replaces the one of a previous snapshot
+     */
+    private void readHistogram(DataInputStream in) throws IOException {
+        long threadId = readVarint(in);
+        long nodeId = readVarint(in);
+        int precision = (int) readVarint(in);
+        long max = readVarint(in);
+        long[] counts = new long[(HISTOGRAM_VALUE_BITS - precision + 1) << precision];
+        long pairs = readVarint(in);
+        int bucket = 0;
+        for (long i = 0; i < pairs; i++) {
+            bucket += (int) readVarint(in);
+            counts[bucket] = readVarint(in);
+        }
+
+        Node node = nodes.get(key(threadId, nodeId));
+        if (node != null) {
+            node.histogram = new Histogram(precision, max, counts);
+            histograms = true;
+        }
+    }
+
+    private static String key(long threadId, long nodeId) {
+        return threadId + ":" + nodeId;
+    }
+
+    private Node getParent(Node node) {
+        return node.parentId == 0 ? null : nodes.get(key(node.threadId, node.parentId));
+    }
+
+    public void printCsv(PrintStream out) {
+        StringBuilder header = new StringBuilder("threadId;nodeId;parentId;methodId;methodName");
+        for (String field : schema) {
+            header.append(';').append(field);
+        }
+        if (histograms) {
+            header.append(";p50;p90;p99;p999;max");
+        }
+        out.print(header.append("\r\n"));
+
+        for (Node node : nodes.values()) {
+            StringBuilder line = new StringBuilder();
+            line.append('"').append(node.threadId).append("\";");
+            line.append('"').append(node.nodeId).append("\";");
+            line.append('"').append(node.parentId).append("\";");
+            line.append('"').append(node.methodId).append("\";");
+            line.append('"').append(getMethodName(node.methodId)).append('"');
+            for (long value : node.fields) {
+                line.append(";\"").append(value).append('"');
+            }
+            if (histograms) {
+                Histogram histogram = node.histogram;
+                long[] values = histogram == null ? new long[5] : new long[]{histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                        histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.max};
+                for (long value : values) {
+                    line.append(";\"").append(value).append('"');
+                }
+            }
+            out.print(line.append("\r\n"));
+        }
+    }
+
+    /**
+     * One line per distinct stack, weighted by the self part of the field:
+     * its value minus the values of the node's children. Ticks are used by
+     * default, or the last schema field when there are none; pass allocBytes
+     * for allocation flame graphs.
+     */
+    public void printCollapsed(PrintStream out, String field) {
+        if (field == null) {
+            field = schema.contains("ticks") ? "ticks" : schema.get(schema.size() - 1);
+        }
+        int index = schema.indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("No field " + field + " in " + schema);
+        }
+
+        for (Node node : nodes.values()) {
+            Node parent = getParent(node);
+            if (parent != null) {
+                parent.childrenTotal += node.fields[index];
+            }
+        }
+
+        Map<String, Long> stacks = new LinkedHashMap<String, Long>();
+        for (Node node : nodes.values()) {
+            long self = node.fields[index] - node.childrenTotal;
+            if (self <= 0) {
+                continue;
+            }
+            String stack = getStack(node);
+            Long total = stacks.get(stack);
+            stacks.put(stack, total == null ? self : total + self);
+        }
+
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    private String getStack(Node node) {
+        List<String> frames = new ArrayList<String>();
+        for (Node current = node; current != null; current = getParent(current)) {
+            frames.add(getMethodName(current.methodId).replace(';', ':').replace(' ', '_'));
+        }
+
+        StringBuilder stack = new StringBuilder("thread-").append(node.threadId);
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            stack.append(';').append(frames.get(i));
+        }
+        return stack.toString();
+    }
+
+    private String getMethodName(long methodId) {
+        String name = methods.get(methodId);
+        return name == null ? "method-" + methodId : name;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            result |= ((long) (b & 0x7f)) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] data = new byte[(int) readVarint(in)];
+        in.readFully(data);
+        return new String(data, "UTF-8");
+    }
+}
@@ -139,6 +139,9 @@ typedef struct CrwClassImage {
     /* Unique class number for this class */
     unsigned                    number;
 
+    /* Class number always loaded from class_number_index */
+    int                         pool_number;
+
     /* Name of class, given or gotten out of class image */
     const char *                name;
 
@@ -724,7 +727,7 @@ cpool_setup(CrwClassImage *ci)
     }
 
     if (ci->call_name != NULL || ci->return_name != NULL) {
-        if ( ci->number != (ci->number & 0x7FFF) ) {
+        if ( ci->pool_number || ci->number != (ci->number & 0x7FFF) ) {
             ci->class_number_index =
                 add_new_cpool_entry(ci, JVM_CONSTANT_Integer,
                     (ci->number>>16) & 0xFFFF, ci->number & 0xFFFF, NULL, 0);
@@ -846,7 +849,7 @@ injection_template(MethodImage *mi, ByteCode *bytecodes, ByteOffset max_nbytes,
         bytecodes[nbytes++] = (ByteCode)JVM_OPC_aload_0;
     }
     if ( push_cnum ) {
-        if ( ci->number == (ci->number & 0x7FFF) ) {
+        if ( !ci->pool_number && ci->number == (ci->number & 0x7FFF) ) {
             nbytes += push_short_constant_bytecodes(bytecodes+nbytes,
                                                 ci->number);
         } else {
@@ -2362,7 +2365,8 @@ java_crw_demo(unsigned class_number,
          unsigned char **pnew_file_image,
          long *pnew_file_len,
          FatalErrorHandler fatal_error_handler,
-         MethodNumberRegister mnum_callback)
+         MethodNumberRegister mnum_callback,
+         int pool_class_number)
 {
     CrwClassImage ci;
     long          max_length;
@@ -2442,6 +2446,7 @@ java_crw_demo(unsigned class_number,
         }
     }
     ci.number = class_number;
+    ci.pool_number = pool_class_number;
     ci.input = file_image;
     ci.input_len = file_len;
 
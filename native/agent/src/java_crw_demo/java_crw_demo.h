@@ -100,7 +100,8 @@ typedef void (JNICALL *JavaCrwDemo)(
          unsigned char **pnew_file_image,
          long *pnew_file_len,
          FatalErrorHandler fatal_error_handler,
-         MethodNumberRegister mnum_callback
+         MethodNumberRegister mnum_callback,
+         int pool_class_number
 );
 
 /* Function export (should match typedef above) */
@@ -161,10 +162,15 @@ JNIEXPORT void JNICALL java_crw_demo(
                                 /*  fatal error. NULL sends error to stderr */
 
          MethodNumberRegister
-           mnum_callback        /* Pointer to function that gets called */
+           mnum_callback,       /* Pointer to function that gets called */
                                 /*   with all details on methods in this */
                                 /*   class. NULL means skip this call. */
 
+         int pool_class_number  /* Set to 1 to load the class number from */
+                                /*   one added CONSTANT_Integer even when */
+                                /*   it fits a bipush/sipush, so the image */
+                                /*   can be patched to another number */
+
            );
 
 
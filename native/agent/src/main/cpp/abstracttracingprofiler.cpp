@@ -23,6 +23,9 @@ void AbstractTracingProfiler::setData(AgentRuntime *runtime, JavaClassesInfo *cl
   this->runtime = runtime;
   this->classes = classes;
   this->threads = threads;
+
+  histograms = runtime->getOptions()->isHistogramsEnabled();
+  LatencyHistogram::setPrecision(runtime->getOptions()->getHistogramPrecision());
 }
 
 AgentRuntime *AbstractTracingProfiler::getRuntime() {
@@ -35,3 +38,171 @@ JavaClassesInfo *AbstractTracingProfiler::getClasses(){
 JavaThreadsInfo *AbstractTracingProfiler::getThreads(){
   return threads;
 }
+
+bool AbstractTracingProfiler::saveSnapshot(const string &path, bool delta, unsigned long long sequence){
+  SnapshotWriter writer;
+  if(!writer.open(path, delta, sequence)){
+    getRuntime()->logError("Cannot create snapshot " + path);
+    return false;
+  }
+
+  writeSnapshot(writer);
+  if(delta){
+    lock_guard<mutex> guard(reportedLock);
+    reported.swap(reportedNext);
+    reportedNext.clear();
+  }
+
+  if(!writer.close()){
+    getRuntime()->logError("Cannot write snapshot " + path);
+    return false;
+  }
+  return true;
+}
+
+bool AbstractTracingProfiler::reportCounters(SnapshotWriter &writer, unsigned long long callCount, unsigned long long returnCount, unsigned long long ticks,
+                                             unsigned long long &reportedCallCount, unsigned long long &reportedReturnCount, unsigned long long &reportedTicks, unsigned long long *fields){
+  if(!writer.isDelta()){
+    fields[0] = callCount;
+    fields[1] = returnCount;
+    fields[2] = ticks;
+    return true;
+  }
+
+  // counters went down: the profiler was reset after the previous delta
+  if(callCount<reportedCallCount || returnCount<reportedReturnCount || ticks<reportedTicks){
+    reportedCallCount = 0;
+    reportedReturnCount = 0;
+    reportedTicks = 0;
+  }
+
+  fields[0] = callCount-reportedCallCount;
+  fields[1] = returnCount-reportedReturnCount;
+  fields[2] = ticks-reportedTicks;
+
+  reportedCallCount = callCount;
+  reportedReturnCount = returnCount;
+  reportedTicks = ticks;
+
+  return fields[0]!=0 || fields[1]!=0 || fields[2]!=0;
+}
+
+ReportedCounters &AbstractTracingProfiler::getReported(unsigned long long nodeId){
+  ReportedCounters &result = reportedNext[nodeId];
+  auto it = reported.find(nodeId);
+  if(it!=reported.end()){
+    result = it->second;
+  }
+  return result;
+}
+
+void AbstractTracingProfiler::addReported(unsigned long long toId, unsigned long long fromId, bool ticks){
+  if(toId==fromId){
+    return;
+  }
+  lock_guard<mutex> guard(reportedLock);
+  // a merge may come between a delta's walk and its swap, so both tables stay right
+  for(auto table : {&reported, &reportedNext}){
+    auto it = table->find(fromId);
+    if(it==table->end()){
+      continue;
+    }
+    ReportedCounters from = it->second;
+    ReportedCounters &to = (*table)[toId];
+    to.callCount += from.callCount;
+    to.returnCount += from.returnCount;
+    to.allocCount += from.allocCount;
+    to.allocBytes += from.allocBytes;
+    if(ticks){
+      to.ticks += from.ticks;
+    }
+  }
+}
+
+void AbstractTracingProfiler::getPercentiles(CallStatistics *stat, unsigned long long *values){
+  HistogramSnapshot snapshot;
+  CallStatisticsExtra *extra = stat->findExtra();
+  if(extra!=nullptr){
+    snapshot.add(extra->histogram.load(memory_order_acquire), extra->maxTicks.load(memory_order_relaxed));
+  }
+  snapshot.getPercentiles(values);
+}
+
+void AbstractTracingProfiler::writeHistogram(SnapshotWriter &writer, unsigned long long threadId, CallStatistics *stat){
+  CallStatisticsExtra *extra = stat->findExtra();
+  HistogramCounter *counts = extra!=nullptr ? extra->histogram.load(memory_order_acquire) : nullptr;
+  if(counts!=nullptr){
+    writer.writeHistogram(threadId, stat->nodeId, counts, extra->maxTicks.load(memory_order_relaxed));
+  }
+}
+
+bool AbstractTracingProfiler::reportAllocations(SnapshotWriter &writer, unsigned long long allocCount, unsigned long long allocBytes,
+                                                unsigned long long &reportedAllocCount, unsigned long long &reportedAllocBytes, unsigned long long *fields){
+  if(!writer.isDelta()){
+    fields[0] = allocCount;
+    fields[1] = allocBytes;
+    return true;
+  }
+
+  if(allocCount<reportedAllocCount || allocBytes<reportedAllocBytes){
+    reportedAllocCount = 0;
+    reportedAllocBytes = 0;
+  }
+
+  fields[0] = allocCount-reportedAllocCount;
+  fields[1] = allocBytes-reportedAllocBytes;
+
+  reportedAllocCount = allocCount;
+  reportedAllocBytes = allocBytes;
+
+  return fields[0]!=0 || fields[1]!=0;
+}
+
+void AbstractTracingProfiler::allocationSampled(unsigned long long count, unsigned long long bytes){
+}
+
+void AbstractTracingProfiler::monitorBlocked(unsigned long long ticks){
+}
+
+void *AbstractTracingProfiler::virtualThreadStarted(jobject thread){
+  return nullptr;
+}
+
+void AbstractTracingProfiler::virtualThreadMounted(void *state){
+}
+
+void AbstractTracingProfiler::virtualThreadUnmounted(){
+}
+
+void AbstractTracingProfiler::virtualThreadEnded(void *state){
+}
+
+bool AbstractTracingProfiler::isTrackingExceptions(){
+  return false;
+}
+
+void AbstractTracingProfiler::exceptionCaught(jvmtiEnv *jvmti, JNIEnv *env){
+}
+
+void AbstractTracingProfiler::getCallPath(vector<unsigned long long> &methodIds){
+  methodIds.clear();
+}
+
+bool AbstractTracingProfiler::isInstrumenting(){
+  return true;
+}
+
+void AbstractTracingProfiler::collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit){
+}
+
+void AbstractTracingProfiler::vmStarted(jvmtiEnv *jvmti, JNIEnv *env, jclass agent){
+}
+
+void AbstractTracingProfiler::vmInitialized(jvmtiEnv *jvmti, JNIEnv *env){
+}
+
+void AbstractTracingProfiler::vmDead(jvmtiEnv *jvmti, JNIEnv *env){
+}
+
+void AbstractTracingProfiler::classPrepared(jvmtiEnv *jvmti, JNIEnv *env, jclass klass){
+}
@@ -23,23 +23,26 @@
 #include "javaclassesinfo.h"
 #include "javathreadsinfo.h"
 #include "agentruntime.h"
+#include "calltree.h"
+#include "snapshotwriter.h"
 
 #include <unordered_map>
 #include <string>
+#include <functional>
+#include <vector>
+#include <mutex>
 
 class AgentRuntime;
 
 using namespace std;
 
-struct CallStatistics final {
-  unsigned int callCount;
-  unsigned int returnCount;
-  unsigned long long methodId;
-  unsigned short level=1;
-  CallStatistics *prevCall;
-  unsigned long long ticks_spent=0;
-  unsigned long long ticks_last=0;
-  unordered_map<unsigned long long, CallStatistics*> childs;
+// what the previous delta snapshot sent for one node
+struct ReportedCounters final {
+  unsigned long long callCount=0;
+  unsigned long long returnCount=0;
+  unsigned long long ticks=0;
+  unsigned long long allocCount=0;
+  unsigned long long allocBytes=0;
 };
 
 class AbstractTracingProfiler
@@ -48,8 +51,8 @@ public:
 
   virtual void setData(AgentRuntime *runtime, JavaClassesInfo *classes, JavaThreadsInfo *threads);
 
-  virtual void methodEntry(int cnum, int mnum, jobject thread)=0;
-  virtual void methodExit(int cnum, int mnum, jobject thread)=0;
+  virtual void methodEntry(int cnum, int mnum, unsigned long long ticks)=0;
+  virtual void methodExit(int cnum, int mnum, unsigned long long ticks)=0;
   virtual void printOnExit()=0;
   virtual void new_object(jobject obj)=0;
   virtual void new_array(jobject obj)=0;
@@ -60,13 +63,138 @@ public:
 
   virtual void reset()=0;
   virtual string printCsv()=0;
+  virtual void writeSnapshot(SnapshotWriter &writer)=0;
+
+  // writes the binary snapshot described in snapshotwriter.h to path
+  bool saveSnapshot(const string &path, bool delta=false, unsigned long long sequence=0);
+
+  // false - classes are not rewritten by java_crw_demo at all
+  virtual bool isInstrumenting();
+  // agent is the helper class, its natives are registered but calls are not engaged yet
+  virtual void vmStarted(jvmtiEnv *jvmti, JNIEnv *env, jclass agent);
+  virtual void vmInitialized(jvmtiEnv *jvmti, JNIEnv *env);
+  virtual void vmDead(jvmtiEnv *jvmti, JNIEnv *env);
+  virtual void classPrepared(jvmtiEnv *jvmti, JNIEnv *env, jclass klass);
+
+  // visit(method, calls, selfTicks) once per method and thread for the overhead governor,
+  // flat profilers only know inclusive ticks and report them as an upper bound of self time
+  virtual void collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit);
+  // an allocation sample of the current thread standing for count allocations of bytes in total
+  virtual void allocationSampled(unsigned long long count, unsigned long long bytes);
+  // method ids of the current thread's recorded frames from the outermost one, empty when the profiler keeps no stacks
+  virtual void getCallPath(vector<unsigned long long> &methodIds);
+  // the current thread was blocked on a monitor for ticks
+  virtual void monitorBlocked(unsigned long long ticks);
+  // virtual.threads: state of a virtual thread the VM keeps for it, nullptr when the profiler does not track them.
+  // Started comes on its first mount and ended before its last unmount, both on the virtual thread
+  virtual void *virtualThreadStarted(jobject thread);
+  virtual void virtualThreadMounted(void *state);
+  virtual void virtualThreadUnmounted();
+  virtual void virtualThreadEnded(void *state);
+  // tracing.profiler.exceptions: frames unwound by an exception get no exit, exceptionCaught comes on
+  // the catching thread when the profiler keeps call stacks; the global lock is not held
+  virtual bool isTrackingExceptions();
+  virtual void exceptionCaught(jvmtiEnv *jvmti, JNIEnv *env);
+  // p50, p90, p99, p999 and max of stat into values[HISTOGRAM_PERCENTILES], zeros without a histogram
+  static void getPercentiles(CallStatistics *stat, unsigned long long *values);
 protected:
 
   virtual AgentRuntime *getRuntime() final;
   virtual JavaClassesInfo *getClasses() final;
   virtual JavaThreadsInfo *getThreads() final;
 
+  /**
+   * Fills fields with callCount, returnCount and ticks to write for one node.
+   * For a delta snapshot they are the increments since the previous one and
+   * false is returned when nothing changed.
+   */
+  static bool reportCounters(SnapshotWriter &writer, unsigned long long callCount, unsigned long long returnCount, unsigned long long ticks,
+                             unsigned long long &reportedCallCount, unsigned long long &reportedReturnCount, unsigned long long &reportedTicks, unsigned long long *fields);
+  // latencies are recorded from methodExit when histogram.enabled, the histogram goes to the node's arena
+  void recordLatency(CallStatistics *stat, unsigned long long ticks, CallTreeArena *arena){
+    if(!histograms){
+      return;
+    }
+    CallStatisticsExtra *extra = stat->getExtra(arena);
+    HistogramCounter *counts = extra->histogram.load(memory_order_relaxed);
+    if(counts==nullptr){
+      counts = LatencyHistogram::create(arena->allocate(LatencyHistogram::getSize()));
+      extra->histogram.store(counts, memory_order_release);
+    }
+    LatencyHistogram::record(counts, ticks);
+    if(ticks>extra->maxTicks.load(memory_order_relaxed)){
+      extra->maxTicks.store(ticks, memory_order_relaxed);
+    }
+  }
+  static void writeHistogram(SnapshotWriter &writer, unsigned long long threadId, CallStatistics *stat);
+  // the same for allocCount and allocBytes
+  static bool reportAllocations(SnapshotWriter &writer, unsigned long long allocCount, unsigned long long allocBytes,
+                                unsigned long long &reportedAllocCount, unsigned long long &reportedAllocBytes, unsigned long long *fields);
+
+  /**
+   * What the previous delta snapshot sent for nodeId, the caller updates it to what this one sends.
+   * Entries of nodes a delta does not visit are dropped; reportedLock is held.
+   */
+  ReportedCounters &getReported(unsigned long long nodeId);
+  /**
+   * The counters of node from were added to node to: the next delta sends only what is new.
+   * ticks is false when from's ticks were already part of to's; it takes reportedLock.
+   */
+  void addReported(unsigned long long toId, unsigned long long fromId, bool ticks);
+
+  // writes the nodes of one thread's tree, allocations add allocCount and allocBytes to the three counters
+  template<typename Resolver> void writeCallTree(SnapshotWriter &writer, pthread_t threadId, CallStatistics &root, Resolver resolve, bool allocations=false){
+    unsigned int fieldCount = allocations ? 5 : 3;
+    auto writeStat = [&](CallStatistics *stat, unsigned long long parentId, unsigned long long *fields){
+      unsigned long long methodId = stat->methodId;
+      writer.writeMethod(methodId, [&](){
+        return resolve(methodId);
+      });
+      writer.writeNode(threadId, stat->nodeId, parentId, methodId, fields, fieldCount);
+    };
+
+    // nodes written to this snapshot along the current path, by depth
+    vector<CallStatistics*> written;
+    lock_guard<mutex> guard(reportedLock);
+
+    walkCallTreePaths(root, [&](CallStatistics *stat, vector<CallStatistics*> &path){
+      unsigned long long fields[5];
+      ReportedCounters full;
+      ReportedCounters &reported = writer.isDelta() ? getReported(stat->nodeId) : full;
+      bool changed = reportCounters(writer, stat->callCount.load(memory_order_relaxed), stat->returnCount.load(memory_order_relaxed), stat->ticks_spent.load(memory_order_relaxed),
+                                    reported.callCount, reported.returnCount, reported.ticks, fields);
+      if(allocations){
+        CallStatisticsExtra *extra = stat->findExtra();
+        changed = reportAllocations(writer, extra!=nullptr ? extra->allocCount.load(memory_order_relaxed) : 0, extra!=nullptr ? extra->allocBytes.load(memory_order_relaxed) : 0,
+                                    reported.allocCount, reported.allocBytes, fields+3) || changed;
+      }
+      if(!changed){
+        return;
+      }
+
+      size_t depth = 0;
+      while(depth<path.size() && depth<written.size() && written[depth]==path[depth]){
+        depth++;
+      }
+      written.resize(depth);
+      for(;depth<path.size();depth++){
+        unsigned long long unchanged[5] = {0, 0, 0, 0, 0};
+        writeStat(path[depth], depth==0 ? 0 : path[depth-1]->nodeId, unchanged);
+        written.push_back(path[depth]);
+      }
+
+      writeStat(stat, path.empty() ? 0 : path.back()->nodeId, fields);
+      writeHistogram(writer, threadId, stat);
+      written.push_back(stat);
+    });
+  }
+
+  mutex reportedLock;
 private:
+  bool histograms=false;
+  // by nodeId, what the previous delta snapshot sent and what the one being written sends
+  unordered_map<unsigned long long, ReportedCounters> reported;
+  unordered_map<unsigned long long, ReportedCounters> reportedNext;
   AgentRuntime *runtime;
   JavaClassesInfo *classes;
   JavaThreadsInfo *threads;
@@ -8,6 +8,15 @@
 #include "abstracttracingprofiler.h"
 #include "simplecallcounterprofiler.h"
 #include "threadcallstackprofiler.h"
+#include "snapshotscheduler.h"
+#include "classcache.h"
+#include "rulescontroller.h"
+#include "overheadgovernor.h"
+#include "probebitmap.h"
+#include "allocationsampler.h"
+#include "liveheaptracker.h"
+#include "monitorprofiler.h"
+#include "virtualthreads.h"
 #include <iostream>
 
 #define Agent_class        Agent           /* Name of class we are using */
@@ -24,19 +33,33 @@
 #define Agent_native_method_pause  native_pause    /* Name of java exit native */
 #define Agent_native_method_resume native_resume    /* Name of java exit native */
 #define Agent_native_method_csv  native_csv    /* Name of java exit native */
+#define Agent_native_method_snapshot  native_snapshot
+#define Agent_native_method_flush  native_flush
+#define Agent_native_method_rules  native_rules
+#define Agent_native_method_probes  native_probes
+
+#define Agent_class_nested        "Agent$"   /* Helper classes of Agent_class, never instrumented */
 
 #define Agent_VM_started      ready         /* Name of java static field */
 #define Agent_VM_memtrack     memory
+#define Agent_VM_alloc_interval  allocationInterval
+#define Agent_VM_batch        batch
+#define Agent_VM_batch_flush  batchFlushNanos
+
+/* longs copied from a batch per GetLongArrayRegion call */
+#define Agent_batch_chunk 512
 
 /* C macros to create strings from tokens */
 #define _STRING(s) #s
 #define STRING(s) _STRING(s)
 
 #include <atomic>
+#include <boost/format.hpp>
 
 /* ------------------------------------------------------------------- */
 
 using namespace std;
+using boost::format;
 
 AgentRuntime *runtime;
 JavaClassesInfo *classes = new JavaClassesInfo();
@@ -46,57 +69,122 @@ atomic<bool> paused(false);
 
 //static SimpleCallCounterProfiler *tracingProfiler = new SimpleCallCounterProfiler();
 static AbstractTracingProfiler *tracingProfiler = nullptr;//new ThreadCallStackProfiler();
+static SnapshotScheduler *snapshotScheduler = nullptr;
+static ClassCache *classCache = nullptr;
+static RulesController *rulesController = nullptr;
+static OverheadGovernor *governor = nullptr;
+static ProbeBitmap *probes = nullptr;
+static AllocationSampler *allocations = nullptr;
+static LiveHeapTracker *liveHeap = nullptr;
+static MonitorProfiler *monitors = nullptr;
+static VirtualThreadTracker *virtualThreads = nullptr;
+static jvmtiEnv *agentJvmti = nullptr;
+
+/* The tracker class itself? Its helpers, ThreadLocal and the WeakReference of counters run inside agent_entry, tracing them would recurse */
+static bool isTraceable ( const char *classname ) {
+    return strcmp ( classname, STRING ( Agent_class ) ) != 0
+           && strncmp ( classname, Agent_class_nested, strlen ( Agent_class_nested ) ) != 0
+           && strncmp ( classname, "java/lang/ThreadLocal", strlen ( "java/lang/ThreadLocal" ) ) != 0
+           && strncmp ( classname, "java/lang/ref/", strlen ( "java/lang/ref/" ) ) != 0;
+}
 
 /* Callback from java_crw_demo() that gives us mnum mappings */
 static void mnum_callbacks ( unsigned cnum, const char **names, const char**sigs, int mcount ) {
 
+    classes->addClassMethods ( cnum, names, sigs, mcount );
+
     for ( int mnum = 0 ; mnum < mcount ; mnum++ ) {
-        JavaMethodInfo *method = classes->addClassMethod ( cnum, mnum, names[mnum], sigs[mnum] );
+        JavaMethodInfo *method = classes->getMethodInfo ( cnum, mnum );
 
 	if(runtime->getOptions()->isPrintInstrumentedClasses()){
-	  cout << "instrumented: "<< cnum <<":"<<mnum<<"="<<method->getClass()->getName() << "#" << method->getName()<<"#"<<method->getSignature() << endl;
+	  // one write per line, load hooks of several threads may print at once
+	  string line = ( format ( "instrumented: %d:%d=%s#%s#%s\n" ) % cnum % mnum % method->getClass()->getName() % method->getName() % method->getSignature() ).str();
+	  cout << line << flush;
 	}
 
 	tracingProfiler->methodInstrumented(method);
     }
 }
 
+/* Methods turned off by the overhead governor, a disabled method skips entry and exit alike */
+static inline bool isProbeDisabled ( jint cnum, jint mnum ) {
+    JavaMethodInfo *method = classes->getMethodInfo ( cnum, mnum );
+    return method != nullptr && method->isDisabled();
+}
+
+// Looked up by symbol name only with -XX:+CriticalJNINatives (JDK 7-17), RegisterNatives
+// can not bind them, so they are not in the registry below.
 //https://bugs.openjdk.java.net/browse/JDK-7013347
 JNIEXPORT void JNICALL JavaCritical_Agent_native_1entry( jint cnum, jint mnum ) {
-  if(paused.load()) {
+  if(paused.load() || isProbeDisabled ( cnum, mnum )) {
     return;
   }
 
-  tracingProfiler->methodEntry ( cnum, mnum, nullptr );
+  tracingProfiler->methodEntry ( cnum, mnum, runtime->getTicks() );
 }
 
 //https://bugs.openjdk.java.net/browse/JDK-7013347
 JNIEXPORT void JNICALL JavaCritical_Agent_native_1exit ( jint cnum, jint mnum ) {
-  if(paused.load()) {
+  if(paused.load() || isProbeDisabled ( cnum, mnum )) {
     return;
   }
 
-  tracingProfiler->methodExit ( cnum, mnum, nullptr );
+  tracingProfiler->methodExit ( cnum, mnum, runtime->getTicks() );
 }
 
 JNIEXPORT void JNICALL Java_Agent_native_1entry( JNIEnv *env, jclass klass, jint cnum, jint mnum ) {
-  if(paused.load()) {
+  if(paused.load() || isProbeDisabled ( cnum, mnum )) {
     return;
   }
 
-  tracingProfiler->methodEntry ( cnum, mnum, nullptr );
+  tracingProfiler->methodEntry ( cnum, mnum, runtime->getTicks() );
 }
 
 JNIEXPORT void JNICALL Java_Agent_native_1exit( JNIEnv *env, jclass klass, jint cnum, jint mnum ) {
+  if(paused.load() || isProbeDisabled ( cnum, mnum )) {
+    return;
+  }
+
+  tracingProfiler->methodExit ( cnum, mnum, runtime->getTicks() );
+}
+
+/* Events recorded by Agent in batch mode: pairs of (cnum<<32 | mnum<<1 | exit, System.nanoTime()) */
+JNIEXPORT void JNICALL Java_Agent_native_1flush( JNIEnv *env, jclass klass, jlongArray events, jint length ) {
   if(paused.load()) {
     return;
   }
 
-  tracingProfiler->methodExit ( cnum, mnum, nullptr );
+  jlong chunk[Agent_batch_chunk];
+  // slot 0 holds the write position, events start at 1
+  for(jint offset=1;offset+1<length;offset+=Agent_batch_chunk){
+    jint count = length-offset;
+    if(count>Agent_batch_chunk){
+      count = Agent_batch_chunk;
+    }
+    env->GetLongArrayRegion(events, offset, count, chunk);
+
+    for(jint i=0;i+1<count;i+=2){
+      unsigned long long event = (unsigned long long)chunk[i];
+      jint cnum = (jint)(event >> 32);
+      jint mnum = (jint)((event >> 1) & 0x7fffffff);
+
+      if(isProbeDisabled ( cnum, mnum )){
+        continue;
+      }
+      if(event & 1){
+        tracingProfiler->methodExit ( cnum, mnum, (unsigned long long)chunk[i+1] );
+      } else {
+        tracingProfiler->methodEntry ( cnum, mnum, (unsigned long long)chunk[i+1] );
+      }
+    }
+  }
 }
 
 JNIEXPORT void JNICALL Java_Agent_native_1reset(JNIEnv *, jclass){
   tracingProfiler->reset();
+  if(allocations != nullptr){
+    allocations->reset();
+  }
 }
 
 JNIEXPORT void JNICALL Java_Agent_native_1resume(JNIEnv *, jclass){
@@ -110,11 +198,27 @@ JNIEXPORT void JNICALL Java_Agent_native_1pause(JNIEnv *, jclass){
 JNIEXPORT void JNICALL Java_Agent_native_1newobj(JNIEnv *env, jclass klass, jobject o)
 {
     tracingProfiler->new_object(o);
+
+    AllocationSample sample;
+    if ( allocations != nullptr && allocations->sample ( env, o, sample ) ) {
+        tracingProfiler->allocationSampled ( sample.count, sample.bytes );
+        if ( liveHeap != nullptr ) {
+            liveHeap->track ( o, sample );
+        }
+    }
 }
 
 JNIEXPORT void JNICALL Java_Agent_native_1newarr(JNIEnv *env, jclass klass, jobject a)
 {
     tracingProfiler->new_array(a);
+
+    AllocationSample sample;
+    if ( allocations != nullptr && allocations->sample ( env, a, sample ) ) {
+        tracingProfiler->allocationSampled ( sample.count, sample.bytes );
+        if ( liveHeap != nullptr ) {
+            liveHeap->track ( a, sample );
+        }
+    }
 }
 
 
@@ -124,6 +228,44 @@ JNIEXPORT jstring JNICALL Java_Agent_native_1csv(JNIEnv *env, jclass){
   return result;
 }
 
+JNIEXPORT jboolean JNICALL Java_Agent_native_1snapshot(JNIEnv *env, jclass, jstring path){
+  const char *value = env->GetStringUTFChars(path, nullptr);
+  if(value==nullptr){
+    return JNI_FALSE;
+  }
+  string file(value);
+  env->ReleaseStringUTFChars(path, value);
+
+  return tracingProfiler->saveSnapshot(file) ? JNI_TRUE : JNI_FALSE;
+}
+
+static string getString(JNIEnv *env, jstring value){
+  if(value==nullptr){
+    return "";
+  }
+  const char *chars = env->GetStringUTFChars(value, nullptr);
+  if(chars==nullptr){
+    return "";
+  }
+  string result(chars);
+  env->ReleaseStringUTFChars(value, chars);
+  return result;
+}
+
+JNIEXPORT jboolean JNICALL Java_Agent_native_1rules(JNIEnv *env, jclass, jstring include, jstring includeIgnore, jstring exclude, jstring excludeIgnore){
+  if(rulesController==nullptr){
+    return JNI_FALSE;
+  }
+  return rulesController->apply(env, getString(env, include), getString(env, includeIgnore), getString(env, exclude), getString(env, excludeIgnore)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_Agent_native_1probes(JNIEnv *env, jclass, jstring pattern, jboolean enabled){
+  if(probes==nullptr){
+    return 0;
+  }
+  return probes->setEnabled(env, getString(env, pattern), enabled==JNI_TRUE);
+}
+
 static void JNICALL cbVMStart ( jvmtiEnv *jvmti, JNIEnv *env ) {
     runtime->agentGlobalLock();
     {
@@ -133,23 +275,19 @@ static void JNICALL cbVMStart ( jvmtiEnv *jvmti, JNIEnv *env ) {
 
         /* Java Native Methods for class */
 
-        static JNINativeMethod registry[10] = {
+        static JNINativeMethod registry[] = {
 
-            {
-                STRING ( Agent_native_method_entry ), "(II)V",
-                ( void* ) &JavaCritical_Agent_native_1entry
-            },
             {
                 STRING ( Agent_native_method_entry ), "(II)V",
                 ( void* ) &Java_Agent_native_1entry
             },
             {
                 STRING ( Agent_native_method_exit ),  "(II)V",
-                ( void* ) &JavaCritical_Agent_native_1exit
+                ( void* ) &Java_Agent_native_1exit
             },
             {
-                STRING ( Agent_native_method_exit ),  "(II)V",
-                ( void* ) &Java_Agent_native_1exit
+                STRING ( Agent_native_method_flush ),  "([JI)V",
+                ( void* ) &Java_Agent_native_1flush
             },
             {
               STRING ( Agent_native_method_reset ),  "()V",
@@ -174,6 +312,18 @@ static void JNICALL cbVMStart ( jvmtiEnv *jvmti, JNIEnv *env ) {
             {
                 "native_newarr", "(Ljava/lang/Object;)V",
                 (void*)&Java_Agent_native_1newarr
+            },
+            {
+                STRING ( Agent_native_method_snapshot ), "(Ljava/lang/String;)Z",
+                (void*)&Java_Agent_native_1snapshot
+            },
+            {
+                STRING ( Agent_native_method_rules ), "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)Z",
+                (void*)&Java_Agent_native_1rules
+            },
+            {
+                STRING ( Agent_native_method_probes ), "(Ljava/lang/String;Z)I",
+                (void*)&Java_Agent_native_1probes
             }
         };
 
@@ -189,12 +339,34 @@ static void JNICALL cbVMStart ( jvmtiEnv *jvmti, JNIEnv *env ) {
                           STRING ( Agent_class ) );
         }
 
-        rc = ( env )->RegisterNatives ( klass, registry, 8 );
+        rc = ( env )->RegisterNatives ( klass, registry, sizeof ( registry ) / sizeof ( registry[0] ) );
         if ( rc != 0 ) {
             fatal_error ( "ERROR: JNI: Cannot register native methods for %s\n",
                           STRING ( Agent_class ) );
         }
 
+        tracingProfiler->vmStarted ( jvmti, env, klass );
+        if ( probes != nullptr ) {
+            probes->vmStarted ( env, klass );
+        }
+
+        /* Batch mode is switched on before calls are engaged, so a thread never mixes the two clocks */
+        if(runtime->getOptions()->getBatchSize()>0){
+            field = ( env )->GetStaticFieldID ( klass, STRING ( Agent_VM_batch_flush ), "J" );
+            if ( field == NULL ) {
+                fatal_error ( "ERROR: JNI: Cannot get field from %s\n",
+                              STRING ( Agent_class ) );
+            }
+            ( env )->SetStaticLongField ( klass, field, ( jlong ) runtime->getOptions()->getBatchFlushMillis() * 1000000 );
+
+            field = ( env )->GetStaticFieldID ( klass, STRING ( Agent_VM_batch ), "I" );
+            if ( field == NULL ) {
+                fatal_error ( "ERROR: JNI: Cannot get field from %s\n",
+                              STRING ( Agent_class ) );
+            }
+            ( env )->SetStaticIntField ( klass, field, runtime->getOptions()->getBatchSize() );
+        }
+
         /* Engage calls. */
         field = ( env )->GetStaticFieldID ( klass, STRING ( Agent_VM_started ), "I" );
         if ( field == NULL ) {
@@ -204,6 +376,13 @@ static void JNICALL cbVMStart ( jvmtiEnv *jvmti, JNIEnv *env ) {
         ( env )->SetStaticIntField ( klass, field, 1 );
 
         if(runtime->getOptions()->isMemoryTracking()){
+            field = ( env )->GetStaticFieldID ( klass, STRING ( Agent_VM_alloc_interval ), "I" );
+            if ( field == NULL ) {
+                fatal_error ( "ERROR: JNI: Cannot get field from %s\n",
+                              STRING ( Agent_class ) );
+            }
+            ( env )->SetStaticIntField ( klass, field, ( jint ) allocations->getJavaInterval() );
+
             field = ( env )->GetStaticFieldID ( klass, STRING ( Agent_VM_memtrack ), "I" );
             if ( field == NULL ) {
                 fatal_error ( "ERROR: JNI: Cannot get field from %s\n",
@@ -211,6 +390,7 @@ static void JNICALL cbVMStart ( jvmtiEnv *jvmti, JNIEnv *env ) {
             }
             ( env )->SetStaticIntField ( klass, field, 1 );
         }
+
         /* Indicate VM has started */
         runtime->VmStarted();
 
@@ -242,6 +422,42 @@ static void JNICALL cbVMInit ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
             runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
         }
 
+        tracingProfiler->vmInitialized ( jvmti, env );
+
+        if ( runtime->getOptions()->getSnapshotInterval() > 0 ) {
+            JavaVM *vm = NULL;
+            if ( ( env )->GetJavaVM ( &vm ) != JNI_OK ) {
+                fatal_error ( "ERROR: JNI: Cannot get JavaVM\n" );
+            }
+            snapshotScheduler = new SnapshotScheduler ( runtime, tracingProfiler );
+            snapshotScheduler->start ( vm );
+        }
+
+        if ( runtime->getOptions()->getGovernorInterval() > 0 && tracingProfiler->isInstrumenting() ) {
+            JavaVM *vm = NULL;
+            if ( ( env )->GetJavaVM ( &vm ) != JNI_OK ) {
+                fatal_error ( "ERROR: JNI: Cannot get JavaVM\n" );
+            }
+            governor = new OverheadGovernor ( runtime, tracingProfiler, probes );
+            governor->start ( vm );
+        }
+
+        if ( liveHeap != nullptr ) {
+            JavaVM *vm = NULL;
+            if ( ( env )->GetJavaVM ( &vm ) != JNI_OK ) {
+                fatal_error ( "ERROR: JNI: Cannot get JavaVM\n" );
+            }
+            liveHeap->start ( vm );
+        }
+
+        if ( rulesController != nullptr ) {
+            JavaVM *vm = NULL;
+            if ( ( env )->GetJavaVM ( &vm ) != JNI_OK ) {
+                fatal_error ( "ERROR: JNI: Cannot get JavaVM\n" );
+            }
+            rulesController->start ( vm );
+        }
+
     }
     runtime->agentGlobalUnlock();
 }
@@ -285,19 +501,87 @@ static void JNICALL cbVMDeath ( jvmtiEnv *jvmti, JNIEnv *env ) {
          */
         runtime->VmDead();
 
+        if ( snapshotScheduler != nullptr ) {
+            snapshotScheduler->stop();
+        }
+        if ( rulesController != nullptr ) {
+            rulesController->stop();
+        }
+        if ( governor != nullptr ) {
+            governor->stop();
+        }
+        if ( liveHeap != nullptr ) {
+            liveHeap->stop();
+        }
+        tracingProfiler->vmDead ( jvmti, env );
+
+        if ( classCache != nullptr ) {
+            classCache->close();
+            if ( runtime->getOptions()->isPrintVMEvents() ) {
+                cout << "Class cache hits " << classCache->getHits() << " misses " << classCache->getMisses() << endl;
+            }
+        }
+
         /* Dump out stats */
+	if(runtime->getOptions()->getSnapshotOnExit().length()>0){
+	  tracingProfiler->saveSnapshot(runtime->getOptions()->getSnapshotOnExit());
+	}
 	if(runtime->getOptions()->isTracingProfilerPrintOnExit()){
 	  if(runtime->getOptions()->isCsvOnExit()){
 	    cout << tracingProfiler->printCsv() << endl;
 	  } else {
 	    tracingProfiler->printOnExit();
 	  }
+	  if ( governor != nullptr ) {
+	    governor->printDecisions();
+	  }
+	  if ( allocations != nullptr ) {
+	    allocations->printOnExit();
+	  }
+	  if ( liveHeap != nullptr ) {
+	    liveHeap->printOnExit();
+	  }
+	  if ( monitors != nullptr ) {
+	    monitors->printOnExit ( env );
+	  }
 	}
     }
     runtime->agentGlobalUnlock();
 
 }
 
+/* Callback for JVMTI_EVENT_OBJECT_FREE, no JNI and no agent lock here */
+static void JNICALL cbObjectFree ( jvmtiEnv *jvmti, jlong tag ) {
+    if ( liveHeap != nullptr ) {
+        liveHeap->objectFreed ( tag );
+    }
+}
+
+/* Monitor events run on the blocked thread, they must not take the agent lock */
+static void JNICALL cbMonitorContendedEnter ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jobject object ) {
+    if ( !runtime->isVmDead() ) {
+        monitors->contendedEnter ( env, thread, object );
+    }
+}
+
+static void JNICALL cbMonitorContendedEntered ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jobject object ) {
+    if ( !runtime->isVmDead() ) {
+        monitors->contendedEntered ( env, thread, object );
+    }
+}
+
+static void JNICALL cbMonitorWait ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jobject object, jlong timeout ) {
+    if ( !runtime->isVmDead() ) {
+        monitors->wait ( env, thread, object );
+    }
+}
+
+static void JNICALL cbMonitorWaited ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jobject object, jboolean timed_out ) {
+    if ( !runtime->isVmDead() ) {
+        monitors->waited ( env, thread, object );
+    }
+}
+
 static void JNICALL cbThreadStart ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
     runtime->agentGlobalLock ();
     {
@@ -316,6 +600,28 @@ static void JNICALL cbThreadStart ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread
     runtime->agentGlobalUnlock();
 }
 
+// virtual threads come by the million, starts and ends take the profiler's own locks instead of the global one
+static void JNICALL cbVirtualThreadStart ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
+    if ( !runtime->isVmDead() ) {
+        virtualThreads->started ( thread );
+    }
+}
+
+static void JNICALL cbVirtualThreadEnd ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
+    if ( !runtime->isVmDead() ) {
+        virtualThreads->ended ( thread );
+    }
+}
+
+// mounts come on every park and unpark, they only swap thread local state and take no lock
+static void JNICALL cbVirtualThreadMount ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
+    virtualThreads->mounted ( thread );
+}
+
+static void JNICALL cbVirtualThreadUnmount ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
+    virtualThreads->unmounted ( thread );
+}
+
 static void JNICALL cbThreadEnd ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread ) {
     runtime->agentGlobalLock();
     {
@@ -333,9 +639,30 @@ static void JNICALL cbThreadEnd ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread )
     runtime->agentGlobalUnlock();
 }
 
+/* Exceptions unwind instrumented frames without their exits, runs on the catching thread without the agent lock */
+static void JNICALL cbExceptionCatch ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jmethodID method, jlocation location, jobject exception ) {
+    if ( !runtime->isVmDead() ) {
+        tracingProfiler->exceptionCaught ( jvmti, env );
+    }
+}
+
+/* Callback for JVMTI_EVENT_CLASS_LOAD, AsyncGetCallTrace refuses to work without it */
+static void JNICALL cbClassLoad ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jclass klass ) {
+}
+
+/* Callback for JVMTI_EVENT_CLASS_PREPARE */
+static void JNICALL cbClassPrepare ( jvmtiEnv *jvmti, JNIEnv *env, jthread thread, jclass klass ) {
+    if ( !runtime->isVmDead() ) {
+        tracingProfiler->classPrepared ( jvmti, env, klass );
+    }
+}
+
 /* Callback for JVMTI_EVENT_CLASS_FILE_LOAD_HOOK */
 static void JNICALL cbClassFileLoadHook ( jvmtiEnv *jvmti, JNIEnv* env, jclass class_being_redefined, jobject loader, const char* name, jobject protection_domain, jint class_data_len, const unsigned char* class_data, jint* new_class_data_len, unsigned char** new_class_data ) {
-    runtime->agentGlobalLock();
+    /* No global lock here: parallel capable class loaders rewrite classes concurrently.
+     * Class and method ids come from atomic counters of the wait-free classes registry,
+     * java_crw_demo keeps no shared state.
+     */
     {
         // It's possible we get here right after VmDeath event, be careful
         if ( !runtime->isVmDead() ) {
@@ -359,8 +686,8 @@ static void JNICALL cbClassFileLoadHook ( jvmtiEnv *jvmti, JNIEnv* env, jclass c
             *new_class_data_len = 0;
             *new_class_data     = NULL;
 
-            // The tracker class itself?
-            if ( !runtime->getOptions()->isClassExcluded(classname) && strcmp ( classname, STRING ( Agent_class ) ) != 0 ) {
+            /* A retransformed class that is excluded now gets no new image, that restores its original bytes */
+            if ( tracingProfiler->isInstrumenting() && isTraceable ( classname ) && !runtime->getOptions()->isClassExcluded(classname) ) {
 
 		//cout << classname << " instrumenting " << endl;
 
@@ -380,39 +707,79 @@ static void JNICALL cbClassFileLoadHook ( jvmtiEnv *jvmti, JNIEnv* env, jclass c
                 new_image = NULL;
                 new_length = 0;
 
-                java_crw_demo ( cnum,
-                                classname,
-                                class_data,
-                                class_data_len,
-                                system_class,
-                                STRING ( Agent_class ), "L" STRING ( Agent_class ) ";",
-                                STRING ( Agent_method_entry ), "(II)V",
-                                STRING ( Agent_method_exit ), "(II)V",
-                                STRING( Agent_method_newobj ), "(Ljava/lang/Object;)V",
-                                STRING( Agent_method_newarr ), "(Ljava/lang/Object;)V",
-                                &new_image,
-                                &new_length,
-                                NULL,
-                                &mnum_callbacks );
-
-                // If we got back a new class image, return it back as "the" new class image. This must be JVMTI Allocate space.
-                if ( new_length > 0 ) {
-                    unsigned char *jvmti_space;
-
-                    jvmti_space = ( unsigned char * ) runtime->JVMTIAllocate ( ( jint ) new_length );
-                    ( void ) memcpy ( ( void* ) jvmti_space, ( void* ) new_image, ( int ) new_length );
-                    *new_class_data_len = ( jint ) new_length;
-                    *new_class_data = jvmti_space;
+                ClassCacheKey cacheKey;
+                ClassCacheHit cached;
+                if ( classCache != nullptr ) {
+                    cacheKey = ClassCache::makeKey ( system_class, class_data, class_data_len );
                 }
 
-                if ( new_image != NULL ) {
-                    ( void ) free ( ( void* ) new_image );
+                if ( classCache != nullptr && classCache->find ( cacheKey, cached ) ) {
+                    // Rewritten by an earlier run: register the same method table java_crw_demo reported then
+                    mnum_callbacks ( cnum, cached.names.data(), cached.signatures.data(), ( int ) cached.names.size() );
+
+                    if ( cached.imageLength > 0 ) {
+                        unsigned char *jvmti_space;
+
+                        jvmti_space = ( unsigned char * ) runtime->JVMTIAllocate ( ( jint ) cached.imageLength );
+                        ( void ) memcpy ( ( void* ) jvmti_space, ( const void* ) cached.image, cached.imageLength );
+                        ClassCache::patchClassNumber ( jvmti_space, cached.cnumOffset, ( unsigned int ) cnum );
+                        *new_class_data_len = ( jint ) cached.imageLength;
+                        *new_class_data = jvmti_space;
+                    }
+                } else {
+                    java_crw_demo ( cnum,
+                                    classname,
+                                    class_data,
+                                    class_data_len,
+                                    system_class,
+                                    STRING ( Agent_class ), "L" STRING ( Agent_class ) ";",
+                                    STRING ( Agent_method_entry ), "(II)V",
+                                    STRING ( Agent_method_exit ), "(II)V",
+                                    STRING( Agent_method_newobj ), "(Ljava/lang/Object;)V",
+                                    STRING( Agent_method_newarr ), "(Ljava/lang/Object;)V",
+                                    &new_image,
+                                    &new_length,
+                                    NULL,
+                                    &mnum_callbacks,
+                                    classCache != nullptr ? 1 : 0 );
+
+                    // If we got back a new class image, return it back as "the" new class image. This must be JVMTI Allocate space.
+                    if ( new_length > 0 ) {
+                        unsigned char *jvmti_space;
+
+                        jvmti_space = ( unsigned char * ) runtime->JVMTIAllocate ( ( jint ) new_length );
+                        ( void ) memcpy ( ( void* ) jvmti_space, ( void* ) new_image, ( int ) new_length );
+                        *new_class_data_len = ( jint ) new_length;
+                        *new_class_data = jvmti_space;
+                    }
+
+                    if ( classCache != nullptr ) {
+                        JavaClassInfo *info = classes->getClassInfo ( cnum );
+                        vector<string> names;
+                        vector<string> signatures;
+                        for ( unsigned int mnum = 0 ; mnum < info->getMethodCount() ; mnum++ ) {
+                            names.push_back ( info->getMethod ( mnum )->getName() );
+                            signatures.push_back ( info->getMethod ( mnum )->getSignature() );
+                        }
+
+                        vector<const char *> namesTable;
+                        vector<const char *> signaturesTable;
+                        for ( size_t mnum = 0 ; mnum < names.size() ; mnum++ ) {
+                            namesTable.push_back ( names[mnum].c_str() );
+                            signaturesTable.push_back ( signatures[mnum].c_str() );
+                        }
+                        unsigned int cnumOffset = ClassCache::findClassNumber ( class_data, class_data_len, new_image, ( unsigned int ) new_length, ( unsigned int ) cnum );
+                        classCache->store ( cacheKey, new_image, ( unsigned int ) new_length, cnumOffset, namesTable.data(), signaturesTable.data(), ( int ) names.size() );
+                    }
+
+                    if ( new_image != NULL ) {
+                        ( void ) free ( ( void* ) new_image );
+                    }
                 }
             }
             ( void ) free ( ( void* ) classname );
         }
     }
-    runtime->agentGlobalUnlock();
 }
 
 JNIEXPORT jint JNICALL Agent_OnLoad ( JavaVM *vm, char *options, void *reserved ) {
@@ -430,14 +797,37 @@ JNIEXPORT jint JNICALL Agent_OnLoad ( JavaVM *vm, char *options, void *reserved
                       JVMTI_VERSION_1, res );
     }
 
+    agentJvmti = jvmti;
     runtime = new AgentRuntime ( jvmti );
-    runtime->initHPET();
+    runtime->initTimeSource();
     tracingProfiler = runtime->getOptions()->getTracingProfiler();
     tracingProfiler->setData ( runtime, classes, threads );
 
+    if ( runtime->getOptions()->getClassCacheDir().length() > 0 ) {
+        classCache = new ClassCache ( runtime->getOptions()->getClassCacheDir(),
+                                      runtime->getOptions()->getClassRules() + "|" STRING ( Agent_class ) );
+    }
+
     ( void ) memset ( &capabilities,0, sizeof ( capabilities ) );
     capabilities.can_generate_all_class_hook_events  = 1;
     capabilities.can_tag_objects  = 1;
+    capabilities.can_retransform_classes  = 1;
+    if ( runtime->getOptions()->isMemoryTracking() && runtime->getOptions()->isLiveHeapTracking() ) {
+        capabilities.can_generate_object_free_events  = 1;
+    }
+    if ( runtime->getOptions()->isMonitorTracking() ) {
+        capabilities.can_generate_monitor_events  = 1;
+        if ( runtime->getOptions()->getMonitorHolderSample() > 0 ) {
+            capabilities.can_get_monitor_info  = 1;
+        }
+    }
+    // batched events reach the call stacks later than the exception, the stacks can not be compared then
+    if ( tracingProfiler->isTrackingExceptions() && runtime->getOptions()->isExceptionTracking()
+         && runtime->getOptions()->getBatchSize() == 0 ) {
+        capabilities.can_generate_exception_events  = 1;
+    }
+    bool virtualThreadEvents = runtime->getOptions()->isVirtualThreads()
+                               && VirtualThreadTracker::addCapability ( runtime, jvmti, &capabilities );
     error = ( jvmti )->AddCapabilities ( &capabilities );
     runtime->JVMTIExitIfError ( error, "Unable to get necessary JVMTI capabilities." );
 
@@ -448,7 +838,19 @@ JNIEXPORT jint JNICALL Agent_OnLoad ( JavaVM *vm, char *options, void *reserved
     callbacks.ClassFileLoadHook = &cbClassFileLoadHook;
     callbacks.ThreadStart       = &cbThreadStart;
     callbacks.ThreadEnd         = &cbThreadEnd;
-    error = ( jvmti )->SetEventCallbacks ( &callbacks, ( jint ) sizeof ( callbacks ) );
+    callbacks.ClassLoad         = &cbClassLoad;
+    callbacks.ClassPrepare      = &cbClassPrepare;
+    callbacks.ObjectFree        = &cbObjectFree;
+    callbacks.MonitorContendedEnter   = &cbMonitorContendedEnter;
+    callbacks.MonitorContendedEntered = &cbMonitorContendedEntered;
+    callbacks.MonitorWait       = &cbMonitorWait;
+    callbacks.MonitorWaited     = &cbMonitorWaited;
+    callbacks.ExceptionCatch    = &cbExceptionCatch;
+    if ( virtualThreadEvents ) {
+        error = VirtualThreadTracker::setEventCallbacks ( jvmti, callbacks, &cbVirtualThreadStart, &cbVirtualThreadEnd );
+    } else {
+        error = ( jvmti )->SetEventCallbacks ( &callbacks, ( jint ) sizeof ( callbacks ) );
+    }
     runtime->JVMTIExitIfError ( error, "Cannot set jvmti callbacks" );
 
     error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_VM_START, ( jthread ) NULL );
@@ -460,6 +862,52 @@ JNIEXPORT jint JNICALL Agent_OnLoad ( JavaVM *vm, char *options, void *reserved
     error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_CLASS_FILE_LOAD_HOOK, ( jthread ) NULL );
     runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
 
+    if ( !tracingProfiler->isInstrumenting() ) {
+        error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_CLASS_LOAD, ( jthread ) NULL );
+        runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+        error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_CLASS_PREPARE, ( jthread ) NULL );
+        runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+    }
+
+    if ( tracingProfiler->isInstrumenting() ) {
+        rulesController = new RulesController ( runtime, jvmti, &isTraceable );
+        probes = new ProbeBitmap ( classes, runtime->getOptions()->isProbesEnabled() );
+    }
+    if ( runtime->getOptions()->isMemoryTracking() ) {
+        allocations = new AllocationSampler ( runtime, jvmti );
+    }
+    if ( capabilities.can_generate_object_free_events ) {
+        liveHeap = new LiveHeapTracker ( runtime, tracingProfiler, classes, jvmti );
+        error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_OBJECT_FREE, ( jthread ) NULL );
+        runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+    }
+    if ( capabilities.can_generate_monitor_events ) {
+        monitors = new MonitorProfiler ( runtime, tracingProfiler, classes, jvmti );
+        error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_MONITOR_CONTENDED_ENTER, ( jthread ) NULL );
+        runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+        error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_MONITOR_CONTENDED_ENTERED, ( jthread ) NULL );
+        runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+        if ( runtime->getOptions()->isMonitorWaits() ) {
+            error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_MONITOR_WAIT, ( jthread ) NULL );
+            runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+            error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_MONITOR_WAITED, ( jthread ) NULL );
+            runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+        }
+    }
+
+    if ( capabilities.can_generate_exception_events ) {
+        error = ( jvmti )->SetEventNotificationMode ( JVMTI_ENABLE, JVMTI_EVENT_EXCEPTION_CATCH, ( jthread ) NULL );
+        runtime->JVMTIExitIfError ( error, "Cannot set event notification" );
+    }
+
+    if ( virtualThreadEvents ) {
+        virtualThreads = new VirtualThreadTracker ( runtime, tracingProfiler, jvmti );
+        if ( !virtualThreads->enableEvents ( &cbVirtualThreadMount, &cbVirtualThreadUnmount ) ) {
+            delete virtualThreads;
+            virtualThreads = nullptr;
+        }
+    }
+
     if(runtime->getOptions()->isPrintVMEvents()){
       cout << "Adding helper jar at " << runtime->getOptions()->getHelperJar().c_str() << endl;
     }
@@ -469,7 +917,28 @@ JNIEXPORT jint JNICALL Agent_OnLoad ( JavaVM *vm, char *options, void *reserved
 }
 
 JNIEXPORT jint JNICALL Agent_OnAttach(JavaVM* vm, char *options, void *reserved){
-  return Agent_OnLoad(vm, options, reserved);
+  jint result = Agent_OnLoad(vm, options, reserved);
+  if(result!=JNI_OK){
+    return result;
+  }
+
+  // the VM is already live, VMStart and VMInit are not sent to an attached agent
+  JNIEnv *env = nullptr;
+  if(vm->GetEnv((void **)&env, JNI_VERSION_1_6)!=JNI_OK){
+    fatal_error("ERROR: JNI: Cannot get JNIEnv on attach\n");
+  }
+  jthread thread = nullptr;
+  jvmtiError error = agentJvmti->GetCurrentThread(&thread);
+  runtime->JVMTIExitIfError(error, "Cannot get current thread");
+
+  cbVMStart(agentJvmti, env);
+  cbVMInit(agentJvmti, env, thread);
+
+  // classes loaded before the attach never went through the load hook
+  if(rulesController!=nullptr){
+    rulesController->instrumentLoaded(env);
+  }
+  return JNI_OK;
 }
 
 JNIEXPORT void JNICALL Agent_OnUnload ( JavaVM *vm ) {
@@ -19,26 +19,163 @@
 
 #include "agentoptions.h"
 #include "utils.h"
+#include "latencyhistogram.h"
 #include <iostream>
-#include <regex>
-#include <boost/algorithm/string.hpp>
 
 #include "simplecallcounterprofiler.h"
+#include "arenacallcounterprofiler.h"
 #include "threadcallstackprofiler.h"
+#include "samplingprofiler.h"
+#include "javacallcounterprofiler.h"
 
 bool AgentOptions::isCsvOnExit(){
   return csvOnExit;
 }
 
+string AgentOptions::getSnapshotOnExit(){
+  return snapshotOnExit;
+}
+
+unsigned int AgentOptions::getSnapshotInterval(){
+  return snapshotInterval;
+}
+
+string AgentOptions::getSnapshotDir(){
+  return snapshotDir;
+}
+
+unsigned int AgentOptions::getSnapshotMaxFiles(){
+  return snapshotMaxFiles;
+}
+
 int AgentOptions::getTracingProfilerDepth(){
   return tracingMaxDepth;
 }
 
+unsigned long long AgentOptions::getTracingProfilerMaxBytes(){
+  return tracingMaxBytes;
+}
+
+string AgentOptions::getThreadGroupPattern(){
+  return threadGroupPattern;
+}
+
+int AgentOptions::getSamplingInterval(){
+  return samplingInterval;
+}
+
+int AgentOptions::getBatchSize(){
+  return batchSize;
+}
+
+int AgentOptions::getBatchFlushMillis(){
+  return batchFlushMillis;
+}
+
 int AgentOptions::getTimerFrequency()
 {
     return ticksFrequency;
 }
 
+string AgentOptions::getClassCacheDir(){
+  return classCacheDir;
+}
+
+string AgentOptions::getClassRules(){
+  return agentInclude + "|" + agentIncludeIgnore + "|" + agentExclude + "|" + agentExcludeIgnore;
+}
+
+ClassFilter *AgentOptions::getClassFilter(){
+  return classFilter.load(memory_order_acquire);
+}
+
+ClassFilter *AgentOptions::setClassRules(const string &include, const string &includeIgnore, const string &exclude, const string &excludeIgnore){
+  ClassFilter *filter = new ClassFilter(Utils::splitString(include, ","), Utils::splitString(includeIgnore, ","),
+                                        Utils::splitString(exclude, ","), Utils::splitString(excludeIgnore, ","));
+  return classFilter.exchange(filter, memory_order_acq_rel);
+}
+
+unsigned int AgentOptions::getMemorySamplingInterval(){
+  return memorySamplingInterval;
+}
+
+unsigned long long AgentOptions::getMemorySamplingBytes(){
+  return memorySamplingBytes;
+}
+
+bool AgentOptions::isMonitorTracking(){
+  return monitorTracking;
+}
+
+bool AgentOptions::isMonitorWaits(){
+  return monitorWaits;
+}
+
+bool AgentOptions::isVirtualThreads(){
+  return virtualThreads;
+}
+
+bool AgentOptions::isExceptionTracking(){
+  return exceptionTracking;
+}
+
+unsigned int AgentOptions::getMonitorTop(){
+  return monitorTop;
+}
+
+unsigned int AgentOptions::getMonitorHolderSample(){
+  return monitorHolderSample;
+}
+
+bool AgentOptions::isHistogramsEnabled(){
+  return histogramsEnabled;
+}
+
+unsigned int AgentOptions::getHistogramPrecision(){
+  return histogramPrecision;
+}
+
+bool AgentOptions::isLiveHeapTracking(){
+  return liveHeapTracking;
+}
+
+unsigned int AgentOptions::getLiveHeapReportMillis(){
+  return liveHeapReportMillis;
+}
+
+unsigned int AgentOptions::getLiveHeapGrowthReports(){
+  return liveHeapGrowthReports;
+}
+
+bool AgentOptions::isProbesEnabled(){
+  return probesEnabled;
+}
+
+unsigned int AgentOptions::getGovernorInterval(){
+  return governorInterval;
+}
+
+unsigned long long AgentOptions::getGovernorCallsPerSecond(){
+  return governorCallsPerSecond;
+}
+
+unsigned long long AgentOptions::getGovernorSelfNanos(){
+  return governorSelfNanos;
+}
+
+string AgentOptions::getControlFile(){
+  return controlFile;
+}
+
+unsigned int AgentOptions::getControlPollMillis(){
+  return controlPollMillis;
+}
+
+string AgentOptions::getTimerSource()
+{
+    return timerSource;
+}
+
 bool AgentOptions::isMemoryTracking()
 {
     return memoryTracking;
@@ -59,6 +196,30 @@ AgentOptions::AgentOptions(string filename){
   string printInstrumentedClassnamesValue;
   string csvOnExitValue;
   string maxDepthValue;
+  string maxBytesValue;
+  string samplingIntervalValue;
+  string batchSizeValue;
+  string batchFlushValue;
+  string snapshotIntervalValue;
+  string snapshotMaxFilesValue;
+  string controlPollValue;
+  string governorIntervalValue;
+  string probesEnabledValue;
+  string memorySamplingValue;
+  string memorySamplingBytesValue;
+  string liveHeapValue;
+  string histogramsValue;
+  string monitorValue;
+  string monitorWaitsValue;
+  string monitorTopValue;
+  string monitorHolderValue;
+  string virtualThreadsValue;
+  string exceptionsValue;
+  string histogramPrecisionValue;
+  string liveHeapReportValue;
+  string liveHeapGrowthValue;
+  string governorCallsValue;
+  string governorSelfValue;
   string timerFreq;
   string memtrack;
   string memtrackevents;
@@ -67,16 +228,46 @@ AgentOptions::AgentOptions(string filename){
   desc.add_options()("agent.exclude.ingore", boost::program_options::value<std::string>(&agentExcludeIgnore));
   desc.add_options()("agent.include", boost::program_options::value<std::string>(&agentInclude));
   desc.add_options()("agent.include.ingore", boost::program_options::value<std::string>(&agentIncludeIgnore));
+  desc.add_options()("agent.batch.size", boost::program_options::value<std::string>(&batchSizeValue));
+  desc.add_options()("agent.batch.flush.ms", boost::program_options::value<std::string>(&batchFlushValue));
   desc.add_options()("agent.appId", boost::program_options::value<std::string>(&appId));
   desc.add_options()("helper.jar", boost::program_options::value<std::string>(&helperJar));
   desc.add_options()("tracing.profiler", boost::program_options::value<std::string>(&tracingProfilerType));
   desc.add_options()("tracing.profiler.depth", boost::program_options::value<std::string>(&maxDepthValue));
+  desc.add_options()("tracing.profiler.max.bytes", boost::program_options::value<std::string>(&maxBytesValue));
+  desc.add_options()("tracing.profiler.thread.groups", boost::program_options::value<std::string>(&threadGroupPattern));
+  desc.add_options()("tracing.profiler.exceptions", boost::program_options::value<std::string>(&exceptionsValue));
+  desc.add_options()("sampling.interval.us", boost::program_options::value<std::string>(&samplingIntervalValue));
   desc.add_options()("tracing.profiler.print.on.exit", boost::program_options::value<std::string>(&printOnExitValue));
   desc.add_options()("tracing.profiler.print.on.exit.csv", boost::program_options::value<std::string>(&csvOnExitValue));
+  desc.add_options()("tracing.profiler.snapshot.on.exit", boost::program_options::value<std::string>(&snapshotOnExit));
+  desc.add_options()("snapshot.interval.ms", boost::program_options::value<std::string>(&snapshotIntervalValue));
+  desc.add_options()("snapshot.dir", boost::program_options::value<std::string>(&snapshotDir));
+  desc.add_options()("snapshot.max.files", boost::program_options::value<std::string>(&snapshotMaxFilesValue));
   desc.add_options()("timer.freq", boost::program_options::value<std::string>(&timerFreq));
+  desc.add_options()("timer.source", boost::program_options::value<std::string>(&timerSource));
+  desc.add_options()("class.cache.dir", boost::program_options::value<std::string>(&classCacheDir));
+  desc.add_options()("control.file", boost::program_options::value<std::string>(&controlFile));
+  desc.add_options()("control.poll.ms", boost::program_options::value<std::string>(&controlPollValue));
+  desc.add_options()("probes.enabled", boost::program_options::value<std::string>(&probesEnabledValue));
+  desc.add_options()("governor.interval.ms", boost::program_options::value<std::string>(&governorIntervalValue));
+  desc.add_options()("governor.calls.per.second", boost::program_options::value<std::string>(&governorCallsValue));
+  desc.add_options()("governor.self.ns", boost::program_options::value<std::string>(&governorSelfValue));
 
   desc.add_options()("memory.tracking", boost::program_options::value<std::string>(&memtrack));
   desc.add_options()("memory.tracking.events", boost::program_options::value<std::string>(&memtrackevents));
+  desc.add_options()("memory.sampling.interval", boost::program_options::value<std::string>(&memorySamplingValue));
+  desc.add_options()("memory.sampling.bytes", boost::program_options::value<std::string>(&memorySamplingBytesValue));
+  desc.add_options()("monitor.tracking", boost::program_options::value<std::string>(&monitorValue));
+  desc.add_options()("monitor.waits", boost::program_options::value<std::string>(&monitorWaitsValue));
+  desc.add_options()("monitor.top", boost::program_options::value<std::string>(&monitorTopValue));
+  desc.add_options()("monitor.holders.sample", boost::program_options::value<std::string>(&monitorHolderValue));
+  desc.add_options()("virtual.threads", boost::program_options::value<std::string>(&virtualThreadsValue));
+  desc.add_options()("histogram.enabled", boost::program_options::value<std::string>(&histogramsValue));
+  desc.add_options()("histogram.precision", boost::program_options::value<std::string>(&histogramPrecisionValue));
+  desc.add_options()("memory.live.tracking", boost::program_options::value<std::string>(&liveHeapValue));
+  desc.add_options()("memory.live.report.ms", boost::program_options::value<std::string>(&liveHeapReportValue));
+  desc.add_options()("memory.live.growth.reports", boost::program_options::value<std::string>(&liveHeapGrowthValue));
 
   desc.add_options()("print.vm.events", boost::program_options::value<std::string>(&printVMEventsValue));
   desc.add_options()("print.instrumented.classes", boost::program_options::value<std::string>(&printInstrumentedClassnamesValue));
@@ -90,17 +281,91 @@ AgentOptions::AgentOptions(string filename){
   excludesIgnore = Utils::splitString(agentExcludeIgnore, ",");
   includes = Utils::splitString(agentInclude, ",");
   includesIgnore = Utils::splitString(agentIncludeIgnore, ",");
+  classFilter.store(new ClassFilter(includes, includesIgnore, excludes, excludesIgnore));
 
-  int defaultDepth = 5;
-  tracingMaxDepth = defaultDepth;
-  if(maxDepthValue.length()==0 || maxDepthValue.length()>2){
-    tracingMaxDepth = defaultDepth;
-  }
+  // 0 means the call tree is not limited
+  int defaultDepth = 0;
   try{
     tracingMaxDepth = stoi(maxDepthValue);
   }catch(...){
     tracingMaxDepth=defaultDepth;
   }
+  if(tracingMaxDepth<0){
+    tracingMaxDepth=defaultDepth;
+  }
+  // 0 - call trees grow without a limit
+  try{
+    tracingMaxBytes = stoull(maxBytesValue);
+  }catch(...){
+    tracingMaxBytes = 0;
+  }
+
+  // 0 - every call goes to native code right away
+  try{
+    batchSize = stoi(batchSizeValue);
+  }catch(...){
+    batchSize = 0;
+  }
+  if(batchSize<0){
+    batchSize = 0;
+  }
+  try{
+    batchFlushMillis = stoi(batchFlushValue);
+  }catch(...){
+    batchFlushMillis = 100;
+  }
+
+  // 10ms of process CPU time between samples
+  try{
+    samplingInterval = stoi(samplingIntervalValue);
+  }catch(...){
+    samplingInterval = 10000;
+  }
+  if(samplingInterval<=0){
+    samplingInterval = 10000;
+  }
+
+  // 0 - no periodic snapshots
+  try{
+    snapshotInterval = stoul(snapshotIntervalValue);
+  }catch(...){
+    snapshotInterval = 0;
+  }
+  if(snapshotDir.length()==0){
+    snapshotDir = ".";
+  }
+  // 0 - keep every snapshot
+  try{
+    snapshotMaxFiles = stoul(snapshotMaxFilesValue);
+  }catch(...){
+    snapshotMaxFiles = 100;
+  }
+
+  try{
+    controlPollMillis = stoul(controlPollValue);
+  }catch(...){
+    controlPollMillis = 1000;
+  }
+  if(controlPollMillis==0){
+    controlPollMillis = 1000;
+  }
+
+  // 0 - methods are never disabled
+  try{
+    governorInterval = stoul(governorIntervalValue);
+  }catch(...){
+    governorInterval = 0;
+  }
+  try{
+    governorCallsPerSecond = stoull(governorCallsValue);
+  }catch(...){
+    governorCallsPerSecond = 100000;
+  }
+  try{
+    governorSelfNanos = stoull(governorSelfValue);
+  }catch(...){
+    governorSelfNanos = 500;
+  }
 
   try{
     ticksFrequency = stoi(timerFreq);
@@ -108,16 +373,118 @@ AgentOptions::AgentOptions(string filename){
     ticksFrequency=0;
   }
 
+  if(timerSource.length()==0){
+    timerSource = "monotonic";
+  }
+
+  // false - every probe stays inactive until switched on with Agent.agent_probes
+  if(probesEnabledValue=="false"){
+    probesEnabled = false;
+  } else {
+    probesEnabled = true;
+  }
+
+  // one sampled allocation per this many, 1 - every allocation
+  try{
+    memorySamplingInterval = stoul(memorySamplingValue);
+  }catch(...){
+    memorySamplingInterval = 1024;
+  }
+  if(memorySamplingInterval==0){
+    memorySamplingInterval = 1;
+  }
+  // 0 - sample by count
+  try{
+    memorySamplingBytes = stoull(memorySamplingBytesValue);
+  }catch(...){
+    memorySamplingBytes = 0;
+  }
+
+  // monitor events cost every contended synchronized block, so they are opt-in
+  if(monitorValue=="true"){
+    monitorTracking = true;
+  } else {
+    monitorTracking = false;
+  }
+  if(monitorWaitsValue=="true"){
+    monitorWaits = true;
+  } else {
+    monitorWaits = false;
+  }
+
+  // mount and unmount events come on every park of every virtual thread, they are opt-in
+  if(virtualThreadsValue=="true"){
+    virtualThreads = true;
+  } else {
+    virtualThreads = false;
+  }
+
+  // false - frames unwound by exceptions stay on call stacks until a caller returns
+  if(exceptionsValue=="false"){
+    exceptionTracking = false;
+  } else {
+    exceptionTracking = true;
+  }
+  try{
+    monitorTop = stoul(monitorTopValue);
+  }catch(...){
+    monitorTop = 20;
+  }
+  // holder stacks take a VM operation that pauses threads, 0 never takes them
+  try{
+    monitorHolderSample = stoul(monitorHolderValue);
+  }catch(...){
+    monitorHolderSample = 0;
+  }
+
+  // a histogram is several KB on every node that returns, so they are opt-in
+  if(histogramsValue=="true"){
+    histogramsEnabled = true;
+  } else {
+    histogramsEnabled = false;
+  }
+  // 2^precision buckets per power of two, 3 keeps the error of a percentile below 12.5%
+  try{
+    histogramPrecision = stoul(histogramPrecisionValue);
+  }catch(...){
+    histogramPrecision = 3;
+  }
+  if(histogramPrecision>HISTOGRAM_MAX_PRECISION){
+    histogramPrecision = HISTOGRAM_MAX_PRECISION;
+  }
+
+  // tags sampled objects, so GC has to post ObjectFree for each of them
+  if(liveHeapValue=="true"){
+    liveHeapTracking = true;
+  } else {
+    liveHeapTracking = false;
+  }
+  try{
+    liveHeapReportMillis = stoul(liveHeapReportValue);
+  }catch(...){
+    liveHeapReportMillis = 60000;
+  }
+  // a path is a leak suspect when its live bytes grew in this many reports in a row
+  try{
+    liveHeapGrowthReports = stoul(liveHeapGrowthValue);
+  }catch(...){
+    liveHeapGrowthReports = 3;
+  }
+  if(liveHeapGrowthReports==0){
+    liveHeapGrowthReports = 1;
+  }
+
   if(memtrack=="false"){
     memoryTracking = false;
   } else {
     memoryTracking = true;
   }
 
-  if(memtrackevents=="false"){
-    memoryTrackingEvents = false;
-  } else {
+  // every sample is logged, so it is opt-in
+  if(memtrackevents=="true"){
     memoryTrackingEvents = true;
+  } else {
+    memoryTrackingEvents = false;
   }
 
   if(csvOnExitValue=="false"){
@@ -147,56 +514,17 @@ AgentOptions::AgentOptions(string filename){
     tracingProfiler = new SimpleCallCounterProfiler();
   }else if(tracingProfilerType=="threadcallstack"){
     tracingProfiler = new ThreadCallStackProfiler();
+  }else if(tracingProfilerType=="arena"){
+    tracingProfiler = new ArenaCallCounterProfiler();
+  }else if(tracingProfilerType=="sampling"){
+    tracingProfiler = new SamplingProfiler();
+  }else if(tracingProfilerType=="java"){
+    tracingProfiler = new JavaCallCounterProfiler();
   }
 }
 
-bool matchMask(string value, string regexp){
-  if(regexp.length()<3 || !boost::algorithm::starts_with(regexp, ".*")){
-    return false;
-  }
-  regex e(regexp);
-
-  return regex_match(value, e);
-}
-
 bool AgentOptions::isClassExcluded(const char *klass){
-  string className(klass);
-  boost::algorithm::replace_all<string>(className, "/", ".");
-  bool skip = false;
-
-  for(auto it=includes.begin();it!=includes.end();++it){
-    if (boost::algorithm::starts_with(className, *it) || *it == "*" || matchMask(className, *it)){
-      skip = false;
-      break;
-    } else {
-      if(!skip){
-	skip = true;
-      }
-    }
-  }
-
-  for(auto it=includesIgnore.begin();it!=includesIgnore.end();++it){
-    if(boost::algorithm::starts_with(className, *it)){
-      skip = false;
-      break;
-    }
-  }
-
-  for(auto it=excludes.begin();it!=excludes.end();++it){
-    if (boost::algorithm::starts_with(className, *it) || *it == "*" || matchMask(className, *it)){
-      skip = true;
-      break;
-    }
-  }
-
-  for(auto it=excludesIgnore.begin();it!=excludesIgnore.end();++it){
-    if(boost::algorithm::starts_with(className, *it)){
-      skip = false;
-      break;
-    }
-  }
-
-  return skip;
+  return classFilter.load(memory_order_acquire)->isExcluded(klass);
 }
 
 string AgentOptions::getHelperJar(){
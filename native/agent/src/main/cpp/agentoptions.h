@@ -23,7 +23,9 @@
 #include <boost/program_options.hpp>
 #include <iostream>
 #include <fstream>
+#include <atomic>
 #include "abstracttracingprofiler.h"
+#include "classfilter.h"
 
 using namespace boost::program_options;
 using namespace std;
@@ -43,18 +45,74 @@ public:
   bool isPrintVMEvents();
   bool isPrintInstrumentedClasses();
   bool isCsvOnExit();
+  string getSnapshotOnExit();
+  unsigned int getSnapshotInterval();
+  string getSnapshotDir();
+  unsigned int getSnapshotMaxFiles();
   int getTracingProfilerDepth();
+  unsigned long long getTracingProfilerMaxBytes();
+  string getThreadGroupPattern();
+  int getSamplingInterval();
+  int getBatchSize();
+  int getBatchFlushMillis();
   int getTimerFrequency();
+  string getTimerSource();
+  string getClassCacheDir();
+  string getClassRules();
+  ClassFilter *getClassFilter();
+  // returns the replaced filter, it is never freed as load hooks may still use it
+  ClassFilter *setClassRules(const string &include, const string &includeIgnore, const string &exclude, const string &excludeIgnore);
+  string getControlFile();
+  unsigned int getGovernorInterval();
+  bool isProbesEnabled();
+  unsigned long long getGovernorCallsPerSecond();
+  unsigned long long getGovernorSelfNanos();
+  unsigned int getControlPollMillis();
   bool isMemoryTracking();
   bool isMemoryTrackingEvents();
+  unsigned int getMemorySamplingInterval();
+  unsigned long long getMemorySamplingBytes();
+  bool isLiveHeapTracking();
+  bool isHistogramsEnabled();
+  bool isMonitorTracking();
+  bool isMonitorWaits();
+  unsigned int getMonitorTop();
+  unsigned int getMonitorHolderSample();
+  bool isVirtualThreads();
+  bool isExceptionTracking();
+  unsigned int getHistogramPrecision();
+  unsigned int getLiveHeapReportMillis();
+  unsigned int getLiveHeapGrowthReports();
 private:
   int tracingMaxDepth;
+  unsigned long long tracingMaxBytes;
+  string threadGroupPattern;
+  int samplingInterval;
+  int batchSize;
+  int batchFlushMillis;
   bool printVMEvents;
   bool printInstrumentedClassnames;
   bool profilerPrintOnExit;
   bool csvOnExit;
+  string snapshotOnExit;
+  unsigned int snapshotInterval;
+  string snapshotDir;
+  unsigned int snapshotMaxFiles;
   bool memoryTracking;
   bool memoryTrackingEvents;
+  unsigned int memorySamplingInterval;
+  unsigned long long memorySamplingBytes;
+  bool liveHeapTracking;
+  bool histogramsEnabled;
+  bool monitorTracking;
+  bool monitorWaits;
+  unsigned int monitorTop;
+  unsigned int monitorHolderSample;
+  bool virtualThreads;
+  bool exceptionTracking;
+  unsigned int histogramPrecision;
+  unsigned int liveHeapReportMillis;
+  unsigned int liveHeapGrowthReports;
 
   string agentExclude;
   string agentExcludeIgnore;
@@ -69,7 +127,17 @@ private:
   vector<string> includes;
   vector<string> includesIgnore;
 
+  atomic<ClassFilter*> classFilter;
+  string controlFile;
+  unsigned int controlPollMillis;
+  unsigned int governorInterval;
+  bool probesEnabled;
+  unsigned long long governorCallsPerSecond;
+  unsigned long long governorSelfNanos;
+
   int ticksFrequency;
+  string timerSource;
+  string classCacheDir;
 
   AbstractTracingProfiler *tracingProfiler;
 };
@@ -44,19 +44,19 @@ string AgentRuntime::getEnvVariable(string name)
 }
 
 void AgentRuntime::VmStarted(){
-  vm_started = true;
+  vm_started.store(true, memory_order_release);
 }
 
 void AgentRuntime::VmDead(){
-  vm_dead = true;
+  vm_dead.store(true, memory_order_release);
 }
 
 bool AgentRuntime::isVmStarted(){
-  return vm_started;
+  return vm_started.load(memory_order_acquire);
 }
 
 bool AgentRuntime::isVmDead(){
-  return vm_dead;
+  return vm_dead.load(memory_order_acquire);
 }
 
 void AgentRuntime::agentGlobalLock(){
@@ -67,7 +67,7 @@ void AgentRuntime::agentGlobalLock(){
 }
 
 unsigned long long AgentRuntime::getTicks(){
-    return counter->getCounter();
+    return timeSource->getNanos();
 }
 
 void AgentRuntime::agentGlobalUnlock(){
@@ -101,7 +101,7 @@ void AgentRuntime::logFatal(string message){
     BOOST_LOG_SEV(getLogger(), boost::log::trivial::fatal) << "FATAL " << message;
 }
 
-AgentRuntime::AgentRuntime( jvmtiEnv* jvmti ):jvmti(jvmti),vm_dead(false),vm_started(false) {
+AgentRuntime::AgentRuntime( jvmtiEnv* jvmti ):jvmti(jvmti),vm_dead(false),vm_started(false),counter(nullptr),timeSource(nullptr) {
     auto error = ( jvmti )->CreateRawMonitor ( "agentGlobalLock", & ( lock ) );
 
     JVMTIExitIfError(error, "Cannot create raw monitor" );
@@ -130,6 +130,7 @@ AgentRuntime::AgentRuntime( jvmtiEnv* jvmti ):jvmti(jvmti),vm_dead(false),vm_sta
 
 AgentRuntime::~AgentRuntime()
 {
+    delete timeSource;
     delete counter;
 }
 
@@ -138,9 +139,32 @@ void AgentRuntime::incrementTicks()
     counter->increaseCounter();
 }
 
-void AgentRuntime::initHPET()
+void AgentRuntime::initTimeSource()
 {
-    counter = new TicksCounter(options);
+    string source = options->getTimerSource();
+
+    if(source=="hpet"){
+        counter = new TicksCounter(options);
+        if(counter->isRunning()){
+            timeSource = new HpetTimeSource(counter, options->getTimerFrequency());
+        } else {
+            logWarning("HPET timer is not available, falling back to monotonic clock");
+        }
+    } else if(source=="tsc"){
+        if(TscTimeSource::isAvailable()){
+            timeSource = new TscTimeSource();
+        } else {
+            logWarning("CPU has no invariant TSC, falling back to monotonic clock");
+        }
+    } else if(source=="threadcpu"){
+        timeSource = new ThreadCpuTimeSource();
+    }
+
+    if(timeSource==nullptr){
+        timeSource = new MonotonicTimeSource();
+    }
+
+    logInfo("Time source: " + timeSource->getName());
 }
 
 JavaThreadInfo AgentRuntime::getThreadInfo(jthread thread){
@@ -23,6 +23,7 @@
 #include <stdlib.h>
 #include <jvmti.h>
 #include <string>
+#include <atomic>
 
 #include "javathreadinfo.h"
 #include <sys/types.h>
@@ -38,12 +39,14 @@
 #include <boost/log/sources/severity_logger.hpp>
 #include <boost/log/sources/record_ostream.hpp>
 #include "tickscounter.h"
+#include "timesource.h"
 
 using namespace std;
 
 class AgentOptions;
 
 class TicksCounter;
+class TimeSource;
 
 class AgentRuntime
 {
@@ -74,7 +77,7 @@ public:
 
   AgentOptions *getOptions();
 
-  void initHPET();
+  void initTimeSource();
 
   void logTrace(string message);
   void logDebug(string message);
@@ -94,12 +97,14 @@ private:
   int loadedClasses;
 
   jvmtiEnv *jvmti;
-  bool vm_dead;
-  bool vm_started;
+  // read by class load hooks that run outside of the global lock
+  atomic<bool> vm_dead;
+  atomic<bool> vm_started;
 
   jrawMonitorID lock;
 
   TicksCounter *counter;
+  TimeSource *timeSource;
 };
 
 void  fatal_error(const char * format, ...);
@@ -0,0 +1,105 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "allocationsampler.h"
+#include <iostream>
+#include <vector>
+#include <algorithm>
+#include <boost/format.hpp>
+
+using boost::format;
+
+// estimated bytes and allocations of the current thread since its last sample, bytes mode only
+static thread_local unsigned long long pendingBytes = 0;
+static thread_local unsigned long long pendingCount = 0;
+
+AllocationSampler::AllocationSampler(AgentRuntime *runtime, jvmtiEnv *jvmti):runtime(runtime),jvmti(jvmti){
+  AgentOptions *options = runtime->getOptions();
+  interval = options->getMemorySamplingInterval();
+  bytesInterval = options->getMemorySamplingBytes();
+  events = options->isMemoryTrackingEvents();
+}
+
+unsigned int AllocationSampler::getJavaInterval(){
+  // bytes mode counts down too, a JNI call per allocation costs more than the estimate loses
+  return interval;
+}
+
+string AllocationSampler::getClassName(JNIEnv *env, jobject object){
+  jclass klass = env->GetObjectClass(object);
+  char *signature = nullptr;
+  string result("?");
+  if(jvmti->GetClassSignature(klass, &signature, nullptr)==JVMTI_ERROR_NONE){
+    result = signature;
+    jvmti->Deallocate((unsigned char *)signature);
+  }
+  env->DeleteLocalRef(klass);
+  return result;
+}
+
+bool AllocationSampler::sample(JNIEnv *env, jobject object, AllocationSample &result){
+  jlong size = 0;
+  if(object==nullptr || jvmti->GetObjectSize(object, &size)!=JVMTI_ERROR_NONE){
+    return false;
+  }
+
+  if(bytesInterval>0){
+    pendingBytes += (unsigned long long)size*interval;
+    pendingCount += interval;
+    if(pendingBytes<bytesInterval){
+      return false;
+    }
+    result.count = pendingCount;
+    result.bytes = pendingBytes;
+    pendingBytes = 0;
+    pendingCount = 0;
+  } else {
+    result.count = interval;
+    result.bytes = (unsigned long long)size*interval;
+  }
+
+  string name = getClassName(env, object);
+  if(events){
+    runtime->logDebug((format("Allocated %s of %d bytes") % name % size).str());
+  }
+
+  lock_guard<mutex> guard(classesLock);
+  AllocationTotals &totals = classes[name];
+  totals.count += result.count;
+  totals.bytes += result.bytes;
+  return true;
+}
+
+void AllocationSampler::reset(){
+  lock_guard<mutex> guard(classesLock);
+  classes.clear();
+}
+
+void AllocationSampler::printOnExit(){
+  lock_guard<mutex> guard(classesLock);
+  vector<pair<string, AllocationTotals>> sorted(classes.begin(), classes.end());
+  sort(sorted.begin(), sorted.end(), [](const pair<string, AllocationTotals> &a, const pair<string, AllocationTotals> &b){
+    return a.second.bytes>b.second.bytes;
+  });
+
+  cout << "Allocations by class (estimated from samples): " << sorted.size() << endl;
+  for(auto it=sorted.begin();it!=sorted.end();++it){
+    cout << "\t" << it->first << " count " << it->second.count << " bytes " << it->second.bytes << endl;
+  }
+}
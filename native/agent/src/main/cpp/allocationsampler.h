@@ -0,0 +1,76 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef ALLOCATIONSAMPLER_H
+#define ALLOCATIONSAMPLER_H
+
+#include "agentruntime.h"
+#include <jvmti.h>
+#include <string>
+#include <mutex>
+#include <unordered_map>
+
+using namespace std;
+
+// allocations one sample stands for
+struct AllocationSample final {
+  unsigned long long count;
+  unsigned long long bytes;
+};
+
+struct AllocationTotals final {
+  unsigned long long count=0;
+  unsigned long long bytes=0;
+};
+
+/**
+ * Turns the agent_newobj/agent_newarr hooks into allocation samples.
+ * Agent lets one in memory.sampling.interval allocations through to native
+ * code, each of them stands for that many allocations of its size. With
+ * memory.sampling.bytes those estimates are summed per thread and one is
+ * sampled per that many estimated bytes, weighted with the whole sum since
+ * the previous sample of the thread. Totals are also kept per allocated class.
+ */
+class AllocationSampler final
+{
+public:
+  AllocationSampler(AgentRuntime *runtime, jvmtiEnv *jvmti);
+
+  // the number of allocations Agent counts down before calling native code
+  unsigned int getJavaInterval();
+
+  bool sample(JNIEnv *env, jobject object, AllocationSample &result);
+
+  void reset();
+  void printOnExit();
+
+private:
+  string getClassName(JNIEnv *env, jobject object);
+
+  AgentRuntime *runtime;
+  jvmtiEnv *jvmti;
+  unsigned int interval;
+  unsigned long long bytesInterval;
+  bool events;
+
+  mutex classesLock;
+  unordered_map<string, AllocationTotals> classes;
+};
+
+#endif // ALLOCATIONSAMPLER_H
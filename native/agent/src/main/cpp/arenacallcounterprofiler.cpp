@@ -0,0 +1,339 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "arenacallcounterprofiler.h"
+#include <iostream>
+#include <boost/format.hpp>
+#include "utils.h"
+
+using namespace std;
+using boost::format;
+
+static pthread_key_t key;
+static pthread_once_t key_once = PTHREAD_ONCE_INIT;
+
+static void make_key()
+{
+    (void) pthread_key_create(&key, nullptr);
+}
+
+ThreadCallArena::ThreadCallArena(pthread_t threadId):threadId(threadId){
+  for(int i=0;i<ARENA_MAX_SEGMENTS;i++){
+    segments[i].store(nullptr, memory_order_relaxed);
+  }
+}
+
+ThreadCallArena::~ThreadCallArena(){
+  for(int i=0;i<ARENA_MAX_SEGMENTS;i++){
+    delete[] segments[i].load(memory_order_relaxed);
+  }
+}
+
+ArenaCallSlot *ThreadCallArena::getSlot(unsigned long long index){
+  unsigned long long segment = index >> ARENA_SEGMENT_BITS;
+  if(segment >= ARENA_MAX_SEGMENTS){
+    return nullptr;
+  }
+
+  ArenaCallSlot *slots = segments[segment].load(memory_order_relaxed);
+  if(slots==nullptr){
+    // only the owner thread allocates, readers just need to see zeroed slots
+    slots = new ArenaCallSlot[ARENA_SEGMENT_SIZE]();
+    segments[segment].store(slots, memory_order_release);
+  }
+
+  return &slots[index & (ARENA_SEGMENT_SIZE-1)];
+}
+
+ArenaCallCounterProfiler::ArenaCallCounterProfiler():droppedCalls(0),endedThreads(nullptr){
+}
+
+void ArenaCallCounterProfiler::new_object(jobject obj)
+{
+}
+
+void ArenaCallCounterProfiler::new_array(jobject obj)
+{
+}
+
+void ArenaCallCounterProfiler::methodInstrumented(JavaMethodInfo *info){
+}
+
+ThreadCallArena *ArenaCallCounterProfiler::getCurrentThreadArena(){
+  pthread_once(&key_once, make_key);
+  ThreadCallArena *arena = (ThreadCallArena *)pthread_getspecific(key);
+
+  if(arena==nullptr){
+    // first instrumented call of a thread started before VMInit or attached later
+    arena = new ThreadCallArena(getRuntime()->getCurrentThreadInfo().getProcessTid());
+    pthread_setspecific(key, arena);
+
+    getRuntime()->agentGlobalLock();
+    arenas.push_back(arena);
+    getRuntime()->agentGlobalUnlock();
+  }
+
+  return arena;
+}
+
+ArenaCallSlot *ArenaCallCounterProfiler::getCurrentSlot(int cnum, int mnum){
+  JavaMethodInfo *method = getClasses()->getMethodInfo(cnum, mnum);
+  if(method==nullptr){
+    return nullptr;
+  }
+
+  ArenaCallSlot *slot = getCurrentThreadArena()->getSlot(method->getMethodCounter());
+  if(slot==nullptr){
+    droppedCalls.fetch_add(1, memory_order_relaxed);
+  }
+
+  return slot;
+}
+
+void ArenaCallCounterProfiler::methodEntry(int cnum, int mnum, unsigned long long ticks){
+  ArenaCallSlot *slot = getCurrentSlot(cnum, mnum);
+  if(slot==nullptr){
+    return;
+  }
+
+  slot->ticks_last = ticks;
+  bump(slot->callCount, 1);
+}
+
+void ArenaCallCounterProfiler::methodExit(int cnum, int mnum, unsigned long long ticks){
+  ArenaCallSlot *slot = getCurrentSlot(cnum, mnum);
+  if(slot==nullptr){
+    return;
+  }
+
+  bump(slot->returnCount, 1);
+  bump(slot->ticks_spent, ticks - slot->ticks_last);
+}
+
+void ArenaCallCounterProfiler::threadStarted(jobject thread){
+  // called on the started thread itself, so the arena is registered before its first call
+  getCurrentThreadArena();
+}
+
+void ArenaCallCounterProfiler::threadStopped(jobject thread){
+  pthread_once(&key_once, make_key);
+  ThreadCallArena *arena = (ThreadCallArena *)pthread_getspecific(key);
+  if(arena==nullptr){
+    return;
+  }
+  pthread_setspecific(key, nullptr);
+
+  // the global lock is held
+  for(auto it=arenas.begin();it!=arenas.end();it++){
+    if(*it==arena){
+      arenas.erase(it);
+      break;
+    }
+  }
+  retired.push_back(arena);
+
+  // an export in progress folds it when it is done
+  if(endedLock.try_lock()){
+    vector<ThreadCallArena*> retiring;
+    retiring.swap(retired);
+    foldArenas(retiring);
+    endedLock.unlock();
+  }
+}
+
+vector<ThreadCallArena*> ArenaCallCounterProfiler::lockArenas(){
+  // the same order as thread end and the VM death exports, which come with the global lock held
+  vector<ThreadCallArena*> retiring;
+  getRuntime()->agentGlobalLock();
+  endedLock.lock();
+  vector<ThreadCallArena*> result(arenas);
+  retiring.swap(retired);
+  getRuntime()->agentGlobalUnlock();
+
+  foldArenas(retiring);
+  if(endedThreads!=nullptr){
+    result.push_back(endedThreads);
+  }
+  return result;
+}
+
+void ArenaCallCounterProfiler::foldArenas(vector<ThreadCallArena*> &retiring){
+  if(retiring.empty()){
+    return;
+  }
+  if(endedThreads==nullptr){
+    endedThreads = new ThreadCallArena((pthread_t)ARENA_ENDED_THREADS_ID);
+  }
+
+  unsigned long long methods = getClasses()->getMethodsCount();
+  for(auto it=retiring.begin();it!=retiring.end();it++){
+    (*it)->forEachSlot(methods, [&](unsigned long long index, ArenaCallSlot *slot){
+      unsigned long long calls = slot->callCount.load(memory_order_relaxed);
+      if(calls==0 && slot->reportedCallCount==0){
+        return;
+      }
+      // whoever holds endedLock owns the ended threads arena
+      ArenaCallSlot *target = endedThreads->getSlot(index);
+      bump(target->callCount, calls);
+      bump(target->returnCount, slot->returnCount.load(memory_order_relaxed));
+      bump(target->ticks_spent, slot->ticks_spent.load(memory_order_relaxed));
+      // what delta snapshots already sent for the thread is not sent again
+      target->reportedCallCount += slot->reportedCallCount;
+      target->reportedReturnCount += slot->reportedReturnCount;
+      target->reportedTicks += slot->reportedTicks;
+    });
+    delete *it;
+  }
+  retiring.clear();
+}
+
+void ArenaCallCounterProfiler::printOnExit(){
+  vector<ThreadCallArena*> threadArenas = lockArenas();
+
+  unsigned int calls1 = 0;
+  unsigned long long total = 0;
+  unsigned long long methods = getClasses()->getMethodsCount();
+
+  cout << "Threads " << threadArenas.size() <<endl;
+
+  for(auto it=threadArenas.begin();it!=threadArenas.end();it++){
+    ThreadCallArena *arena = *it;
+    cout << "Thread " << arena->threadId << " " << endl;
+
+    arena->forEachSlot(methods, [&](unsigned long long index, ArenaCallSlot *slot){
+      if(slot->callCount.load(memory_order_relaxed)==0){
+        return;
+      }
+
+      calls1++;
+      total += slot->callCount.load(memory_order_relaxed);
+
+      auto method = getClasses()->getMethodByCounter(index);
+      cout << "\t" << method->getClass()->getName();
+      cout << "#" <<  method->getName()<<method->getSignature() << " calls " << slot->callCount.load(memory_order_relaxed) << " returns "<<slot->returnCount.load(memory_order_relaxed) << " ticks spent "<< slot->ticks_spent.load(memory_order_relaxed) <<endl;
+    });
+  }
+
+  cout << "Threads runned: " << getThreads()->getThreadCount() << endl;
+  cout << "Classes loaded: " << getClasses()->getClassesCount() << endl;
+  cout << "Methods instrumented: " << methods << endl;
+  cout << "Total method used " << calls1 <<endl;
+  cout << "Total calls processed " << total<<endl;
+  cout << "Calls dropped " << droppedCalls.load() <<endl;
+
+  endedLock.unlock();
+}
+
+void ArenaCallCounterProfiler::reset() {
+  vector<ThreadCallArena*> threadArenas = lockArenas();
+
+  unsigned long long methods = getClasses()->getMethodsCount();
+  for(auto it=threadArenas.begin();it!=threadArenas.end();it++){
+    (*it)->forEachSlot(methods, [](unsigned long long index, ArenaCallSlot *slot){
+      slot->callCount.store(0, memory_order_relaxed);
+      slot->returnCount.store(0, memory_order_relaxed);
+      slot->ticks_spent.store(0, memory_order_relaxed);
+    });
+  }
+  droppedCalls.store(0);
+
+  endedLock.unlock();
+}
+
+string ArenaCallCounterProfiler::printCsv(){
+  vector<ThreadCallArena*> threadArenas = lockArenas();
+
+  string result = "threadId;methodName;callCount;returnCount;ticks\r\n";
+  unsigned long long methods = getClasses()->getMethodsCount();
+
+  for(auto it=threadArenas.begin();it!=threadArenas.end();it++){
+    ThreadCallArena *arena = *it;
+
+    arena->forEachSlot(methods, [&](unsigned long long index, ArenaCallSlot *slot){
+      if(slot->callCount.load(memory_order_relaxed)==0){
+        return;
+      }
+
+      auto method = getClasses()->getMethodByCounter(index);
+      string methodName = method->getFQN();
+
+      format line("\"%d\";\"%s\";\"%d\";\"%d\";\"%d\"\r\n");
+      line % arena->threadId % methodName % slot->callCount.load(memory_order_relaxed) % slot->returnCount.load(memory_order_relaxed) % slot->ticks_spent.load(memory_order_relaxed);
+      result.append(line.str());
+    });
+  }
+
+  endedLock.unlock();
+
+  return result;
+}
+
+void ArenaCallCounterProfiler::collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit){
+  vector<ThreadCallArena*> threadArenas = lockArenas();
+
+  unsigned long long methods = getClasses()->getMethodsCount();
+
+  for(auto it=threadArenas.begin();it!=threadArenas.end();it++){
+    (*it)->forEachSlot(methods, [&](unsigned long long index, ArenaCallSlot *slot){
+      unsigned long long calls = slot->callCount.load(memory_order_relaxed);
+      JavaMethodInfo *method = getClasses()->getMethodByCounter(index);
+      if(calls!=0 && method!=nullptr){
+        visit(method, calls, slot->ticks_spent.load(memory_order_relaxed));
+      }
+    });
+  }
+
+  endedLock.unlock();
+}
+
+void ArenaCallCounterProfiler::writeSnapshot(SnapshotWriter &writer){
+  // arenas of threads ending meanwhile are freed only after endedLock is released
+  vector<ThreadCallArena*> threadArenas = lockArenas();
+
+  writer.writeSchema({"callCount", "returnCount", "ticks"});
+
+  unsigned long long methods = getClasses()->getMethodsCount();
+
+  for(auto it=threadArenas.begin();it!=threadArenas.end();it++){
+    ThreadCallArena *arena = *it;
+
+    arena->forEachSlot(methods, [&](unsigned long long index, ArenaCallSlot *slot){
+      unsigned long long calls = slot->callCount.load(memory_order_relaxed);
+      // a reset slot still has to report zeros to a delta, a full snapshot skips it
+      if(calls==0 && (!writer.isDelta() || slot->reportedCallCount==0)){
+        return;
+      }
+
+      unsigned long long fields[3];
+      if(!reportCounters(writer, calls, slot->returnCount.load(memory_order_relaxed), slot->ticks_spent.load(memory_order_relaxed),
+                         slot->reportedCallCount, slot->reportedReturnCount, slot->reportedTicks, fields)){
+        return;
+      }
+
+      writer.writeMethod(index, [&](){
+        return getClasses()->getMethodByCounter(index)->getFQN();
+      });
+
+      // a slot is the method's only node in its thread, the dense counter identifies both
+      writer.writeNode(arena->threadId, index, 0, index, fields, 3);
+    });
+  }
+
+  endedLock.unlock();
+}
@@ -0,0 +1,132 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef ARENACALLCOUNTERPROFILER_H
+#define ARENACALLCOUNTERPROFILER_H
+
+#include "abstracttracingprofiler.h"
+#include "javamethodinfo.h"
+#include <atomic>
+#include <mutex>
+#include <vector>
+#include <string>
+
+using namespace std;
+
+// 1024 methods per segment, 4096 segments per thread: up to 4M instrumented methods
+#define ARENA_SEGMENT_BITS 10
+#define ARENA_SEGMENT_SIZE (1 << ARENA_SEGMENT_BITS)
+#define ARENA_MAX_SEGMENTS 4096
+// thread id the merged counters of ended threads are reported under
+#define ARENA_ENDED_THREADS_ID 0
+
+/**
+ * Counters of one method in one thread. Only the owner thread writes them,
+ * so updates are plain relaxed load/store pairs and never a locked instruction.
+ * Exporters read them with relaxed loads while the owner keeps running.
+ */
+struct ArenaCallSlot final {
+  atomic<unsigned long long> callCount;
+  atomic<unsigned long long> returnCount;
+  atomic<unsigned long long> ticks_spent;
+  unsigned long long ticks_last;
+
+  // values sent in the previous delta snapshot, only the snapshot writer touches them
+  unsigned long long reportedCallCount;
+  unsigned long long reportedReturnCount;
+  unsigned long long reportedTicks;
+};
+
+/**
+ * Flat per-thread table of counters indexed by the dense method counter.
+ * Segments are allocated once on the first call of any method in the segment,
+ * after that methodEntry/methodExit neither lock nor allocate.
+ */
+struct ThreadCallArena final {
+  pthread_t threadId;
+  atomic<ArenaCallSlot*> segments[ARENA_MAX_SEGMENTS];
+
+  ThreadCallArena(pthread_t threadId);
+  ~ThreadCallArena();
+
+  ArenaCallSlot *getSlot(unsigned long long index);
+
+  template<typename Visitor> void forEachSlot(unsigned long long limit, Visitor visit){
+    for(unsigned long long segment=0;segment<ARENA_MAX_SEGMENTS && (segment << ARENA_SEGMENT_BITS)<=limit;segment++){
+      ArenaCallSlot *slots = segments[segment].load(memory_order_acquire);
+      if(slots==nullptr){
+        continue;
+      }
+
+      for(unsigned long long i=0;i<ARENA_SEGMENT_SIZE;i++){
+        unsigned long long index = (segment << ARENA_SEGMENT_BITS) | i;
+        if(index>limit){
+          break;
+        }
+        visit(index, &slots[i]);
+      }
+    }
+  }
+};
+
+/**
+ * Counts calls per method in per-thread arenas. The arena of an ended thread
+ * is added to one shared ended threads arena and freed, exports report it
+ * under thread id 0.
+ */
+class ArenaCallCounterProfiler final : public AbstractTracingProfiler
+{
+public:
+  ArenaCallCounterProfiler();
+  virtual void methodEntry(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void methodExit(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void printOnExit() override;
+
+  virtual void new_object(jobject obj) override;
+  virtual void new_array(jobject obj) override;
+
+  virtual void methodInstrumented(JavaMethodInfo *info) override;
+  virtual void threadStarted(jobject thread);
+  virtual void threadStopped(jobject thread);
+
+  virtual void reset() override final;
+  virtual string printCsv() override final;
+  virtual void writeSnapshot(SnapshotWriter &writer) override final;
+  virtual void collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit) override final;
+
+private:
+  ThreadCallArena *getCurrentThreadArena();
+  ArenaCallSlot *getCurrentSlot(int cnum, int mnum);
+  // takes endedLock, folds the retired arenas and returns the live ones; the caller unlocks endedLock
+  vector<ThreadCallArena*> lockArenas();
+  // adds the counters of ended threads to endedThreads and frees their arenas; endedLock is held
+  void foldArenas(vector<ThreadCallArena*> &retiring);
+
+  atomic<unsigned long long> droppedCalls;
+  // guarded by the global lock
+  vector<ThreadCallArena*> arenas;
+  // arenas of ended threads not yet folded, because an export held endedLock; guarded by the global lock
+  vector<ThreadCallArena*> retired;
+
+  // taken after the global lock and held by exports for their whole walk, ended threads only try it so thread end never waits for an export
+  mutex endedLock;
+  ThreadCallArena *endedThreads;
+};
+
+#endif // ARENACALLCOUNTERPROFILER_H
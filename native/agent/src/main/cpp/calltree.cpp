@@ -0,0 +1,168 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "calltree.h"
+#include "agentruntime.h"
+#include <stdlib.h>
+
+static atomic<unsigned long long> callNodeIds(0);
+
+unsigned long long nextCallNodeId(){
+  // new nodes are rare next to calls, one shared counter is cheap enough
+  return callNodeIds.fetch_add(1, memory_order_relaxed)+1;
+}
+
+CallTreeArena::CallTreeArena(size_t slabSize):slabSize(slabSize),slab(0),offset(0),used(0),largeBytes(0){
+}
+
+CallTreeArena::~CallTreeArena(){
+  for(auto it=slabs.begin();it!=slabs.end();it++){
+    free(*it);
+  }
+  for(auto it=largeBlocks.begin();it!=largeBlocks.end();it++){
+    free(*it);
+  }
+}
+
+void *CallTreeArena::allocate(size_t size){
+  // keep every allocation 16 bytes aligned
+  size = (size + 15) & ~((size_t)15);
+  used += size;
+
+  if(size>slabSize){
+    char *block = (char *)malloc(size);
+    if(block==nullptr){
+      fatal_error("ERROR: Out of malloc memory\n");
+    }
+    largeBlocks.push_back(block);
+    largeBytes += size;
+    return block;
+  }
+
+  if(slabs.empty() || offset+size>slabSize){
+    if(!slabs.empty()){
+      slab++;
+    }
+    if(slab==slabs.size()){
+      char *fresh = (char *)malloc(slabSize);
+      if(fresh==nullptr){
+        fatal_error("ERROR: Out of malloc memory\n");
+      }
+      slabs.push_back(fresh);
+    }
+    offset = 0;
+  }
+
+  void *result = slabs[slab]+offset;
+  offset += size;
+  return result;
+}
+
+void CallTreeArena::rewind(){
+  // large blocks are kept: a stale pointer into them must stay readable
+  slab = 0;
+  offset = 0;
+  used = 0;
+}
+
+void CallTreeArena::swap(CallTreeArena &other){
+  slabs.swap(other.slabs);
+  largeBlocks.swap(other.largeBlocks);
+  std::swap(slab, other.slab);
+  std::swap(offset, other.offset);
+  std::swap(used, other.used);
+  std::swap(largeBytes, other.largeBytes);
+  std::swap(slabSize, other.slabSize);
+}
+
+size_t CallTreeArena::getReservedBytes(){
+  size_t result = slabs.size()*slabSize + largeBytes;
+  return result;
+}
+
+size_t CallTreeArena::getUsedBytes(){
+  return used;
+}
+
+size_t CallTreeArena::getSlabSize(){
+  return slabSize;
+}
+
+CallChildren::CallChildren():table(nullptr){
+  for(int i=0;i<CALL_CHILDREN_INLINE;i++){
+    inlined[i].store(nullptr, memory_order_relaxed);
+  }
+}
+
+void CallChildren::add(CallStatistics *child, CallTreeArena *arena){
+  CallChildTable *t = table.load(memory_order_relaxed);
+
+  if(t==nullptr){
+    for(unsigned int i=0;i<CALL_CHILDREN_INLINE;i++){
+      if(inlined[i].load(memory_order_relaxed)==nullptr){
+        inlined[i].store(child, memory_order_release);
+        return;
+      }
+    }
+  }
+
+  // keep the load factor at or below 1/2 so probe sequences stay short
+  unsigned int n = t==nullptr ? CALL_CHILDREN_INLINE : t->count.load(memory_order_relaxed);
+  if(t==nullptr || (n+1)*2>t->capacity){
+    rehash(t==nullptr ? CALL_CHILDREN_INLINE*4 : t->capacity*2, arena);
+    t = table.load(memory_order_relaxed);
+  }
+
+  atomic<CallStatistics*> *slots = t->slots();
+  unsigned int i = slotOf(child->methodId, t->capacity);
+  while(slots[i].load(memory_order_relaxed)!=nullptr){
+    i = (i+1)&(t->capacity-1);
+  }
+  slots[i].store(child, memory_order_release);
+  t->count.store(n+1, memory_order_release);
+}
+
+void CallChildren::rehash(unsigned int capacity, CallTreeArena *arena){
+  unsigned int power = 1;
+  while(power<capacity){
+    power <<= 1;
+  }
+
+  CallChildTable *fresh = (CallChildTable *)arena->allocate(sizeof(CallChildTable)+power*sizeof(atomic<CallStatistics*>));
+  fresh->capacity = power;
+  atomic<CallStatistics*> *slots = fresh->slots();
+  for(unsigned int i=0;i<power;i++){
+    new (&slots[i]) atomic<CallStatistics*>(nullptr);
+  }
+
+  unsigned int count = 0;
+  auto insert = [&](CallStatistics *child){
+    unsigned int i = slotOf(child->methodId, power);
+    while(slots[i].load(memory_order_relaxed)!=nullptr){
+      i = (i+1)&(power-1);
+    }
+    slots[i].store(child, memory_order_relaxed);
+    count++;
+  };
+  forEach(insert);
+  new (&fresh->count) atomic<unsigned int>(count);
+
+  // the previous table stays in the arena for readers that still hold it
+  table.store(fresh, memory_order_release);
+}
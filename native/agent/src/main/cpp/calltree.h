@@ -0,0 +1,290 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef CALLTREE_H
+#define CALLTREE_H
+
+#include <atomic>
+#include <vector>
+#include <new>
+#include <utility>
+#include <stddef.h>
+#include "latencyhistogram.h"
+
+using namespace std;
+
+#define CALL_TREE_SLAB_SIZE (64*1024)
+// slabs of trees many of which live at once, such as the ones of virtual threads
+#define CALL_TREE_SMALL_SLAB_SIZE (4*1024)
+#define CALL_CHILDREN_INLINE 3
+
+/**
+ * Bump-pointer allocator for call tree nodes of one thread.
+ * Nothing is freed one by one: rewind() starts reusing the slabs from the
+ * beginning and the memory goes back to the system with the arena itself.
+ */
+class CallTreeArena final
+{
+public:
+  CallTreeArena(size_t slabSize=CALL_TREE_SLAB_SIZE);
+  ~CallTreeArena();
+
+  void *allocate(size_t size);
+
+  template<typename T> T *create(){
+    return new (allocate(sizeof(T))) T();
+  }
+
+  void rewind();
+  // exchanges the memory of two arenas, compaction builds a tree in a fresh one and drops the old
+  void swap(CallTreeArena &other);
+  size_t getReservedBytes();
+  size_t getUsedBytes();
+  size_t getSlabSize();
+private:
+  size_t slabSize;
+  vector<char*> slabs;
+  vector<char*> largeBlocks;
+  size_t slab;
+  size_t offset;
+  size_t used;
+  size_t largeBytes;
+};
+
+struct CallStatistics;
+
+unsigned long long nextCallNodeId();
+
+// method id of the node that sums up subtrees folded by compaction
+#define CALL_NODE_OTHER 0xFFFFFFFFFFFFFFFFULL
+#define CALL_NODE_OTHER_NAME "(other)"
+
+// node ids fill the bits of a word that level leaves
+#define CALL_NODE_LEVEL_BITS 16
+#define CALL_NODE_MAX_LEVEL ((1U<<CALL_NODE_LEVEL_BITS)-1)
+
+/**
+ * Open addressing table of children, allocated from the arena when a node
+ * outgrows its inline slots.
+ */
+struct CallChildTable final {
+  unsigned int capacity;
+  // kept at or below half of capacity
+  atomic<unsigned int> count;
+
+  atomic<CallStatistics*> *slots(){
+    return reinterpret_cast<atomic<CallStatistics*>*>(this+1);
+  }
+};
+
+/**
+ * Children of a call tree node. Up to CALL_CHILDREN_INLINE children live in
+ * the node itself and are searched linearly, larger sets are promoted to a
+ * CallChildTable. Only the owner thread adds children; writes are published
+ * with release stores, so exporters may walk the tree at the same time.
+ */
+class CallChildren final
+{
+public:
+  CallChildren();
+
+  inline CallStatistics *find(unsigned long long methodId);
+  void add(CallStatistics *child, CallTreeArena *arena);
+  unsigned int size(){
+    CallChildTable *t = table.load(memory_order_acquire);
+    if(t!=nullptr){
+      return t->count.load(memory_order_acquire);
+    }
+    unsigned int n = 0;
+    while(n<CALL_CHILDREN_INLINE && inlined[n].load(memory_order_acquire)!=nullptr){
+      n++;
+    }
+    return n;
+  }
+
+  template<typename Visitor> void forEach(Visitor visit){
+    CallChildTable *t = table.load(memory_order_acquire);
+    if(t!=nullptr){
+      atomic<CallStatistics*> *slots = t->slots();
+      for(unsigned int i=0;i<t->capacity;i++){
+        CallStatistics *child = slots[i].load(memory_order_acquire);
+        if(child!=nullptr){
+          visit(child);
+        }
+      }
+      return;
+    }
+
+    for(unsigned int i=0;i<CALL_CHILDREN_INLINE;i++){
+      CallStatistics *child = inlined[i].load(memory_order_acquire);
+      if(child==nullptr){
+        return;
+      }
+      visit(child);
+    }
+  }
+
+  static unsigned int slotOf(unsigned long long methodId, unsigned int capacity){
+    unsigned long long h = methodId * 0x9E3779B97F4A7C15ULL;
+    return (unsigned int)(h ^ (h >> 32)) & (capacity-1);
+  }
+private:
+  void rehash(unsigned int capacity, CallTreeArena *arena);
+
+  // filled in order, the first empty slot ends the inline children
+  atomic<CallStatistics*> inlined[CALL_CHILDREN_INLINE];
+  atomic<CallChildTable*> table;
+};
+
+/**
+ * Adds delta to a counter only its owner thread writes: a relaxed load and
+ * store instead of a locked read-modify-write, readers see a torn-free value.
+ */
+template<typename T, typename D> inline void bump(atomic<T> &value, D delta){
+  value.store(value.load(memory_order_relaxed) + delta, memory_order_relaxed);
+}
+
+/**
+ * Counters of a node that only some options fill. The owner thread creates
+ * them in its arena the first time one of them changes, most nodes never get them.
+ */
+struct CallStatisticsExtra final {
+  // sampled allocations made while the node was on top of the stack, scaled to estimates
+  atomic<unsigned long long> allocCount{0};
+  atomic<unsigned long long> allocBytes{0};
+  // latencies of returns, created by the owner thread on the first one when histogram.enabled
+  atomic<HistogramCounter*> histogram{nullptr};
+  atomic<unsigned long long> maxTicks{0};
+  // time the thread was blocked on monitors while the node was on top of the stack
+  atomic<unsigned long long> blockedTicks{0};
+  // entry time of the flat profilers' last call, only the owner thread reads it
+  unsigned long long ticks_last=0;
+};
+
+/**
+ * A call tree node, laid out to fit 80 bytes: millions of them live at once.
+ * Values delta snapshots sent last time are kept by the profiler, keyed by nodeId.
+ */
+struct CallStatistics final {
+  atomic<unsigned long long> callCount{0};
+  atomic<unsigned long long> returnCount{0};
+  atomic<unsigned long long> ticks_spent{0};
+  unsigned long long methodId=0;
+  // unique for the whole agent run, delta snapshots match nodes by it
+  unsigned long long nodeId:64-CALL_NODE_LEVEL_BITS;
+  // depth below the root, deeper nodes all get CALL_NODE_MAX_LEVEL
+  unsigned long long level:CALL_NODE_LEVEL_BITS;
+  atomic<CallStatisticsExtra*> extra{nullptr};
+  CallChildren childs;
+
+  CallStatistics():nodeId(nextCallNodeId()),level(1){}
+
+  // readers: nullptr until the owner thread first needed the extra counters
+  CallStatisticsExtra *findExtra(){
+    return extra.load(memory_order_acquire);
+  }
+
+  // the owner thread: the extra counters, created in arena on first use
+  CallStatisticsExtra *getExtra(CallTreeArena *arena){
+    CallStatisticsExtra *result = extra.load(memory_order_relaxed);
+    if(result==nullptr){
+      result = arena->create<CallStatisticsExtra>();
+      extra.store(result, memory_order_release);
+    }
+    return result;
+  }
+
+  void setLevel(unsigned int parentLevel){
+    level = parentLevel<CALL_NODE_MAX_LEVEL ? parentLevel+1 : CALL_NODE_MAX_LEVEL;
+  }
+};
+
+static_assert(sizeof(CallStatistics)<=80, "call tree nodes must stay within 80 bytes");
+
+/**
+ * Pre-order walk below root without recursion, so the depth of a tree is not
+ * limited by the stack of the exporting thread. visit(node, parentId) returns
+ * the id the node's own children get as parentId; root's children get 0.
+ */
+template<typename Visitor> void walkCallTree(CallStatistics &root, Visitor visit){
+  vector<pair<CallStatistics*, unsigned long long>> pending;
+  root.childs.forEach([&](CallStatistics *child){
+    pending.push_back(make_pair(child, 0ULL));
+  });
+
+  while(!pending.empty()){
+    CallStatistics *node = pending.back().first;
+    unsigned long long parentId = pending.back().second;
+    pending.pop_back();
+
+    unsigned long long id = visit(node, parentId);
+    node->childs.forEach([&](CallStatistics *child){
+      pending.push_back(make_pair(child, id));
+    });
+  }
+}
+
+/**
+ * The same walk, but visit(node, path) also gets the chain of ancestors from
+ * the root's child down to the node's parent.
+ */
+template<typename Visitor> void walkCallTreePaths(CallStatistics &root, Visitor visit){
+  vector<pair<CallStatistics*, unsigned int>> pending;
+  vector<CallStatistics*> path;
+  root.childs.forEach([&](CallStatistics *child){
+    pending.push_back(make_pair(child, 0U));
+  });
+
+  while(!pending.empty()){
+    CallStatistics *node = pending.back().first;
+    unsigned int depth = pending.back().second;
+    pending.pop_back();
+
+    path.resize(depth);
+    visit(node, path);
+    path.push_back(node);
+
+    node->childs.forEach([&](CallStatistics *child){
+      pending.push_back(make_pair(child, depth+1));
+    });
+  }
+}
+
+inline CallStatistics *CallChildren::find(unsigned long long methodId){
+  CallChildTable *t = table.load(memory_order_acquire);
+  if(t==nullptr){
+    for(unsigned int i=0;i<CALL_CHILDREN_INLINE;i++){
+      CallStatistics *child = inlined[i].load(memory_order_relaxed);
+      if(child==nullptr || child->methodId==methodId){
+        return child;
+      }
+    }
+    return nullptr;
+  }
+
+  atomic<CallStatistics*> *slots = t->slots();
+  for(unsigned int i=slotOf(methodId, t->capacity);;i=(i+1)&(t->capacity-1)){
+    CallStatistics *child = slots[i].load(memory_order_relaxed);
+    if(child==nullptr || child->methodId==methodId){
+      return child;
+    }
+  }
+}
+
+#endif // CALLTREE_H
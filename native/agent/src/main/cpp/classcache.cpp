@@ -0,0 +1,322 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "classcache.h"
+#include "utils.h"
+#include <fcntl.h>
+#include <unistd.h>
+#include <string.h>
+#include <errno.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <boost/format.hpp>
+
+using boost::format;
+
+// records are 8 bytes aligned so the header of each can be read in place
+static inline size_t align8(size_t value){
+  return (value+7) & ~((size_t)7);
+}
+
+ClassCache::ClassCache(const string &dir, const string &salt):mapped(nullptr),mappedLength(0),tempFd(-1),closed(false),hits(0),misses(0){
+  path = dir + "/" + CLASS_CACHE_FILE;
+  tempPath = (format("%s.%d.tmp") % path % getpid()).str();
+
+  // a rebuilt agent may rewrite classes differently
+  string stamp = salt + "|" __DATE__ " " __TIME__;
+  fingerprint = Utils::hash64(stamp.data(), stamp.length(), 0);
+
+  open();
+}
+
+ClassCache::~ClassCache(){
+  if(mapped!=nullptr){
+    munmap((void *)mapped, mappedLength);
+  }
+}
+
+void ClassCache::open(){
+  int fd = ::open(path.c_str(), O_RDONLY);
+  if(fd<0){
+    return;
+  }
+
+  struct stat info;
+  if(fstat(fd, &info)!=0 || (size_t)info.st_size<16){
+    ::close(fd);
+    return;
+  }
+
+  void *data = mmap(nullptr, info.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+  ::close(fd);
+  if(data==MAP_FAILED){
+    return;
+  }
+
+  mapped = (const char *)data;
+  mappedLength = info.st_size;
+
+  if(memcmp(mapped, CLASS_CACHE_MAGIC, 8)!=0 || *(const unsigned long long *)(mapped+8)!=fingerprint){
+    return;
+  }
+
+  // count first, MappedEntry holds an atomic and can not be moved once indexed
+  size_t count = 0;
+  for(size_t offset=16;offset+sizeof(ClassCacheRecord)<=mappedLength;count++){
+    const ClassCacheRecord *record = (const ClassCacheRecord *)(mapped+offset);
+    size_t next = align8(offset+sizeof(ClassCacheRecord)+(size_t)record->imageLength+record->namesLength);
+    if(next>mappedLength){
+      // a torn write, keep what was complete
+      break;
+    }
+    offset = next;
+  }
+
+  entries = vector<MappedEntry>(count);
+  size_t offset = 16;
+  for(size_t i=0;i<count;i++){
+    const ClassCacheRecord *record = (const ClassCacheRecord *)(mapped+offset);
+    entries[i].record = record;
+    entries[i].used.store(false, memory_order_relaxed);
+    index[record->key] = i;
+    offset = align8(offset+sizeof(ClassCacheRecord)+(size_t)record->imageLength+record->namesLength);
+  }
+}
+
+ClassCacheKey ClassCache::makeKey(int systemClass, const unsigned char *data, int length){
+  ClassCacheKey key;
+  memset(&key, 0, sizeof(key));
+  key.hash = Utils::hash64(data, length, 0);
+  key.check = Utils::hash64(data, length, 0x9e3779b97f4a7c15ULL);
+  key.length = length;
+  key.systemClass = systemClass;
+  return key;
+}
+
+static inline unsigned int readU2(const unsigned char *data){
+  return (data[0]<<8) | data[1];
+}
+
+static inline unsigned int readU4(const unsigned char *data){
+  return ((unsigned int)data[0]<<24) | (data[1]<<16) | (data[2]<<8) | data[3];
+}
+
+unsigned int ClassCache::findClassNumber(const unsigned char *data, int length, const unsigned char *image, unsigned int imageLength, unsigned int cnum){
+  if(length<10 || imageLength<10){
+    return 0;
+  }
+
+  // java_crw_demo appends its constants after the ones of the class
+  unsigned int originalCount = readU2(data+8);
+  unsigned int count = readU2(image+8);
+  unsigned int found = 0;
+  size_t offset = 10;
+  for(unsigned int index=1;index<count;index++){
+    if(offset>=imageLength){
+      return 0;
+    }
+
+    size_t size;
+    switch(image[offset]){
+      case 1: // Utf8
+        if(offset+3>imageLength){
+          return 0;
+        }
+        size = 3 + readU2(image+offset+1);
+        break;
+      case 3: // Integer
+        if(offset+5<=imageLength && index>=originalCount && readU4(image+offset+1)==cnum){
+          if(found!=0){
+            return 0;
+          }
+          found = offset+1;
+        }
+        size = 5;
+        break;
+      case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+        size = 5;
+        break;
+      case 5: case 6: // Long and Double take two entries
+        size = 9;
+        index++;
+        break;
+      case 7: case 8: case 16: case 19: case 20:
+        size = 3;
+        break;
+      case 15:
+        size = 4;
+        break;
+      default:
+        return 0;
+    }
+    offset += size;
+  }
+
+  return found;
+}
+
+void ClassCache::patchClassNumber(unsigned char *image, unsigned int cnumOffset, unsigned int cnum){
+  image[cnumOffset] = (unsigned char)(cnum>>24);
+  image[cnumOffset+1] = (unsigned char)(cnum>>16);
+  image[cnumOffset+2] = (unsigned char)(cnum>>8);
+  image[cnumOffset+3] = (unsigned char)cnum;
+}
+
+bool ClassCache::find(const ClassCacheKey &key, ClassCacheHit &hit){
+  auto it = index.find(key);
+  if(it==index.end()){
+    misses++;
+    return false;
+  }
+
+  MappedEntry &entry = entries[it->second];
+  const ClassCacheRecord *record = entry.record;
+  const char *names = (const char *)(record+1) + record->imageLength;
+  const char *end = names + record->namesLength;
+
+  hit.names.clear();
+  hit.signatures.clear();
+  for(unsigned int i=0;i<record->methodCount;i++){
+    const char *name = names;
+    const char *signature = name + strnlen(name, end-name) + 1;
+    if(signature>=end){
+      misses++;
+      return false;
+    }
+    names = signature + strnlen(signature, end-signature) + 1;
+    if(names>end){
+      misses++;
+      return false;
+    }
+    hit.names.push_back(name);
+    hit.signatures.push_back(signature);
+  }
+
+  hit.image = (const unsigned char *)(record+1);
+  hit.imageLength = record->imageLength;
+  hit.cnumOffset = record->cnumOffset;
+  entry.used.store(true, memory_order_relaxed);
+  hits++;
+  return true;
+}
+
+bool ClassCache::write(int fd, const void *data, size_t length){
+  const char *current = (const char *)data;
+  while(length>0){
+    ssize_t written = ::write(fd, current, length);
+    if(written<0){
+      if(errno==EINTR){
+        continue;
+      }
+      return false;
+    }
+    current += written;
+    length -= written;
+  }
+  return true;
+}
+
+bool ClassCache::writeRecord(int fd, const ClassCacheRecord &record, const void *image, const void *names){
+  static const char padding[8] = {0};
+  size_t length = sizeof(ClassCacheRecord)+(size_t)record.imageLength+record.namesLength;
+
+  return write(fd, &record, sizeof(ClassCacheRecord))
+      && write(fd, image, record.imageLength)
+      && write(fd, names, record.namesLength)
+      && write(fd, padding, align8(length)-length);
+}
+
+void ClassCache::store(const ClassCacheKey &key, const unsigned char *image, unsigned int imageLength, unsigned int cnumOffset, const char **names, const char **signatures, int count){
+  if(imageLength>0 && cnumOffset==0){
+    // the image could not be reused under another class number
+    return;
+  }
+
+  string table;
+  for(int i=0;i<count;i++){
+    table.append(names[i]).push_back(0);
+    table.append(signatures[i]).push_back(0);
+  }
+
+  ClassCacheRecord record;
+  memset(&record, 0, sizeof(record));
+  record.key = key;
+  record.imageLength = imageLength;
+  record.methodCount = count;
+  record.namesLength = table.length();
+  record.cnumOffset = cnumOffset;
+
+  lock_guard<mutex> guard(writeLock);
+  if(closed){
+    return;
+  }
+
+  if(tempFd<0){
+    tempFd = ::open(tempPath.c_str(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    if(tempFd<0){
+      closed = true;
+      return;
+    }
+    if(!write(tempFd, CLASS_CACHE_MAGIC, 8) || !write(tempFd, &fingerprint, 8)){
+      closed = true;
+      return;
+    }
+  }
+
+  if(!writeRecord(tempFd, record, image, table.data())){
+    // the cache is an optimization only, stop writing it
+    closed = true;
+  }
+}
+
+void ClassCache::close(){
+  lock_guard<mutex> guard(writeLock);
+  bool failed = closed;
+  closed = true;
+
+  if(tempFd<0){
+    // nothing new was rewritten, the mapped file is still complete
+    return;
+  }
+
+  for(auto it=entries.begin();it!=entries.end() && !failed;++it){
+    if(!it->used.load(memory_order_relaxed)){
+      continue;
+    }
+    const ClassCacheRecord *record = it->record;
+    failed = !writeRecord(tempFd, *record, record+1, (const char *)(record+1) + record->imageLength);
+  }
+
+  if(::close(tempFd)!=0){
+    failed = true;
+  }
+  tempFd = -1;
+
+  if(failed || rename(tempPath.c_str(), path.c_str())!=0){
+    unlink(tempPath.c_str());
+  }
+}
+
+unsigned long long ClassCache::getHits(){
+  return hits.load();
+}
+
+unsigned long long ClassCache::getMisses(){
+  return misses.load();
+}
@@ -0,0 +1,130 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef CLASSCACHE_H
+#define CLASSCACHE_H
+
+#include <string>
+#include <vector>
+#include <atomic>
+#include <mutex>
+#include <unordered_map>
+
+using namespace std;
+
+#define CLASS_CACHE_MAGIC "BONDCLS1"
+#define CLASS_CACHE_FILE  "bond-classes.cache"
+
+/**
+ * Identity of a rewritten class image: two independent hashes and the
+ * length of the original class bytes and the system class flag. The class
+ * rules are in the fingerprint of the file. The class number is not part of
+ * the key, it differs from run to run; the image records where it is and
+ * find() callers patch the number of this run in.
+ */
+struct ClassCacheKey final {
+  unsigned long long hash;
+  unsigned long long check;
+  unsigned int length;
+  unsigned int systemClass;
+
+  bool operator==(const ClassCacheKey &other) const {
+    return hash==other.hash && check==other.check && length==other.length && systemClass==other.systemClass;
+  }
+};
+
+struct ClassCacheKeyHash final {
+  size_t operator()(const ClassCacheKey &key) const {
+    return (size_t)(key.hash ^ key.check);
+  }
+};
+
+// layout of an entry in the cache file, image and method names follow it
+struct ClassCacheRecord final {
+  ClassCacheKey key;
+  unsigned int imageLength;
+  unsigned int methodCount;
+  unsigned int namesLength;
+  // of the CONSTANT_Integer value holding the class number, 0 when the image is empty
+  unsigned int cnumOffset;
+};
+
+// a cached image and the method table mnum_callbacks got for it, points into the mapped file
+struct ClassCacheHit final {
+  const unsigned char *image;
+  unsigned int imageLength;
+  unsigned int cnumOffset;
+  vector<const char *> names;
+  vector<const char *> signatures;
+};
+
+/**
+ * On-disk cache of class images rewritten by java_crw_demo. The cache file
+ * of the previous run is memory mapped read-only at start and looked up
+ * without locks. Images rewritten in this run are appended to a temporary
+ * file, close() adds the previous entries that were used again and renames
+ * the result over the cache file, so entries of classes that are gone are
+ * dropped. A file written with other class rules or by another agent build
+ * is ignored.
+ */
+class ClassCache final
+{
+public:
+  ClassCache(const string &dir, const string &salt);
+  ~ClassCache();
+
+  static ClassCacheKey makeKey(int systemClass, const unsigned char *data, int length);
+  // offset of the class number constant java_crw_demo added to image with pool_class_number, 0 when it is not found exactly once
+  static unsigned int findClassNumber(const unsigned char *data, int length, const unsigned char *image, unsigned int imageLength, unsigned int cnum);
+  static void patchClassNumber(unsigned char *image, unsigned int cnumOffset, unsigned int cnum);
+
+  bool find(const ClassCacheKey &key, ClassCacheHit &hit);
+  void store(const ClassCacheKey &key, const unsigned char *image, unsigned int imageLength, unsigned int cnumOffset, const char **names, const char **signatures, int count);
+  void close();
+
+  unsigned long long getHits();
+  unsigned long long getMisses();
+private:
+  struct MappedEntry {
+    const ClassCacheRecord *record;
+    atomic<bool> used;
+  };
+
+  void open();
+  bool write(int fd, const void *data, size_t length);
+  bool writeRecord(int fd, const ClassCacheRecord &record, const void *image, const void *names);
+
+  string path;
+  string tempPath;
+  unsigned long long fingerprint;
+
+  const char *mapped;
+  size_t mappedLength;
+  vector<MappedEntry> entries;
+  unordered_map<ClassCacheKey, size_t, ClassCacheKeyHash> index;
+
+  mutex writeLock;
+  int tempFd;
+  bool closed;
+
+  atomic<unsigned long long> hits;
+  atomic<unsigned long long> misses;
+};
+
+#endif // CLASSCACHE_H
@@ -0,0 +1,191 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "classfilter.h"
+#include <string.h>
+#include <boost/algorithm/string.hpp>
+
+ClassPrefixTrie::ClassPrefixTrie():root(new Node()),empty(true){
+}
+
+void ClassPrefixTrie::add(const string &prefix){
+  Node *node = root.get();
+  for(char c : prefix){
+    // class names arrive in internal form, rules are written with dots
+    if(c=='.'){
+      c = '/';
+    }
+    unique_ptr<Node> &child = node->children[c];
+    if(!child){
+      child.reset(new Node());
+    }
+    node = child.get();
+  }
+  node->terminal = true;
+  empty = false;
+  markPackages(root.get());
+}
+
+void ClassPrefixTrie::markPackages(Node *node){
+  node->terminalInPackage = false;
+  for(auto it=node->children.begin();it!=node->children.end();++it){
+    Node *child = it->second.get();
+    markPackages(child);
+    if(it->first!='/' && (child->terminal || child->terminalInPackage)){
+      node->terminalInPackage = true;
+    }
+  }
+}
+
+bool ClassPrefixTrie::match(const char *name, size_t packageLength, bool &classSpecific) const{
+  const Node *node = root.get();
+  for(size_t i=0;;i++){
+    if(node->terminal){
+      return true;
+    }
+    if(i==packageLength && node->terminalInPackage){
+      classSpecific = true;
+    }
+    if(name[i]==0){
+      return false;
+    }
+    auto child = node->children.find(name[i]);
+    if(child==node->children.end()){
+      return false;
+    }
+    node = child->second.get();
+  }
+}
+
+bool ClassPrefixTrie::isEmpty() const{
+  return empty;
+}
+
+ClassFilterRules::ClassFilterRules(const vector<string> &patterns, bool allowMasks):all(false),masked(false){
+  string expression;
+  for(auto it=patterns.begin();it!=patterns.end();++it){
+    if(allowMasks && *it=="*"){
+      all = true;
+    } else if(allowMasks && it->length()>=3 && boost::algorithm::starts_with(*it, ".*")){
+      expression.append(masked ? "|(?:" : "(?:").append(*it).append(")");
+      masked = true;
+    } else {
+      prefixes.add(*it);
+    }
+  }
+
+  if(masked){
+    masks.assign(expression, regex::ECMAScript|regex::optimize);
+  }
+}
+
+bool ClassFilterRules::isEmpty() const{
+  return !all && !masked && prefixes.isEmpty();
+}
+
+bool ClassFilterRules::hasMasks() const{
+  return masked;
+}
+
+bool ClassFilterRules::matchPrefix(const char *name, size_t packageLength, bool &classSpecific) const{
+  return all || prefixes.match(name, packageLength, classSpecific);
+}
+
+bool ClassFilterRules::matchMask(const string &dottedName) const{
+  return masked && regex_match(dottedName, masks);
+}
+
+ClassFilter::ClassFilter(const vector<string> &includes, const vector<string> &includesIgnore,
+                         const vector<string> &excludes, const vector<string> &excludesIgnore):
+  includes(includes, true),includesIgnore(includesIgnore, false),excludes(excludes, true),excludesIgnore(excludesIgnore, false){
+}
+
+unsigned int ClassFilter::matchPrefixes(const char *klass, size_t packageLength, bool &classSpecific){
+  unsigned int result = 0;
+  if(includes.matchPrefix(klass, packageLength, classSpecific)){
+    result |= INCLUDED;
+  }
+  if(includesIgnore.matchPrefix(klass, packageLength, classSpecific)){
+    result |= INCLUDE_IGNORED;
+  }
+  if(excludes.matchPrefix(klass, packageLength, classSpecific)){
+    result |= EXCLUDED;
+  }
+  if(excludesIgnore.matchPrefix(klass, packageLength, classSpecific)){
+    result |= EXCLUDE_IGNORED;
+  }
+  return result;
+}
+
+unsigned int ClassFilter::matchMasks(const char *klass){
+  if(!includes.hasMasks() && !excludes.hasMasks()){
+    return 0;
+  }
+
+  string className(klass);
+  boost::algorithm::replace_all<string>(className, "/", ".");
+
+  unsigned int result = 0;
+  if(includes.matchMask(className)){
+    result |= INCLUDED;
+  }
+  if(excludes.matchMask(className)){
+    result |= EXCLUDED;
+  }
+  return result;
+}
+
+bool ClassFilter::isExcluded(const char *klass){
+  const char *slash = strrchr(klass, '/');
+  size_t packageLength = slash==nullptr ? 0 : slash-klass+1;
+  string package(klass, packageLength);
+
+  unsigned int matched;
+  bool cached = false;
+  {
+    lock_guard<mutex> guard(packagesLock);
+    auto it = packages.find(package);
+    if(it!=packages.end()){
+      matched = it->second;
+      cached = true;
+    }
+  }
+
+  if(!cached){
+    bool classSpecific = false;
+    matched = matchPrefixes(klass, packageLength, classSpecific);
+    if(!classSpecific){
+      lock_guard<mutex> guard(packagesLock);
+      packages[package] = matched;
+    }
+  }
+  matched |= matchMasks(klass);
+
+  // same precedence as the rule lists were always applied in
+  if(matched & EXCLUDE_IGNORED){
+    return false;
+  }
+  if(matched & EXCLUDED){
+    return true;
+  }
+  if(matched & INCLUDE_IGNORED){
+    return false;
+  }
+  return !includes.isEmpty() && !(matched & INCLUDED);
+}
@@ -0,0 +1,110 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef CLASSFILTER_H
+#define CLASSFILTER_H
+
+#include <string>
+#include <vector>
+#include <memory>
+#include <regex>
+#include <mutex>
+#include <unordered_map>
+
+using namespace std;
+
+/**
+ * Prefix trie over slash-form class names. A name matches when any
+ * pattern is a prefix of it.
+ */
+class ClassPrefixTrie final
+{
+public:
+  ClassPrefixTrie();
+  void add(const string &prefix);
+  // prefix: the name is matched by some pattern, classSpecific: a pattern
+  // ends after the package part, so other classes of the package may differ
+  bool match(const char *name, size_t packageLength, bool &classSpecific) const;
+  bool isEmpty() const;
+private:
+  struct Node {
+    bool terminal = false;
+    // a terminal is reachable from here without crossing a '/'
+    bool terminalInPackage = false;
+    unordered_map<char, unique_ptr<Node>> children;
+  };
+  static void markPackages(Node *node);
+
+  unique_ptr<Node> root;
+  bool empty;
+};
+
+/**
+ * One rule list of agent.include, agent.exclude or their .ignore
+ * counterparts: plain package or class prefixes, and for the include and
+ * exclude lists also "*" and masks starting with ".*" that are regular
+ * expressions over the dotted class name.
+ */
+class ClassFilterRules final
+{
+public:
+  ClassFilterRules(const vector<string> &patterns, bool allowMasks);
+  bool isEmpty() const;
+  bool hasMasks() const;
+  bool matchPrefix(const char *name, size_t packageLength, bool &classSpecific) const;
+  bool matchMask(const string &dottedName) const;
+private:
+  ClassPrefixTrie prefixes;
+  bool all;
+  bool masked;
+  regex masks;
+};
+
+/**
+ * Compiled agent.include/agent.exclude rules. Matching works on the internal
+ * name as passed to ClassFileLoadHook, and decisions that only depend on
+ * the package are remembered per package.
+ */
+class ClassFilter final
+{
+public:
+  ClassFilter(const vector<string> &includes, const vector<string> &includesIgnore,
+              const vector<string> &excludes, const vector<string> &excludesIgnore);
+  bool isExcluded(const char *klass);
+private:
+  enum {
+    INCLUDED = 1,
+    INCLUDE_IGNORED = 2,
+    EXCLUDED = 4,
+    EXCLUDE_IGNORED = 8
+  };
+
+  unsigned int matchPrefixes(const char *klass, size_t packageLength, bool &classSpecific);
+  unsigned int matchMasks(const char *klass);
+
+  ClassFilterRules includes;
+  ClassFilterRules includesIgnore;
+  ClassFilterRules excludes;
+  ClassFilterRules excludesIgnore;
+
+  mutex packagesLock;
+  unordered_map<string, unsigned int> packages;
+};
+
+#endif // CLASSFILTER_H
@@ -0,0 +1,336 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "javacallcounterprofiler.h"
+#include <iostream>
+#include <vector>
+#include <boost/format.hpp>
+#include "utils.h"
+
+using namespace std;
+using boost::format;
+
+#define Agent_counting_field  "counting"
+#define Agent_counters_field  "counters"
+#define Agent_registered_field  "registered"
+#define Agent_counters_class  "Agent$Counters"
+
+JavaCallCounterProfiler::JavaCallCounterProfiler():vm(nullptr),agentClass(nullptr),countersField(nullptr),registeredField(nullptr),threadField(nullptr),idField(nullptr),methodsField(nullptr),getIdMethod(nullptr),isAliveMethod(nullptr),getReferentMethod(nullptr){
+}
+
+void JavaCallCounterProfiler::methodEntry(int cnum, int mnum, unsigned long long ticks){
+}
+
+void JavaCallCounterProfiler::methodExit(int cnum, int mnum, unsigned long long ticks){
+}
+
+void JavaCallCounterProfiler::new_object(jobject obj){
+}
+
+void JavaCallCounterProfiler::new_array(jobject obj){
+}
+
+void JavaCallCounterProfiler::methodInstrumented(JavaMethodInfo *info){
+}
+
+void JavaCallCounterProfiler::threadStarted(jobject thread){
+}
+
+void JavaCallCounterProfiler::threadStopped(jobject thread){
+}
+
+void JavaCallCounterProfiler::vmStarted(jvmtiEnv *jvmti, JNIEnv *env, jclass agent){
+  if(env->GetJavaVM(&vm)!=JNI_OK){
+    fatal_error("ERROR: JNI: Cannot get JavaVM\n");
+  }
+
+  agentClass = (jclass)env->NewGlobalRef(agent);
+  countersField = env->GetStaticFieldID(agent, Agent_counters_field, "[L" Agent_counters_class ";");
+  registeredField = env->GetStaticFieldID(agent, Agent_registered_field, "I");
+
+  jclass counters = env->FindClass(Agent_counters_class);
+  if(counters==nullptr || countersField==nullptr || registeredField==nullptr){
+    fatal_error("ERROR: JNI: Cannot find %s\n", Agent_counters_class);
+  }
+  threadField = env->GetFieldID(counters, "thread", "Ljava/lang/ref/WeakReference;");
+  idField = env->GetFieldID(counters, "id", "J");
+  methodsField = env->GetFieldID(counters, "methods", "[[J");
+  env->DeleteLocalRef(counters);
+
+  jclass thread = env->FindClass("java/lang/Thread");
+  getIdMethod = env->GetMethodID(thread, "getId", "()J");
+  isAliveMethod = env->GetMethodID(thread, "isAlive", "()Z");
+  env->DeleteLocalRef(thread);
+
+  jclass reference = env->FindClass("java/lang/ref/Reference");
+  getReferentMethod = env->GetMethodID(reference, "get", "()Ljava/lang/Object;");
+  env->DeleteLocalRef(reference);
+
+  jfieldID counting = env->GetStaticFieldID(agent, Agent_counting_field, "I");
+  if(threadField==nullptr || idField==nullptr || methodsField==nullptr || getIdMethod==nullptr || isAliveMethod==nullptr
+     || getReferentMethod==nullptr || counting==nullptr){
+    fatal_error("ERROR: JNI: Cannot get fields of %s\n", Agent_counters_class);
+  }
+  env->SetStaticIntField(agent, counting, 1);
+}
+
+JNIEnv *JavaCallCounterProfiler::getEnv(){
+  JNIEnv *env = nullptr;
+  if(vm==nullptr || vm->GetEnv((void **)&env, JNI_VERSION_1_6)!=JNI_OK){
+    return nullptr;
+  }
+  return env;
+}
+
+template<typename Visitor> void JavaCallCounterProfiler::forEachClass(JNIEnv *env, jobject counters, Visitor visit){
+  jobjectArray classes = (jobjectArray)env->GetObjectField(counters, methodsField);
+  jsize classCount = env->GetArrayLength(classes);
+  for(jsize cnum=0;cnum<classCount;cnum++){
+    jlongArray counts = (jlongArray)env->GetObjectArrayElement(classes, cnum);
+    if(counts==nullptr){
+      continue;
+    }
+    visit(cnum, counts);
+    env->DeleteLocalRef(counts);
+  }
+  env->DeleteLocalRef(classes);
+}
+
+template<typename Visitor> void JavaCallCounterProfiler::forEachTable(JNIEnv *env, Visitor visit){
+  // threads register and grow the array under the same lock
+  if(env->MonitorEnter(agentClass)!=JNI_OK){
+    return;
+  }
+  jobjectArray threads = (jobjectArray)env->GetStaticObjectField(agentClass, countersField);
+  jint threadCount = env->GetStaticIntField(agentClass, registeredField);
+  for(jint t=0;t<threadCount;t++){
+    jobject counters = env->GetObjectArrayElement(threads, t);
+    jlong threadId = env->GetLongField(counters, idField);
+    if(threadId<0){
+      jobject reference = env->GetObjectField(counters, threadField);
+      jobject thread = env->CallObjectMethod(reference, getReferentMethod);
+      if(thread!=nullptr){
+        threadId = env->CallLongMethod(thread, getIdMethod);
+        env->DeleteLocalRef(thread);
+      }
+      if(env->ExceptionCheck()){
+        env->ExceptionClear();
+        threadId = -1;
+      }
+      env->DeleteLocalRef(reference);
+      // a collected thread that was never seen, the next prune folds it into the ended threads
+      if(threadId<0){
+        env->DeleteLocalRef(counters);
+        continue;
+      }
+      env->SetLongField(counters, idField, threadId);
+    }
+
+    forEachClass(env, counters, [&](jint cnum, jlongArray counts){
+      visit(threadId, cnum, counts);
+    });
+    env->DeleteLocalRef(counters);
+  }
+  env->DeleteLocalRef(threads);
+  env->MonitorExit(agentClass);
+}
+
+void JavaCallCounterProfiler::pruneEndedThreads(JNIEnv *env){
+  if(env->MonitorEnter(agentClass)!=JNI_OK){
+    return;
+  }
+  jobjectArray threads = (jobjectArray)env->GetStaticObjectField(agentClass, countersField);
+  jint threadCount = env->GetStaticIntField(agentClass, registeredField);
+  jint live = 0;
+  vector<jlong> values;
+  for(jint t=0;t<threadCount;t++){
+    jobject counters = env->GetObjectArrayElement(threads, t);
+    jobject reference = env->GetObjectField(counters, threadField);
+    jobject thread = env->CallObjectMethod(reference, getReferentMethod);
+    bool alive = thread!=nullptr && env->CallBooleanMethod(thread, isAliveMethod);
+    if(env->ExceptionCheck()){
+      env->ExceptionClear();
+      alive = true;
+    }
+
+    if(alive){
+      if(live!=t){
+        env->SetObjectArrayElement(threads, live, counters);
+      }
+      live++;
+    } else {
+      // an ended thread does not count any more, its tables are final
+      forEachClass(env, counters, [&](jint cnum, jlongArray counts){
+        jsize length = env->GetArrayLength(counts);
+        values.resize(length);
+        env->GetLongArrayRegion(counts, 0, length, values.data());
+        for(jsize mnum=0;mnum*2+1<length;mnum++){
+          if(values[mnum*2]==0 && values[mnum*2+1]==0){
+            continue;
+          }
+          JavaEndedCounters &total = ended[Utils::getMethodId(cnum, mnum)];
+          total.cnum = cnum;
+          total.mnum = mnum;
+          total.callCount += values[mnum*2];
+          total.returnCount += values[mnum*2+1];
+        }
+      });
+
+      // what delta snapshots sent for the thread now belongs to thread 0, it is not sent twice
+      jlong threadId = env->GetLongField(counters, idField);
+      auto it = reported.find(threadId);
+      if(threadId>=0 && it!=reported.end()){
+        unordered_map<unsigned long long, JavaReportedCounters> &target = reported[0];
+        for(auto method=it->second.begin();method!=it->second.end();++method){
+          target[method->first].callCount += method->second.callCount;
+          target[method->first].returnCount += method->second.returnCount;
+        }
+        reported.erase(threadId);
+      }
+    }
+
+    if(thread!=nullptr){
+      env->DeleteLocalRef(thread);
+    }
+    env->DeleteLocalRef(reference);
+    env->DeleteLocalRef(counters);
+  }
+
+  for(jint t=live;t<threadCount;t++){
+    env->SetObjectArrayElement(threads, t, nullptr);
+  }
+  env->SetStaticIntField(agentClass, registeredField, live);
+  env->DeleteLocalRef(threads);
+  env->MonitorExit(agentClass);
+}
+
+template<typename Visitor> void JavaCallCounterProfiler::forEachCounter(Visitor visit){
+  JNIEnv *env = getEnv();
+  if(env==nullptr){
+    return;
+  }
+
+  pruneEndedThreads(env);
+
+  vector<jlong> values;
+  forEachTable(env, [&](jlong threadId, jint cnum, jlongArray counts){
+    jsize length = env->GetArrayLength(counts);
+    values.resize(length);
+    env->GetLongArrayRegion(counts, 0, length, values.data());
+
+    for(jsize mnum=0;mnum*2+1<length;mnum++){
+      jlong calls = values[mnum*2];
+      jlong returns = values[mnum*2+1];
+      if(calls!=0 || returns!=0){
+        visit(threadId, cnum, mnum, calls, returns);
+      }
+    }
+  });
+
+  for(auto it=ended.begin();it!=ended.end();++it){
+    JavaEndedCounters &total = it->second;
+    if(total.callCount!=0 || total.returnCount!=0){
+      visit(0, total.cnum, total.mnum, (jlong)total.callCount, (jlong)total.returnCount);
+    }
+  }
+}
+
+void JavaCallCounterProfiler::printOnExit(){
+  lock_guard<mutex> guard(reportLock);
+  unsigned int methods = 0;
+  unsigned long long total = 0;
+
+  forEachCounter([&](jlong threadId, jint cnum, jint mnum, jlong calls, jlong returns){
+    JavaMethodInfo *method = getClasses()->getMethodInfo(cnum, mnum);
+    if(method==nullptr){
+      return;
+    }
+
+    methods++;
+    total += calls;
+    cout << "Thread " << threadId << "\t" << method->getFQN() << " calls " << calls << " returns " << returns << endl;
+  });
+
+  cout << "Threads runned: " << getThreads()->getThreadCount() << endl;
+  cout << "Classes loaded: " << getClasses()->getClassesCount() << endl;
+  cout << "Methods instrumented: " << getClasses()->getMethodsCount() << endl;
+  cout << "Total method used " << methods << endl;
+  cout << "Total calls processed " << total << endl;
+}
+
+void JavaCallCounterProfiler::reset(){
+  lock_guard<mutex> guard(reportLock);
+  JNIEnv *env = getEnv();
+  if(env==nullptr){
+    return;
+  }
+
+  ended.clear();
+
+  // owners keep counting meanwhile, an increment racing with the store may survive it
+  vector<jlong> zeros;
+  forEachTable(env, [&](jlong threadId, jint cnum, jlongArray counts){
+    jsize length = env->GetArrayLength(counts);
+    zeros.assign(length, 0);
+    env->SetLongArrayRegion(counts, 0, length, zeros.data());
+  });
+}
+
+string JavaCallCounterProfiler::printCsv(){
+  lock_guard<mutex> guard(reportLock);
+  string result = "threadId;methodName;callCount;returnCount\r\n";
+
+  forEachCounter([&](jlong threadId, jint cnum, jint mnum, jlong calls, jlong returns){
+    JavaMethodInfo *method = getClasses()->getMethodInfo(cnum, mnum);
+    if(method==nullptr){
+      return;
+    }
+
+    format line("\"%d\";\"%s\";\"%d\";\"%d\"\r\n");
+    line % threadId % method->getFQN() % calls % returns;
+    result.append(line.str());
+  });
+
+  return result;
+}
+
+void JavaCallCounterProfiler::writeSnapshot(SnapshotWriter &writer){
+  lock_guard<mutex> guard(reportLock);
+
+  writer.writeSchema({"callCount", "returnCount"});
+
+  forEachCounter([&](jlong threadId, jint cnum, jint mnum, jlong calls, jlong returns){
+    JavaMethodInfo *method = getClasses()->getMethodInfo(cnum, mnum);
+    if(method==nullptr){
+      return;
+    }
+
+    unsigned long long methodId = Utils::getMethodId(cnum, mnum);
+    JavaReportedCounters &last = reported[threadId][methodId];
+    unsigned long long fields[3];
+    if(!reportCounters(writer, calls, returns, 0, last.callCount, last.returnCount, last.ticks, fields)){
+      return;
+    }
+
+    writer.writeMethod(methodId, [&](){
+      return method->getFQN();
+    });
+    writer.writeNode(threadId, methodId, 0, methodId, fields, 2);
+  });
+}
@@ -0,0 +1,102 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef JAVACALLCOUNTERPROFILER_H
+#define JAVACALLCOUNTERPROFILER_H
+
+#include "abstracttracingprofiler.h"
+#include <unordered_map>
+#include <mutex>
+#include <string>
+
+using namespace std;
+
+// values sent in the previous delta snapshot for one method of one thread
+struct JavaReportedCounters final {
+  unsigned long long callCount=0;
+  unsigned long long returnCount=0;
+  unsigned long long ticks=0;
+};
+
+// counts of one method summed over the threads that ended
+struct JavaEndedCounters final {
+  jint cnum=0;
+  jint mnum=0;
+  unsigned long long callCount=0;
+  unsigned long long returnCount=0;
+};
+
+/**
+ * Counts calls in Java: Agent.agent_entry/agent_exit bump per-thread long[]
+ * tables that C2 inlines into the caller, no JNI transition per call. The
+ * tables are only read through JNI when data is exported, methodEntry and
+ * methodExit are never called in this mode. Threads are identified by
+ * Thread.getId() here, not by pthread id. Exports drop the tables of ended
+ * threads and report their counts under thread id 0 from then on.
+ */
+class JavaCallCounterProfiler final : public AbstractTracingProfiler
+{
+public:
+  JavaCallCounterProfiler();
+  virtual void methodEntry(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void methodExit(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void printOnExit() override;
+
+  virtual void new_object(jobject obj) override;
+  virtual void new_array(jobject obj) override;
+
+  virtual void methodInstrumented(JavaMethodInfo *info) override;
+  virtual void threadStarted(jobject thread) override;
+  virtual void threadStopped(jobject thread) override;
+
+  virtual void reset() override;
+  virtual string printCsv() override;
+  virtual void writeSnapshot(SnapshotWriter &writer) override;
+
+  virtual void vmStarted(jvmtiEnv *jvmti, JNIEnv *env, jclass agent) override;
+
+private:
+  JNIEnv *getEnv();
+  // folds the tables of ended threads into ended and takes them out of Agent.counters; reportLock is held
+  void pruneEndedThreads(JNIEnv *env);
+  // visit(cnum, counts) for every class table of one thread's counters
+  template<typename Visitor> void forEachClass(JNIEnv *env, jobject counters, Visitor visit);
+  // visit(threadId, cnum, counts) for every class table of every live thread, under the lock of the Agent class
+  template<typename Visitor> void forEachTable(JNIEnv *env, Visitor visit);
+  // visit(threadId, cnum, mnum, calls, returns) for every method called at least once, ended threads as 0; reportLock is held
+  template<typename Visitor> void forEachCounter(Visitor visit);
+
+  JavaVM *vm;
+  jclass agentClass;
+  jfieldID countersField;
+  jfieldID registeredField;
+  jfieldID threadField;
+  jfieldID idField;
+  jfieldID methodsField;
+  jmethodID getIdMethod;
+  jmethodID isAliveMethod;
+  jmethodID getReferentMethod;
+
+  // held by exports, guards ended and reported
+  mutex reportLock;
+  unordered_map<unsigned long long, JavaEndedCounters> ended;
+  unordered_map<jlong, unordered_map<unsigned long long, JavaReportedCounters>> reported;
+};
+
+#endif // JAVACALLCOUNTERPROFILER_H
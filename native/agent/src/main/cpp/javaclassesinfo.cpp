@@ -21,49 +21,61 @@
 #include "utils.h"
 
 JavaMethodInfo *JavaClassesInfo::getMethodById(unsigned long long id){
-  return methods.at(id);
+  return getMethodInfo((unsigned int)(id >> 32), (unsigned int)(id & 0xFFFFFFFF));
 }
 
-JavaClassesInfo::JavaClassesInfo():methodsCounter(0){
+JavaMethodInfo *JavaClassesInfo::getMethodByCounter(unsigned long long counter){
+  return methodsByCounter.get(counter);
+}
+
+JavaClassesInfo::JavaClassesInfo():classesCounter(0),methodsCounter(0){
 }
 
 unsigned long long JavaClassesInfo::getMethodsCount(){
-  return methodsCounter;
+  return methodsCounter.load();
 }
 
 unsigned int JavaClassesInfo::getClassesCount(){
-  return classes.size();
+  return classesCounter.load();
 }
 
 unsigned int JavaClassesInfo::addClass(const char *name){
-  classes.push_back(new JavaClassInfo(classes.size(), name));
-  return classes.size()-1;
+  return addClass(string(name));
 }
 
 unsigned int JavaClassesInfo::addClass(string name){
-  classes.push_back(new JavaClassInfo(classes.size(), name));
-  return classes.size()-1;
+  unsigned int id = classesCounter.fetch_add(1);
+  classes.publish(id, new JavaClassInfo(id, name));
+  return id;
 }
 
 string JavaClassesInfo::getClass(unsigned int id){
-  return classes[id]->getName();
+  return getClassInfo(id)->getName();
 }
 
-JavaMethodInfo *JavaClassesInfo::addClassMethod(unsigned int classId, unsigned int methodIndex, string methodName, string methodSignature){
-  methodsCounter++;
-  auto result = classes[classId]->addMethod(methodIndex, methodName, methodSignature, methodsCounter);
-  methods.emplace(Utils::getMethodId(classId, methodIndex), result);
-  return result;
+JavaClassInfo *JavaClassesInfo::getClassInfo(unsigned int id){
+  return classes.get(id);
 }
 
-JavaMethodInfo *JavaClassesInfo::addClassMethod(unsigned int classId, unsigned int methodIndex, const char *methodName, const char *methodSignature){
-  methodsCounter++;
-  auto result = classes[classId]->addMethod(methodIndex, methodName, methodSignature, methodsCounter);
-  methods.emplace(Utils::getMethodId(classId, methodIndex), result);
-  return result;
+void JavaClassesInfo::addClassMethods(unsigned int classId, const char **names, const char **signatures, int count){
+  JavaClassInfo *info = classes.get(classId);
+  if(info==nullptr || count<=0){
+    return;
+  }
+
+  // method counters start from 1, zero is never a valid method
+  unsigned long long first = methodsCounter.fetch_add(count)+1;
+  info->setMethods(names, signatures, count, first);
+
+  for(int mnum=0;mnum<count;mnum++){
+    methodsByCounter.publish(first+mnum, info->getMethod(mnum));
+  }
 }
 
 JavaMethodInfo *JavaClassesInfo::getMethodInfo(unsigned int classId, unsigned int methodId){
-  return classes[classId]->getMethod(methodId);
+  JavaClassInfo *info = classes.get(classId);
+  if(info==nullptr){
+    return nullptr;
+  }
+  return info->getMethod(methodId);
 }
-
@@ -22,11 +22,17 @@
 
 #include "javaclassinfo.h"
 #include "javamethodinfo.h"
+#include "segmentedarray.h"
 
-#include <vector>
-#include <unordered_map>
+#include <atomic>
 using namespace std;
 
+/**
+ * Registry of instrumented classes and methods.
+ * Class ids are dense and index a segmented append-only array, each class
+ * keeps its own method array, so resolving cnum/mnum takes two array loads.
+ * Lookups are wait-free and may run concurrently with class loading.
+ */
 class JavaClassesInfo
 {
 public:
@@ -36,20 +42,23 @@ public:
   unsigned int addClass(string name);
   
   string getClass(unsigned int id);
+  JavaClassInfo *getClassInfo(unsigned int id);
   
   unsigned int getClassesCount();
   unsigned long long getMethodsCount();
   
-  JavaMethodInfo *addClassMethod(unsigned int classId, unsigned int methodIndex, string methodName, string methodSignature);
-  JavaMethodInfo *addClassMethod(unsigned int classId, unsigned int methodIndex, const char *methodName, const char *methodSignature);
+  void addClassMethods(unsigned int classId, const char **names, const char **signatures, int count);
   
   JavaMethodInfo *getMethodInfo(unsigned int classId, unsigned int methodId);
   
   JavaMethodInfo *getMethodById(unsigned long long id);
+  JavaMethodInfo *getMethodByCounter(unsigned long long counter);
 private:
-  unsigned long long methodsCounter;
-  unordered_map<unsigned long long, JavaMethodInfo*> methods;
-  vector<JavaClassInfo*> classes;
+  atomic<unsigned int> classesCounter;
+  atomic<unsigned long long> methodsCounter;
+  // 4096 entries per segment, up to 4M classes and 4M methods
+  SegmentedArray<JavaClassInfo, 12, 1024> classes;
+  SegmentedArray<JavaMethodInfo, 12, 1024> methodsByCounter;
 };
 
 #endif // JAVACLASSESINFO_H
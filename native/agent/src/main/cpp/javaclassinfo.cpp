@@ -23,33 +23,41 @@
 
 using namespace std;
 
-JavaClassInfo::JavaClassInfo(unsigned int classIndex, string name){
+JavaClassInfo::JavaClassInfo(unsigned int classIndex, string name):methodCount(0),methods(nullptr){
   this->name = name;
   this->classIndex = classIndex;
 }
 
-JavaClassInfo::JavaClassInfo(unsigned int classIndex, const char *name){
+JavaClassInfo::JavaClassInfo(unsigned int classIndex, const char *name):methodCount(0),methods(nullptr){
   this->name = name;
   this->classIndex = classIndex;
 }
 
 unsigned int JavaClassInfo::getMethodCount(){
-    return methods.size();
+  if(methods.load(memory_order_acquire)==nullptr){
+    return 0;
+  }
+  return methodCount;
 }
 
-JavaMethodInfo *JavaClassInfo::addMethod(unsigned int methodIndex, string name, string signature, unsigned long long methodId) {
-  JavaMethodInfo *info = new JavaMethodInfo(classIndex, methodIndex, name, signature, methodId, this);
-  methods.push_back(info);
-  return info;
-}
+void JavaClassInfo::setMethods(const char **names, const char **signatures, unsigned int count, unsigned long long firstCounter) {
+  if(methods.load(memory_order_acquire)!=nullptr){
+    return;
+  }
+
+  JavaMethodInfo **table = new JavaMethodInfo*[count];
+  for(unsigned int mnum=0;mnum<count;mnum++){
+    table[mnum] = new JavaMethodInfo(classIndex, mnum, names[mnum], signatures[mnum], firstCounter+mnum, this);
+  }
 
-JavaMethodInfo *JavaClassInfo::addMethod(unsigned int methodIndex, const char *name, const char *signature, unsigned long long methodId) {
-  JavaMethodInfo *info = new JavaMethodInfo(classIndex, methodIndex, name, signature, methodId, this);
-  methods.push_back(info);
-  
-  return info;
+  methodCount = count;
+  methods.store(table, memory_order_release);
 }
 
 JavaMethodInfo *JavaClassInfo::getMethod(unsigned int methodId){
-  return methods[methodId];
-}
\ No newline at end of file
+  JavaMethodInfo **table = methods.load(memory_order_acquire);
+  if(table==nullptr || methodId>=methodCount){
+    return nullptr;
+  }
+  return table[methodId];
+}
@@ -21,7 +21,7 @@
 #define JAVACLASSINFO_H
 
 #include <string>
-#include <vector>
+#include <atomic>
 #include "javamethodinfo.h"
 
 using namespace std;
@@ -34,8 +34,7 @@ public:
   JavaClassInfo(unsigned int classIndex, string name);  
   JavaClassInfo(unsigned int classIndex, const char *name);  
   
-  JavaMethodInfo *addMethod(unsigned int methodIndex, string name, string signature, unsigned long long methodId);
-  JavaMethodInfo *addMethod(unsigned int methodIndex, const char *name, const char *signature, unsigned long long methodId);
+  void setMethods(const char **names, const char **signatures, unsigned int count, unsigned long long firstCounter);
   string getName(){return name;};
   
   unsigned int getMethodCount();
@@ -44,7 +43,9 @@ public:
 private:
   unsigned int classIndex;
   string name;
-  vector<JavaMethodInfo*> methods;
+  // published once by the class load hook, read without locks afterwards
+  unsigned int methodCount;
+  atomic<JavaMethodInfo**> methods;
 };
 
 #endif // JAVACLASSINFO_H
@@ -19,18 +19,22 @@
 
 #include "javamethodinfo.h"
 #include "utils.h"
-JavaMethodInfo::JavaMethodInfo(unsigned int classIndex, unsigned int methodIndex, const char *name, const char *signature, unsigned long long methodId, JavaClassInfo *info):classIndex(classIndex), methodIndex(methodIndex),name(name),signature(signature),methodCounter(methodId),classInfo(info){
-  methodId = Utils::getMethodId(classIndex, methodIndex);
+JavaMethodInfo::JavaMethodInfo(unsigned int classIndex, unsigned int methodIndex, const char *name, const char *signature, unsigned long long methodId, JavaClassInfo *info):classIndex(classIndex), methodIndex(methodIndex),name(name),signature(signature),methodCounter(methodId),classInfo(info),disabled(false){
+  this->methodId = Utils::getMethodId(classIndex, methodIndex);
 }
 
-JavaMethodInfo::JavaMethodInfo(unsigned int classIndex, unsigned int methodIndex, string name, string signature, unsigned long long methodId, JavaClassInfo *info):classIndex(classIndex), methodIndex(methodIndex),name(name),signature(signature),methodCounter(methodId),classInfo(info){
-  methodId = Utils::getMethodId(classIndex, methodIndex);
+JavaMethodInfo::JavaMethodInfo(unsigned int classIndex, unsigned int methodIndex, string name, string signature, unsigned long long methodId, JavaClassInfo *info):classIndex(classIndex), methodIndex(methodIndex),name(name),signature(signature),methodCounter(methodId),classInfo(info),disabled(false){
+  this->methodId = Utils::getMethodId(classIndex, methodIndex);
 }
 
 unsigned long long JavaMethodInfo::getMethodId(){
   return methodId;
 }
 
+unsigned long long JavaMethodInfo::getMethodCounter(){
+  return methodCounter;
+}
+
 JavaClassInfo *JavaMethodInfo::getClass(){
   return classInfo;
 }
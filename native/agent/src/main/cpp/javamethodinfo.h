@@ -21,6 +21,7 @@
 #define JAVAMETHODINFO_H
 
 #include <string>
+#include <atomic>
 #include "javaclassinfo.h"
 
 using namespace std;
@@ -35,8 +36,13 @@ public:
   string getName(){return name;};
   string getSignature(){return signature;};
   unsigned long long getMethodId();
+  unsigned long long getMethodCounter();
   JavaClassInfo *getClass();
   string getFQN();
+
+  // set by the overhead governor, probes of a disabled method are dropped before the profiler
+  bool isDisabled(){return disabled.load(memory_order_relaxed);};
+  void setDisabled(bool value){disabled.store(value, memory_order_relaxed);};
 private:
   unsigned int classIndex;
   unsigned int methodIndex;
@@ -45,6 +51,7 @@ private:
   string name;
   string signature;  
   JavaClassInfo *classInfo;
+  atomic<bool> disabled;
 };
 
 #endif // JAVAMETHODINFO_H
@@ -0,0 +1,126 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#include "latencyhistogram.h"
+#include <new>
+#include <math.h>
+
+unsigned int LatencyHistogram::precision = 3;
+unsigned int LatencyHistogram::bucketCount = (HISTOGRAM_VALUE_BITS-3+1) << 3;
+
+void LatencyHistogram::setPrecision(unsigned int value){
+  precision = value>HISTOGRAM_MAX_PRECISION ? HISTOGRAM_MAX_PRECISION : value;
+  bucketCount = (HISTOGRAM_VALUE_BITS-precision+1) << precision;
+}
+
+unsigned int LatencyHistogram::getPrecision(){
+  return precision;
+}
+
+unsigned int LatencyHistogram::getBucketCount(){
+  return bucketCount;
+}
+
+size_t LatencyHistogram::getSize(){
+  return sizeof(HistogramCounter)*bucketCount;
+}
+
+unsigned long long LatencyHistogram::highestValueOf(unsigned int bucket){
+  unsigned int subBuckets = 1U << precision;
+  if(bucket < subBuckets){
+    return bucket;
+  }
+  unsigned int shift = bucket/subBuckets - 1;
+  unsigned long long low = ((unsigned long long)(bucket%subBuckets + subBuckets)) << shift;
+  return low + (1ULL << shift) - 1;
+}
+
+HistogramCounter *LatencyHistogram::create(void *memory){
+  HistogramCounter *counts = (HistogramCounter *)memory;
+  for(unsigned int i=0;i<bucketCount;i++){
+    new (&counts[i]) HistogramCounter(0);
+  }
+  return counts;
+}
+
+void LatencyHistogram::clear(HistogramCounter *counts){
+  for(unsigned int i=0;i<bucketCount;i++){
+    counts[i].store(0, memory_order_relaxed);
+  }
+}
+
+HistogramSnapshot::HistogramSnapshot():counts(LatencyHistogram::getBucketCount(), 0),max(0){
+}
+
+void HistogramSnapshot::add(HistogramCounter *other, unsigned long long otherMax){
+  if(other==nullptr){
+    return;
+  }
+  for(size_t i=0;i<counts.size();i++){
+    counts[i] += other[i].load(memory_order_relaxed);
+  }
+  if(otherMax>max){
+    max = otherMax;
+  }
+}
+
+void HistogramSnapshot::add(const HistogramSnapshot &other){
+  for(size_t i=0;i<counts.size();i++){
+    counts[i] += other.counts[i];
+  }
+  if(other.max>max){
+    max = other.max;
+  }
+}
+
+unsigned long long HistogramSnapshot::getTotalCount(){
+  unsigned long long total = 0;
+  for(size_t i=0;i<counts.size();i++){
+    total += counts[i];
+  }
+  return total;
+}
+
+unsigned long long HistogramSnapshot::getValueAtPercentile(double percentile){
+  unsigned long long total = getTotalCount();
+  if(total==0){
+    return 0;
+  }
+
+  unsigned long long target = (unsigned long long)ceil(total*percentile/100.0);
+  if(target==0){
+    target = 1;
+  }
+  unsigned long long seen = 0;
+  for(size_t i=0;i<counts.size();i++){
+    seen += counts[i];
+    if(seen>=target){
+      unsigned long long value = LatencyHistogram::highestValueOf((unsigned int)i);
+      return value<max ? value : max;
+    }
+  }
+  return max;
+}
+
+void HistogramSnapshot::getPercentiles(unsigned long long *values){
+  values[0] = getValueAtPercentile(50);
+  values[1] = getValueAtPercentile(90);
+  values[2] = getValueAtPercentile(99);
+  values[3] = getValueAtPercentile(99.9);
+  values[4] = max;
+}
@@ -0,0 +1,109 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#ifndef LATENCYHISTOGRAM_H
+#define LATENCYHISTOGRAM_H
+
+#include <atomic>
+#include <vector>
+#include <stddef.h>
+
+using namespace std;
+
+// values from 2^HISTOGRAM_VALUE_BITS nanos on, about 18 minutes, share the last bucket
+#define HISTOGRAM_VALUE_BITS 40
+#define HISTOGRAM_MAX_PRECISION 7
+// p50, p90, p99, p999 and max
+#define HISTOGRAM_PERCENTILES 5
+
+// 64 bits: the busiest bucket of a hot node would wrap 32 bits within hours
+typedef atomic<unsigned long long> HistogramCounter;
+
+/**
+ * Log-linear latency buckets in the manner of HdrHistogram. Values below
+ * 2^precision get a bucket each, every further power of two is split into
+ * 2^precision buckets, so a bucket is never wider than 2^-precision of the
+ * values it holds. The layout is global and set from histogram.precision
+ * before anything is recorded; a histogram itself is just an array of
+ * getBucketCount() counters, written by one thread and read by exporters.
+ */
+class LatencyHistogram final
+{
+public:
+  static void setPrecision(unsigned int precision);
+  static unsigned int getPrecision();
+  static unsigned int getBucketCount();
+  static size_t getSize();
+
+  static unsigned int bucketOf(unsigned long long value){
+    unsigned int subBuckets = 1U << precision;
+    if(value < subBuckets){
+      return (unsigned int)value;
+    }
+    unsigned int shift = 63 - __builtin_clzll(value) - precision;
+    if(shift+precision >= HISTOGRAM_VALUE_BITS){
+      return bucketCount-1;
+    }
+    return (shift+1)*subBuckets + (unsigned int)(value >> shift) - subBuckets;
+  }
+
+  // the highest value counted in bucket, percentiles report it
+  static unsigned long long highestValueOf(unsigned int bucket);
+
+  // zeroed counters placed in memory of getSize() bytes
+  static HistogramCounter *create(void *memory);
+  static void clear(HistogramCounter *counts);
+
+  // only the owner thread records, so the counter is bumped without a locked instruction
+  static void record(HistogramCounter *counts, unsigned long long value){
+    HistogramCounter &counter = counts[bucketOf(value)];
+    counter.store(counter.load(memory_order_relaxed)+1, memory_order_relaxed);
+  }
+
+private:
+  static unsigned int precision;
+  static unsigned int bucketCount;
+};
+
+/**
+ * Plain copy of histograms merged at export time, e.g. the same method on
+ * several threads. Merging adds counts bucket by bucket and keeps the max.
+ */
+class HistogramSnapshot final
+{
+public:
+  HistogramSnapshot();
+
+  void add(HistogramCounter *counts, unsigned long long max);
+  void add(const HistogramSnapshot &other);
+
+  unsigned long long getTotalCount();
+  // percentile in 0..100, the highest value of its bucket but never above max
+  unsigned long long getValueAtPercentile(double percentile);
+  unsigned long long getMax(){
+    return max;
+  }
+  // p50, p90, p99, p999 and max into values[HISTOGRAM_PERCENTILES]
+  void getPercentiles(unsigned long long *values);
+
+private:
+  vector<unsigned long long> counts;
+  unsigned long long max;
+};
+
+#endif // LATENCYHISTOGRAM_H
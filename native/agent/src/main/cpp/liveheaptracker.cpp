@@ -0,0 +1,165 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#include "liveheaptracker.h"
+#include <iostream>
+#include <algorithm>
+#include <boost/format.hpp>
+
+using boost::format;
+
+// the current thread's call path, reused between samples
+static thread_local vector<unsigned long long> currentPath;
+
+LiveHeapTracker::LiveHeapTracker(AgentRuntime *runtime, AbstractTracingProfiler *profiler, JavaClassesInfo *classes, jvmtiEnv *jvmti):runtime(runtime),profiler(profiler),classes(classes),jvmti(jvmti),task(nullptr){
+  growthReports = runtime->getOptions()->getLiveHeapGrowthReports();
+}
+
+void LiveHeapTracker::start(JavaVM *vm){
+  unsigned int period = runtime->getOptions()->getLiveHeapReportMillis();
+  if(period==0){
+    return;
+  }
+  task = new PeriodicTask("Bond live heap", period, [this](JNIEnv *env){
+    report(env);
+  });
+  task->start(vm);
+}
+
+void LiveHeapTracker::stop(){
+  if(task!=nullptr){
+    task->stop();
+  }
+}
+
+LivePath *LiveHeapTracker::getPath(const vector<unsigned long long> &methodIds){
+  string key((const char *)methodIds.data(), methodIds.size()*sizeof(unsigned long long));
+
+  lock_guard<mutex> guard(pathsLock);
+  LivePath *&path = paths[key];
+  if(path==nullptr){
+    path = new LivePath();
+    path->methodIds = methodIds;
+  }
+  return path;
+}
+
+vector<LivePath*> LiveHeapTracker::getPaths(){
+  vector<LivePath*> result;
+  lock_guard<mutex> guard(pathsLock);
+  result.reserve(paths.size());
+  for(auto it=paths.begin();it!=paths.end();++it){
+    result.push_back(it->second);
+  }
+  return result;
+}
+
+void LiveHeapTracker::track(jobject object, const AllocationSample &sample){
+  profiler->getCallPath(currentPath);
+  LivePath *path = getPath(currentPath);
+
+  LiveObject *live = new LiveObject();
+  live->path = path;
+  live->count = sample.count;
+  live->bytes = sample.bytes;
+  if(jvmti->SetTag(object, (jlong)live)!=JVMTI_ERROR_NONE){
+    delete live;
+    return;
+  }
+
+  path->liveCount.add(live->count);
+  path->liveBytes.add(live->bytes);
+}
+
+void LiveHeapTracker::objectFreed(jlong tag){
+  LiveObject *live = (LiveObject *)tag;
+  if(live==nullptr){
+    return;
+  }
+  live->path->liveCount.add(-(long long)live->count);
+  live->path->liveBytes.add(-(long long)live->bytes);
+  delete live;
+}
+
+string LiveHeapTracker::getPathName(LivePath *path){
+  if(path->methodIds.empty()){
+    return "(no call path)";
+  }
+
+  string result;
+  for(auto it=path->methodIds.begin();it!=path->methodIds.end();++it){
+    if(!result.empty()){
+      result += ";";
+    }
+    JavaMethodInfo *method = classes->getMethodById(*it);
+    result += method!=nullptr ? method->getFQN() : "?";
+  }
+  return result;
+}
+
+void LiveHeapTracker::report(JNIEnv *env){
+  vector<LivePath*> all = getPaths();
+
+  long long totalBytes = 0;
+  long long totalCount = 0;
+  for(auto it=all.begin();it!=all.end();++it){
+    LivePath *path = *it;
+    long long bytes = path->liveBytes.sum();
+    totalBytes += bytes;
+    totalCount += path->liveCount.sum();
+
+    path->history.push_back(bytes);
+    if(path->history.size()>growthReports+1){
+      path->history.erase(path->history.begin());
+    }
+    if(path->history.size()<growthReports+1){
+      continue;
+    }
+
+    bool growing = true;
+    for(size_t i=1;i<path->history.size() && growing;i++){
+      growing = path->history[i]>path->history[i-1];
+    }
+    if(growing){
+      runtime->logWarning((format("Leak suspect: live bytes of %s grew from %d to %d over %d reports, %d objects live")
+                           % getPathName(path) % path->history.front() % bytes % growthReports % path->liveCount.sum()).str());
+    }
+  }
+
+  runtime->logInfo((format("Live heap (estimated from samples): %d objects, %d bytes in %d call paths")
+                    % totalCount % totalBytes % all.size()).str());
+}
+
+void LiveHeapTracker::printOnExit(){
+  vector<pair<long long, LivePath*>> sorted;
+  vector<LivePath*> all = getPaths();
+  for(auto it=all.begin();it!=all.end();++it){
+    long long bytes = (*it)->liveBytes.sum();
+    if(bytes>0){
+      sorted.push_back(make_pair(bytes, *it));
+    }
+  }
+  sort(sorted.begin(), sorted.end(), [](const pair<long long, LivePath*> &a, const pair<long long, LivePath*> &b){
+    return a.first>b.first;
+  });
+
+  cout << "Live objects by call path (estimated from samples): " << sorted.size() << endl;
+  for(auto it=sorted.begin();it!=sorted.end();++it){
+    cout << "\t" << getPathName(it->second) << " count " << it->second->liveCount.sum() << " bytes " << it->first << endl;
+  }
+}
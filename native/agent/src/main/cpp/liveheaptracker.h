@@ -0,0 +1,91 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#ifndef LIVEHEAPTRACKER_H
+#define LIVEHEAPTRACKER_H
+
+#include "abstracttracingprofiler.h"
+#include "allocationsampler.h"
+#include "periodictask.h"
+#include "stripedcounter.h"
+#include <jvmti.h>
+#include <unordered_map>
+#include <vector>
+#include <string>
+#include <mutex>
+
+using namespace std;
+
+// call path sampled objects were allocated on, never freed
+struct LivePath final {
+  vector<unsigned long long> methodIds;
+  StripedCounter liveCount;
+  StripedCounter liveBytes;
+  // live bytes at the last reports, only the reporting thread touches it
+  vector<long long> history;
+};
+
+// what the tag of a sampled object points to
+struct LiveObject final {
+  LivePath *path;
+  unsigned long long count;
+  unsigned long long bytes;
+};
+
+/**
+ * Keeps estimates of live objects and bytes per allocating call path.
+ * A sampled object is tagged with a LiveObject naming its path and weight,
+ * ObjectFree takes the weight back off the path. Every memory.live.report.ms
+ * the live bytes of each path are logged and a path whose live bytes grew in
+ * memory.live.growth.reports reports in a row is reported as a leak suspect.
+ * Paths come from AbstractTracingProfiler::getCallPath, with profilers that
+ * keep no stacks all objects share one empty path.
+ */
+class LiveHeapTracker final
+{
+public:
+  LiveHeapTracker(AgentRuntime *runtime, AbstractTracingProfiler *profiler, JavaClassesInfo *classes, jvmtiEnv *jvmti);
+
+  void start(JavaVM *vm);
+  void stop();
+
+  void track(jobject object, const AllocationSample &sample);
+  // ObjectFree handler, it runs while GC may be in progress and must not call JNI
+  void objectFreed(jlong tag);
+
+  void printOnExit();
+
+private:
+  LivePath *getPath(const vector<unsigned long long> &methodIds);
+  vector<LivePath*> getPaths();
+  string getPathName(LivePath *path);
+  void report(JNIEnv *env);
+
+  AgentRuntime *runtime;
+  AbstractTracingProfiler *profiler;
+  JavaClassesInfo *classes;
+  jvmtiEnv *jvmti;
+  PeriodicTask *task;
+  unsigned int growthReports;
+
+  // no JVMTI or JNI calls while it is held, a thread blocked on it may be needed by GC
+  mutex pathsLock;
+  unordered_map<string, LivePath*> paths;
+};
+
+#endif // LIVEHEAPTRACKER_H
@@ -0,0 +1,238 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#include "monitorprofiler.h"
+#include <iostream>
+#include <map>
+#include <algorithm>
+
+// what the current thread is blocked on, from the first event to the second
+struct PendingMonitor final {
+  bool active=false;
+  unsigned long long start=0;
+  // contended enters of the thread, for monitor.holders.sample
+  unsigned long long enters=0;
+  MonitorContention contention;
+};
+
+static thread_local PendingMonitor pending;
+static thread_local MonitorBuffer *threadBuffer = nullptr;
+
+MonitorProfiler::MonitorProfiler(AgentRuntime *runtime, AbstractTracingProfiler *profiler, JavaClassesInfo *classes, jvmtiEnv *jvmti):runtime(runtime),profiler(profiler),classes(classes),jvmti(jvmti){
+  top = runtime->getOptions()->getMonitorTop();
+  holderSample = runtime->getOptions()->getMonitorHolderSample();
+}
+
+MonitorBuffer *MonitorProfiler::getBuffer(){
+  if(threadBuffer==nullptr){
+    // buffers outlive their threads, the report still needs them
+    threadBuffer = new MonitorBuffer();
+    lock_guard<mutex> guard(buffersLock);
+    buffers.push_back(threadBuffer);
+  }
+  return threadBuffer;
+}
+
+string MonitorProfiler::getClassName(JNIEnv *env, jobject object){
+  jclass klass = env->GetObjectClass(object);
+  char *signature = nullptr;
+  string result("?");
+  if(jvmti->GetClassSignature(klass, &signature, nullptr)==JVMTI_ERROR_NONE){
+    result = signature;
+    jvmti->Deallocate((unsigned char *)signature);
+  }
+  env->DeleteLocalRef(klass);
+  return result;
+}
+
+void MonitorProfiler::getFrames(jthread thread, vector<jmethodID> &frames){
+  jvmtiFrameInfo info[MONITOR_STACK_DEPTH];
+  jint count = 0;
+  frames.clear();
+  if(jvmti->GetStackTrace(thread, 0, MONITOR_STACK_DEPTH, info, &count)!=JVMTI_ERROR_NONE){
+    return;
+  }
+  // outermost frame first, as call paths are
+  for(jint i=count-1;i>=0;i--){
+    frames.push_back(info[i].method);
+  }
+}
+
+void MonitorProfiler::begin(JNIEnv *env, jthread thread, jobject object, bool wait){
+  MonitorContention &contention = pending.contention;
+  contention.wait = wait;
+  contention.monitorClass = getClassName(env, object);
+
+  profiler->getCallPath(contention.waiterPath);
+  contention.waiterFrames.clear();
+  if(contention.waiterPath.empty()){
+    getFrames(thread, contention.waiterFrames);
+  }
+
+  // the owner may release the monitor meanwhile, then its stack is of whatever it does next.
+  // Both lookups are VM operations that stop other threads, so only one enter of holderSample pays for them
+  contention.holderFrames.clear();
+  jvmtiMonitorUsage usage;
+  bool sampled = !wait && holderSample>0 && ++pending.enters%holderSample==0;
+  if(sampled && jvmti->GetObjectMonitorUsage(object, &usage)==JVMTI_ERROR_NONE){
+    if(usage.owner!=nullptr){
+      getFrames(usage.owner, contention.holderFrames);
+      env->DeleteLocalRef(usage.owner);
+    }
+    for(jint i=0;i<usage.waiter_count;i++){
+      env->DeleteLocalRef(usage.waiters[i]);
+    }
+    for(jint i=0;i<usage.notify_waiter_count;i++){
+      env->DeleteLocalRef(usage.notify_waiters[i]);
+    }
+    jvmti->Deallocate((unsigned char *)usage.waiters);
+    jvmti->Deallocate((unsigned char *)usage.notify_waiters);
+  }
+
+  pending.active = true;
+  // taken last, the lookups above are not blocking time
+  pending.start = runtime->getTicks();
+}
+
+void MonitorProfiler::end(){
+  if(!pending.active){
+    return;
+  }
+  pending.active = false;
+  unsigned long long ticks = runtime->getTicks() - pending.start;
+  profiler->monitorBlocked(ticks);
+
+  MonitorContention &contention = pending.contention;
+  string key = contention.monitorClass;
+  key += contention.wait ? 'W' : 'E';
+  key.append((const char *)contention.waiterPath.data(), contention.waiterPath.size()*sizeof(unsigned long long));
+  key += '\0';
+  key.append((const char *)contention.waiterFrames.data(), contention.waiterFrames.size()*sizeof(jmethodID));
+  key += '\0';
+  key.append((const char *)contention.holderFrames.data(), contention.holderFrames.size()*sizeof(jmethodID));
+
+  MonitorBuffer *buffer = getBuffer();
+  lock_guard<mutex> guard(buffer->lock);
+  auto it = buffer->contentions.find(key);
+  if(it==buffer->contentions.end()){
+    it = buffer->contentions.emplace(key, contention).first;
+    it->second.count = 0;
+    it->second.ticks = 0;
+  }
+  it->second.count++;
+  it->second.ticks += ticks;
+}
+
+void MonitorProfiler::contendedEnter(JNIEnv *env, jthread thread, jobject object){
+  begin(env, thread, object, false);
+}
+
+void MonitorProfiler::contendedEntered(JNIEnv *env, jthread thread, jobject object){
+  end();
+}
+
+void MonitorProfiler::wait(JNIEnv *env, jthread thread, jobject object){
+  begin(env, thread, object, true);
+}
+
+void MonitorProfiler::waited(JNIEnv *env, jthread thread, jobject object){
+  end();
+}
+
+string MonitorProfiler::getPathName(JNIEnv *env, const MonitorContention &contention, bool holder){
+  string result;
+  if(!holder && !contention.waiterPath.empty()){
+    for(auto it=contention.waiterPath.begin();it!=contention.waiterPath.end();++it){
+      JavaMethodInfo *method = classes->getMethodById(*it);
+      result += result.empty() ? "" : ";";
+      result += method!=nullptr ? method->getFQN() : "?";
+    }
+    return result;
+  }
+
+  const vector<jmethodID> &frames = holder ? contention.holderFrames : contention.waiterFrames;
+  for(auto it=frames.begin();it!=frames.end();++it){
+    result += result.empty() ? "" : ";";
+    jclass klass = nullptr;
+    char *className = nullptr;
+    char *name = nullptr;
+    char *signature = nullptr;
+    if(jvmti->GetMethodDeclaringClass(*it, &klass)==JVMTI_ERROR_NONE && jvmti->GetClassSignature(klass, &className, nullptr)==JVMTI_ERROR_NONE
+       && jvmti->GetMethodName(*it, &name, &signature, nullptr)==JVMTI_ERROR_NONE){
+      result += string(className) + "#" + name + signature;
+    } else {
+      result += "?";
+    }
+    jvmti->Deallocate((unsigned char *)className);
+    jvmti->Deallocate((unsigned char *)name);
+    jvmti->Deallocate((unsigned char *)signature);
+  }
+  return result.empty() ? "(unknown)" : result;
+}
+
+void MonitorProfiler::printOnExit(JNIEnv *env){
+  // per monitor class: total ticks and its contentions merged from all threads
+  map<string, pair<unsigned long long, vector<MonitorContention*>>> byClass;
+  unordered_map<string, MonitorContention> merged;
+  {
+    lock_guard<mutex> guard(buffersLock);
+    for(auto it=buffers.begin();it!=buffers.end();++it){
+      lock_guard<mutex> bufferGuard((*it)->lock);
+      for(auto c=(*it)->contentions.begin();c!=(*it)->contentions.end();++c){
+        auto known = merged.find(c->first);
+        if(known==merged.end()){
+          merged.emplace(c->first, c->second);
+        } else {
+          known->second.count += c->second.count;
+          known->second.ticks += c->second.ticks;
+        }
+      }
+    }
+  }
+  for(auto it=merged.begin();it!=merged.end();++it){
+    auto &entry = byClass[it->second.monitorClass];
+    entry.first += it->second.ticks;
+    entry.second.push_back(&it->second);
+  }
+
+  vector<pair<unsigned long long, string>> sorted;
+  for(auto it=byClass.begin();it!=byClass.end();++it){
+    sorted.push_back(make_pair(it->second.first, it->first));
+  }
+  sort(sorted.rbegin(), sorted.rend());
+  if(sorted.size()>top){
+    sorted.resize(top);
+  }
+
+  cout << "Most contended monitors, blocked ns: " << sorted.size() << " of " << byClass.size() << endl;
+  for(auto it=sorted.begin();it!=sorted.end();++it){
+    vector<MonitorContention*> &contentions = byClass[it->second].second;
+    sort(contentions.begin(), contentions.end(), [](MonitorContention *a, MonitorContention *b){
+      return a->ticks>b->ticks;
+    });
+    cout << it->second << " blocked " << it->first << endl;
+    for(size_t i=0;i<contentions.size() && i<top;i++){
+      MonitorContention *c = contentions[i];
+      cout << "\t" << (c->wait ? "wait" : "enter") << " count " << c->count << " blocked " << c->ticks << endl;
+      cout << "\t\twaiter " << getPathName(env, *c, false) << endl;
+      if(!c->holderFrames.empty()){
+        cout << "\t\tholder " << getPathName(env, *c, true) << endl;
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#ifndef MONITORPROFILER_H
+#define MONITORPROFILER_H
+
+#include "abstracttracingprofiler.h"
+#include <jvmti.h>
+#include <unordered_map>
+#include <vector>
+#include <string>
+#include <mutex>
+
+using namespace std;
+
+// frames of the other thread's stack kept for a holder, deeper ones are dropped
+#define MONITOR_STACK_DEPTH 16
+
+// blocking time of one monitor class, waiter path and holder stack
+struct MonitorContention final {
+  string monitorClass;
+  bool wait=false;
+  // call tree method ids of the blocked thread, or its JVMTI frames when the profiler keeps no stacks
+  vector<unsigned long long> waiterPath;
+  vector<jmethodID> waiterFrames;
+  // JVMTI frames of the owner when the thread started to block, empty for waits and unsampled enters
+  vector<jmethodID> holderFrames;
+  unsigned long long count=0;
+  unsigned long long ticks=0;
+};
+
+/**
+ * Contentions recorded by one thread. Only its owner adds to it and only
+ * reports read it, so the lock is never contended while the program runs.
+ */
+struct MonitorBuffer final {
+  mutex lock;
+  unordered_map<string, MonitorContention> contentions;
+};
+
+/**
+ * Measures time threads spend blocked on entering synchronized blocks, and
+ * in Object.wait() with monitor.waits, from JVMTI monitor events. The time
+ * goes to the blocked thread's current call tree node through
+ * AbstractTracingProfiler::monitorBlocked and, per monitor class, waiter path
+ * and holder stack, to a buffer of the thread. Holder stacks pause other
+ * threads, they are taken on one of monitor.holders.sample enters only.
+ * printOnExit merges the buffers and lists the monitor classes threads were
+ * blocked on the longest.
+ */
+class MonitorProfiler final
+{
+public:
+  MonitorProfiler(AgentRuntime *runtime, AbstractTracingProfiler *profiler, JavaClassesInfo *classes, jvmtiEnv *jvmti);
+
+  void contendedEnter(JNIEnv *env, jthread thread, jobject object);
+  void contendedEntered(JNIEnv *env, jthread thread, jobject object);
+  void wait(JNIEnv *env, jthread thread, jobject object);
+  void waited(JNIEnv *env, jthread thread, jobject object);
+
+  // env resolves holder frames, the VM must be alive
+  void printOnExit(JNIEnv *env);
+
+private:
+  void begin(JNIEnv *env, jthread thread, jobject object, bool wait);
+  void end();
+  MonitorBuffer *getBuffer();
+  string getClassName(JNIEnv *env, jobject object);
+  void getFrames(jthread thread, vector<jmethodID> &frames);
+  string getPathName(JNIEnv *env, const MonitorContention &contention, bool holder);
+
+  AgentRuntime *runtime;
+  AbstractTracingProfiler *profiler;
+  JavaClassesInfo *classes;
+  jvmtiEnv *jvmti;
+  unsigned int top;
+  unsigned int holderSample;
+
+  mutex buffersLock;
+  vector<MonitorBuffer*> buffers;
+};
+
+#endif // MONITORPROFILER_H
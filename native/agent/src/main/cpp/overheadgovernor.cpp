@@ -0,0 +1,108 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "overheadgovernor.h"
+#include <iostream>
+#include <time.h>
+#include <boost/format.hpp>
+
+using boost::format;
+
+static unsigned long long monotonicNanos(){
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ((unsigned long long)ts.tv_sec)*1000000000ULL + ts.tv_nsec;
+}
+
+OverheadGovernor::OverheadGovernor(AgentRuntime *runtime, AbstractTracingProfiler *profiler, ProbeBitmap *probes):runtime(runtime),profiler(profiler),probes(probes),lastCheck(0){
+  AgentOptions *options = runtime->getOptions();
+  maxCallsPerSecond = options->getGovernorCallsPerSecond();
+  maxSelfNanos = options->getGovernorSelfNanos();
+  task = new PeriodicTask("bond-governor", options->getGovernorInterval(), [this](JNIEnv *env){
+    check(env);
+  });
+}
+
+void OverheadGovernor::start(JavaVM *vm){
+  lastCheck = monotonicNanos();
+  task->start(vm);
+  runtime->logInfo((format("Overhead governor: over %d calls/s under %d ns each are disabled") % maxCallsPerSecond % maxSelfNanos).str());
+}
+
+void OverheadGovernor::stop(){
+  task->stop();
+}
+
+void OverheadGovernor::check(JNIEnv *env){
+  unordered_map<JavaMethodInfo*, GovernorTotals> current;
+  profiler->collectMethodTotals([&](JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks){
+    GovernorTotals &totals = current[method];
+    totals.calls += calls;
+    totals.selfTicks += selfTicks;
+  });
+
+  unsigned long long now = monotonicNanos();
+  unsigned long long elapsed = now - lastCheck;
+  lastCheck = now;
+
+  for(auto it=current.begin();it!=current.end() && elapsed>0;++it){
+    JavaMethodInfo *method = it->first;
+    GovernorTotals &last = previous[method];
+    // counters went down after a reset, the next round has a fresh base
+    if(method->isDisabled() || it->second.calls<=last.calls || it->second.selfTicks<last.selfTicks){
+      continue;
+    }
+
+    unsigned long long calls = it->second.calls - last.calls;
+    unsigned long long callsPerSecond = (unsigned long long)((double)calls * 1000000000.0 / elapsed);
+    unsigned long long selfNanos = (it->second.selfTicks - last.selfTicks) / calls;
+    if(callsPerSecond<maxCallsPerSecond || selfNanos>=maxSelfNanos){
+      continue;
+    }
+
+    if(probes!=nullptr){
+      probes->setEnabled(env, method, false);
+    } else {
+      method->setDisabled(true);
+    }
+
+    GovernorDecision decision;
+    decision.method = method->getFQN();
+    decision.callsPerSecond = callsPerSecond;
+    decision.selfNanos = selfNanos;
+    runtime->logInfo((format("Governor disabled %s: %d calls/s, %d ns self") % decision.method % callsPerSecond % selfNanos).str());
+
+    lock_guard<mutex> guard(decisionsLock);
+    decisions.push_back(decision);
+  }
+
+  previous.swap(current);
+}
+
+void OverheadGovernor::printDecisions(){
+  lock_guard<mutex> guard(decisionsLock);
+  if(decisions.empty()){
+    return;
+  }
+
+  cout << "Disabled by overhead governor: " << decisions.size() << endl;
+  for(auto it=decisions.begin();it!=decisions.end();++it){
+    cout << "\t" << it->method << " calls/s " << it->callsPerSecond << " self ns " << it->selfNanos << endl;
+  }
+}
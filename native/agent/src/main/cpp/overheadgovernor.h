@@ -0,0 +1,82 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef OVERHEADGOVERNOR_H
+#define OVERHEADGOVERNOR_H
+
+#include "abstracttracingprofiler.h"
+#include "periodictask.h"
+#include "probebitmap.h"
+#include <unordered_map>
+#include <vector>
+#include <string>
+#include <mutex>
+
+using namespace std;
+
+struct GovernorTotals final {
+  unsigned long long calls=0;
+  unsigned long long selfTicks=0;
+};
+
+// why a method stopped being measured
+struct GovernorDecision final {
+  string method;
+  unsigned long long callsPerSecond;
+  unsigned long long selfNanos;
+};
+
+/**
+ * Turns off probes of methods that are called too often to be worth
+ * measuring: every governor.interval.ms it compares per-method totals of the
+ * profiler with the previous ones, and a method making more than
+ * governor.calls.per.second calls with less than governor.self.ns of own
+ * time per call is disabled for the rest of the run.
+ */
+class OverheadGovernor final
+{
+public:
+  // probes may be null, then disabled methods are only dropped in native code
+  OverheadGovernor(AgentRuntime *runtime, AbstractTracingProfiler *profiler, ProbeBitmap *probes);
+
+  void start(JavaVM *vm);
+  void stop();
+
+  // one line per disabled method, for the output on exit
+  void printDecisions();
+
+private:
+  void check(JNIEnv *env);
+
+  AgentRuntime *runtime;
+  AbstractTracingProfiler *profiler;
+  ProbeBitmap *probes;
+  PeriodicTask *task;
+
+  unsigned long long maxCallsPerSecond;
+  unsigned long long maxSelfNanos;
+
+  unsigned long long lastCheck;
+  unordered_map<JavaMethodInfo*, GovernorTotals> previous;
+
+  mutex decisionsLock;
+  vector<GovernorDecision> decisions;
+};
+
+#endif // OVERHEADGOVERNOR_H
@@ -0,0 +1,63 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "periodictask.h"
+#include <chrono>
+
+PeriodicTask::PeriodicTask(string name, unsigned int periodMillis, function<void(JNIEnv *env)> task):name(name),periodMillis(periodMillis),task(task),vm(nullptr),stopped(false){
+}
+
+void PeriodicTask::start(JavaVM *vm){
+  this->vm = vm;
+  worker = thread(&PeriodicTask::run, this);
+  worker.detach();
+}
+
+void PeriodicTask::stop(){
+  lock_guard<mutex> guard(lock);
+  stopped = true;
+  wakeup.notify_all();
+}
+
+void PeriodicTask::run(){
+  JNIEnv *env = nullptr;
+  JavaVMAttachArgs args;
+  args.version = JNI_VERSION_1_6;
+  args.name = (char *)name.c_str();
+  args.group = nullptr;
+
+  if(vm->AttachCurrentThreadAsDaemon((void **)&env, &args)!=JNI_OK){
+    return;
+  }
+
+  unique_lock<mutex> guard(lock);
+  while(!stopped){
+    wakeup.wait_for(guard, chrono::milliseconds(periodMillis));
+    if(stopped){
+      break;
+    }
+
+    guard.unlock();
+    task(env);
+    guard.lock();
+  }
+  guard.unlock();
+
+  vm->DetachCurrentThread();
+}
@@ -0,0 +1,61 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef PERIODICTASK_H
+#define PERIODICTASK_H
+
+#include <jni.h>
+#include <string>
+#include <thread>
+#include <mutex>
+#include <condition_variable>
+#include <functional>
+
+using namespace std;
+
+/**
+ * Agent-owned background thread attached to the VM as a daemon, runs task
+ * every period. stop() only asks the thread to finish and never waits for it:
+ * it is called from VM death callbacks while the global lock is held, and a
+ * detaching thread posts ThreadEnd, which takes the same lock. So a task
+ * object must live until the process exits.
+ */
+class PeriodicTask final
+{
+public:
+  PeriodicTask(string name, unsigned int periodMillis, function<void(JNIEnv *env)> task);
+
+  void start(JavaVM *vm);
+  void stop();
+
+private:
+  void run();
+
+  string name;
+  unsigned int periodMillis;
+  function<void(JNIEnv *env)> task;
+
+  JavaVM *vm;
+  thread worker;
+  mutex lock;
+  condition_variable wakeup;
+  bool stopped;
+};
+
+#endif // PERIODICTASK_H
@@ -0,0 +1,168 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "probebitmap.h"
+#include "agentruntime.h"
+#include <vector>
+
+#define Agent_probes_field      "probes"
+#define Agent_probes_off_field  "probesOff"
+
+ProbeBitmap::ProbeBitmap(JavaClassesInfo *classes, bool enabledByDefault):classes(classes),enabledByDefault(enabledByDefault),agentClass(nullptr),probesField(nullptr){
+}
+
+void ProbeBitmap::vmStarted(JNIEnv *env, jclass agent){
+  agentClass = (jclass)env->NewGlobalRef(agent);
+  probesField = env->GetStaticFieldID(agent, Agent_probes_field, "[[J");
+  jfieldID off = env->GetStaticFieldID(agent, Agent_probes_off_field, "I");
+  if(probesField==nullptr || off==nullptr){
+    fatal_error("ERROR: JNI: Cannot get probe fields of Agent\n");
+  }
+  env->SetStaticIntField(agent, off, enabledByDefault ? 0 : 1);
+}
+
+string ProbeBitmap::normalize(const string &pattern){
+  string result(pattern);
+  size_t end = result.find('#');
+  if(end==string::npos){
+    end = result.length();
+  }
+  for(size_t i=0;i<end;i++){
+    if(result[i]=='.'){
+      result[i] = '/';
+    }
+  }
+  return result;
+}
+
+jlongArray ProbeBitmap::getRow(JNIEnv *env, unsigned int cnum){
+  jobjectArray table = (jobjectArray)env->GetStaticObjectField(agentClass, probesField);
+  jsize length = table==nullptr ? 0 : env->GetArrayLength(table);
+
+  if((unsigned int)length<=cnum){
+    // the probe reads the table without locks, so a bigger copy replaces it as a whole
+    jsize grown = length*2;
+    if((unsigned int)grown<=cnum){
+      grown = cnum+1;
+    }
+    if((unsigned int)grown<classes->getClassesCount()){
+      grown = classes->getClassesCount();
+    }
+
+    jclass rowClass = env->FindClass("[J");
+    jobjectArray copy = env->NewObjectArray(grown, rowClass, nullptr);
+    env->DeleteLocalRef(rowClass);
+    if(copy==nullptr){
+      env->ExceptionClear();
+      return nullptr;
+    }
+    for(jsize i=0;i<length;i++){
+      jobject row = env->GetObjectArrayElement(table, i);
+      env->SetObjectArrayElement(copy, i, row);
+      env->DeleteLocalRef(row);
+    }
+    env->SetStaticObjectField(agentClass, probesField, copy);
+    if(table!=nullptr){
+      env->DeleteLocalRef(table);
+    }
+    table = copy;
+  }
+
+  jlongArray row = (jlongArray)env->GetObjectArrayElement(table, cnum);
+  if(row==nullptr){
+    JavaClassInfo *info = classes->getClassInfo(cnum);
+    jsize words = info==nullptr ? 1 : (info->getMethodCount()+63)/64;
+    if(words==0){
+      words = 1;
+    }
+
+    row = env->NewLongArray(words);
+    if(row==nullptr){
+      env->ExceptionClear();
+      env->DeleteLocalRef(table);
+      return nullptr;
+    }
+    vector<jlong> bits(words, enabledByDefault ? -1LL : 0LL);
+    env->SetLongArrayRegion(row, 0, words, bits.data());
+    env->SetObjectArrayElement(table, cnum, row);
+  }
+
+  env->DeleteLocalRef(table);
+  return row;
+}
+
+void ProbeBitmap::setEnabled(JNIEnv *env, JavaMethodInfo *method, bool enabled){
+  if(agentClass==nullptr){
+    method->setDisabled(!enabled);
+    return;
+  }
+
+  unsigned long long methodId = method->getMethodId();
+  unsigned int cnum = (unsigned int)(methodId >> 32);
+  unsigned int mnum = (unsigned int)(methodId & 0xFFFFFFFF);
+
+  lock_guard<mutex> guard(lock);
+  // batched events are dropped natively as well
+  method->setDisabled(!enabled);
+
+  jlongArray row = getRow(env, cnum);
+  if(row==nullptr){
+    return;
+  }
+
+  jlong word;
+  env->GetLongArrayRegion(row, mnum >> 6, 1, &word);
+  if(enabled){
+    word |= 1LL << (mnum & 63);
+  } else {
+    word &= ~(1LL << (mnum & 63));
+  }
+  env->SetLongArrayRegion(row, mnum >> 6, 1, &word);
+  env->DeleteLocalRef(row);
+}
+
+unsigned int ProbeBitmap::setEnabled(JNIEnv *env, const string &pattern, bool enabled){
+  string prefix = normalize(pattern);
+  size_t classEnd = prefix.find('#');
+  string classPrefix = prefix.substr(0, classEnd);
+
+  unsigned int changed = 0;
+  unsigned int count = classes->getClassesCount();
+  for(unsigned int cnum=0;cnum<count;cnum++){
+    JavaClassInfo *info = classes->getClassInfo(cnum);
+    if(info==nullptr || info->getMethodCount()==0){
+      continue;
+    }
+    // a method pattern has to name the whole class
+    string name = info->getName();
+    if(classEnd==string::npos ? name.compare(0, classPrefix.length(), classPrefix)!=0 : name!=classPrefix){
+      continue;
+    }
+
+    for(unsigned int mnum=0;mnum<info->getMethodCount();mnum++){
+      JavaMethodInfo *method = info->getMethod(mnum);
+      if(classEnd!=string::npos && method->getFQN().compare(0, prefix.length(), prefix)!=0){
+        continue;
+      }
+      setEnabled(env, method, enabled);
+      changed++;
+    }
+  }
+  return changed;
+}
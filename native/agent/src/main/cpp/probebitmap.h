@@ -0,0 +1,62 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef PROBEBITMAP_H
+#define PROBEBITMAP_H
+
+#include "javaclassesinfo.h"
+#include <jni.h>
+#include <string>
+#include <mutex>
+
+using namespace std;
+
+/**
+ * Per-method switches for the injected probes, kept in Agent.probes: one
+ * long[] of bits per class, indexed by mnum. Agent.agent_entry/agent_exit
+ * test the bit before doing anything else, so a switched off method costs a
+ * load and a branch in the inlined probe and never reaches native code.
+ * Classes without a row follow probes.enabled.
+ */
+class ProbeBitmap final
+{
+public:
+  ProbeBitmap(JavaClassesInfo *classes, bool enabledByDefault);
+
+  void vmStarted(JNIEnv *env, jclass agent);
+
+  // pattern is a prefix of class#method(signature), package and class parts may use dots
+  unsigned int setEnabled(JNIEnv *env, const string &pattern, bool enabled);
+  void setEnabled(JNIEnv *env, JavaMethodInfo *method, bool enabled);
+
+private:
+  jlongArray getRow(JNIEnv *env, unsigned int cnum);
+  static string normalize(const string &pattern);
+
+  JavaClassesInfo *classes;
+  bool enabledByDefault;
+
+  jclass agentClass;
+  jfieldID probesField;
+
+  // rows are read-modify-written, one writer at a time
+  mutex lock;
+};
+
+#endif // PROBEBITMAP_H
@@ -0,0 +1,158 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "rulescontroller.h"
+#include "utils.h"
+#include <sys/stat.h>
+#include <string.h>
+#include <vector>
+#include <algorithm>
+#include <fstream>
+#include <boost/format.hpp>
+#include <boost/program_options.hpp>
+
+using boost::format;
+
+// classes passed to one RetransformClasses call
+#define RETRANSFORM_BATCH 256
+
+RulesController::RulesController(AgentRuntime *runtime, jvmtiEnv *jvmti, bool (*traceable)(const char *klass)):runtime(runtime),jvmti(jvmti),traceable(traceable),task(nullptr),controlModified(-1){
+  AgentOptions *options = runtime->getOptions();
+  controlFile = options->getControlFile();
+  if(controlFile.length()>0){
+    task = new PeriodicTask("bond-control", options->getControlPollMillis(), [this](JNIEnv *env){
+      pollControlFile(env);
+    });
+  }
+}
+
+void RulesController::start(JavaVM *vm){
+  if(task!=nullptr){
+    task->start(vm);
+    runtime->logInfo((format("Watching %s for class rules") % controlFile).str());
+  }
+}
+
+void RulesController::stop(){
+  if(task!=nullptr){
+    task->stop();
+  }
+}
+
+bool RulesController::isInstrumented(ClassFilter *filter, const char *klass){
+  return filter!=nullptr && traceable(klass) && !filter->isExcluded(klass);
+}
+
+bool RulesController::apply(JNIEnv *env, const string &include, const string &includeIgnore, const string &exclude, const string &excludeIgnore){
+  lock_guard<mutex> guard(applyLock);
+  if(runtime->isVmDead()){
+    return false;
+  }
+
+  ClassFilter *before = runtime->getOptions()->setClassRules(include, includeIgnore, exclude, excludeIgnore);
+  runtime->logInfo((format("Class rules changed: include=%s exclude=%s") % include % exclude).str());
+  retransform(env, before, runtime->getOptions()->getClassFilter());
+  return true;
+}
+
+void RulesController::instrumentLoaded(JNIEnv *env){
+  lock_guard<mutex> guard(applyLock);
+  retransform(env, nullptr, runtime->getOptions()->getClassFilter());
+}
+
+void RulesController::retransform(JNIEnv *env, ClassFilter *before, ClassFilter *after){
+  jint count = 0;
+  jclass *loaded = nullptr;
+  jvmtiError error = jvmti->GetLoadedClasses(&count, &loaded);
+  if(error!=JVMTI_ERROR_NONE){
+    runtime->logError((format("Cannot get loaded classes: %d") % error).str());
+    return;
+  }
+
+  vector<jclass> changed;
+  for(jint i=0;i<count;i++){
+    char *signature = nullptr;
+    jboolean modifiable = JNI_FALSE;
+    // only object types have class files, arrays and primitives start with something else
+    if(jvmti->GetClassSignature(loaded[i], &signature, nullptr)==JVMTI_ERROR_NONE && signature[0]=='L'
+       && jvmti->IsModifiableClass(loaded[i], &modifiable)==JVMTI_ERROR_NONE && modifiable){
+      // Lpackage/Name; to the internal name the load hook sees
+      string klass(signature+1, strlen(signature)-2);
+      if(isInstrumented(before, klass.c_str())!=isInstrumented(after, klass.c_str())){
+        changed.push_back(loaded[i]);
+      }
+    }
+    if(signature!=nullptr){
+      jvmti->Deallocate((unsigned char *)signature);
+    }
+  }
+
+  unsigned int failed = 0;
+  for(size_t first=0;first<changed.size();first+=RETRANSFORM_BATCH){
+    jint batch = (jint)min((size_t)RETRANSFORM_BATCH, changed.size()-first);
+    if(jvmti->RetransformClasses(batch, &changed[first])==JVMTI_ERROR_NONE){
+      continue;
+    }
+    // one bad class fails the whole call, the rest of the batch still deserves its probes
+    for(jint i=0;i<batch;i++){
+      if(jvmti->RetransformClasses(1, &changed[first+i])!=JVMTI_ERROR_NONE){
+        failed++;
+      }
+    }
+  }
+
+  for(jint i=0;i<count;i++){
+    env->DeleteLocalRef(loaded[i]);
+  }
+  jvmti->Deallocate((unsigned char *)loaded);
+
+  runtime->logInfo((format("Retransformed %d classes, %d failed") % (changed.size()-failed) % failed).str());
+}
+
+void RulesController::pollControlFile(JNIEnv *env){
+  struct stat info;
+  if(stat(controlFile.c_str(), &info)!=0){
+    return;
+  }
+
+  long long modified = ((long long)info.st_mtim.tv_sec)*1000000000LL + info.st_mtim.tv_nsec;
+  if(modified==controlModified){
+    return;
+  }
+  controlModified = modified;
+
+  string include, includeIgnore, exclude, excludeIgnore;
+  boost::program_options::options_description desc("Class rules");
+  desc.add_options()("agent.exclude", boost::program_options::value<std::string>(&exclude));
+  desc.add_options()("agent.exclude.ingore", boost::program_options::value<std::string>(&excludeIgnore));
+  desc.add_options()("agent.include", boost::program_options::value<std::string>(&include));
+  desc.add_options()("agent.include.ingore", boost::program_options::value<std::string>(&includeIgnore));
+
+  try{
+    boost::program_options::variables_map vm;
+    ifstream rules(controlFile, std::ifstream::in);
+    store(parse_config_file(rules, desc, true), vm);
+    notify(vm);
+  }catch(std::exception &e){
+    runtime->logWarning((format("Cannot read %s: %s") % controlFile % e.what()).str());
+    return;
+  }
+
+  apply(env, include, includeIgnore, exclude, excludeIgnore);
+}
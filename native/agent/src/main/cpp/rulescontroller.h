@@ -0,0 +1,66 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef RULESCONTROLLER_H
+#define RULESCONTROLLER_H
+
+#include "agentruntime.h"
+#include "periodictask.h"
+#include <jvmti.h>
+#include <string>
+#include <mutex>
+
+using namespace std;
+
+/**
+ * Changes agent.include/agent.exclude rules of a running VM. Loaded classes
+ * whose decision changed are retransformed: the load hook adds probes to the
+ * newly included ones and returns nothing for dropped ones, so they go back
+ * to their original bytes. Rules come from Agent.agent_rules or from
+ * control.file, which is polled every control.poll.ms and uses the keys of
+ * agent.properties.
+ */
+class RulesController final
+{
+public:
+  RulesController(AgentRuntime *runtime, jvmtiEnv *jvmti, bool (*traceable)(const char *klass));
+
+  bool apply(JNIEnv *env, const string &include, const string &includeIgnore, const string &exclude, const string &excludeIgnore);
+  // probes for classes loaded before the agent was attached
+  void instrumentLoaded(JNIEnv *env);
+
+  void start(JavaVM *vm);
+  void stop();
+
+private:
+  void retransform(JNIEnv *env, ClassFilter *before, ClassFilter *after);
+  bool isInstrumented(ClassFilter *filter, const char *klass);
+  void pollControlFile(JNIEnv *env);
+
+  AgentRuntime *runtime;
+  jvmtiEnv *jvmti;
+  bool (*traceable)(const char *klass);
+
+  mutex applyLock;
+  PeriodicTask *task;
+  string controlFile;
+  long long controlModified;
+};
+
+#endif // RULESCONTROLLER_H
@@ -0,0 +1,300 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "samplingprofiler.h"
+#include <iostream>
+#include <boost/format.hpp>
+#include <time.h>
+
+using namespace std;
+using boost::format;
+
+// how often the aggregator empties the ring
+#define SAMPLING_DRAIN_PERIOD_MS 10
+
+SampledThread::SampledThread(){
+  root.level = 0;
+}
+
+SamplingProfiler::SamplingProfiler():vm(nullptr),jvmti(nullptr),tracer(nullptr),intervalMicros(0),running(false){
+}
+
+void SamplingProfiler::setData(AgentRuntime *runtime, JavaClassesInfo *classes, JavaThreadsInfo *threads){
+  AbstractTracingProfiler::setData(runtime, classes, threads);
+  intervalMicros = getRuntime()->getOptions()->getSamplingInterval();
+}
+
+bool SamplingProfiler::isInstrumenting(){
+  return false;
+}
+
+void SamplingProfiler::methodEntry(int cnum, int mnum, unsigned long long ticks){
+}
+
+void SamplingProfiler::methodExit(int cnum, int mnum, unsigned long long ticks){
+}
+
+void SamplingProfiler::new_object(jobject obj){
+}
+
+void SamplingProfiler::new_array(jobject obj){
+}
+
+void SamplingProfiler::methodInstrumented(JavaMethodInfo *info){
+}
+
+void SamplingProfiler::threadStarted(jobject thread){
+}
+
+void SamplingProfiler::threadStopped(jobject thread){
+}
+
+void SamplingProfiler::classPrepared(jvmtiEnv *jvmti, JNIEnv *env, jclass klass){
+  // AsyncGetCallTrace can only report methods whose jmethodIDs already exist
+  jint count = 0;
+  jmethodID *methods = nullptr;
+  if(jvmti->GetClassMethods(klass, &count, &methods)==JVMTI_ERROR_NONE){
+    jvmti->Deallocate((unsigned char *)methods);
+  }
+}
+
+void SamplingProfiler::vmInitialized(jvmtiEnv *jvmti, JNIEnv *env){
+  this->jvmti = jvmti;
+  if(env->GetJavaVM(&vm)!=JNI_OK){
+    getRuntime()->logError("Sampling profiler: cannot get JavaVM");
+    return;
+  }
+
+  // classes prepared before the ClassPrepare callback was enabled
+  jint count = 0;
+  jclass *loaded = nullptr;
+  if(jvmti->GetLoadedClasses(&count, &loaded)==JVMTI_ERROR_NONE){
+    for(jint i=0;i<count;i++){
+      classPrepared(jvmti, env, loaded[i]);
+      env->DeleteLocalRef(loaded[i]);
+    }
+    jvmti->Deallocate((unsigned char *)loaded);
+  }
+
+  tracer = new StackTracer(vm);
+  if(!tracer->start(intervalMicros)){
+    getRuntime()->logError("Sampling profiler: cannot start SIGPROF timer or AsyncGetCallTrace is missing");
+    tracer->stop();
+    return;
+  }
+
+  running.store(true);
+  aggregator = thread(&SamplingProfiler::run, this);
+  // the thread lives until VM death, nobody joins it
+  aggregator.detach();
+
+  getRuntime()->logInfo((format("Sampling profiler started, interval %d us") % intervalMicros).str());
+}
+
+void SamplingProfiler::vmDead(jvmtiEnv *jvmti, JNIEnv *env){
+  if(tracer==nullptr){
+    return;
+  }
+
+  tracer->stop();
+  running.store(false);
+  // pick up what is left in the ring, the aggregator may already be asleep for good
+  drainSamples(env);
+}
+
+void SamplingProfiler::run(){
+  JNIEnv *env = nullptr;
+  JavaVMAttachArgs args;
+  args.version = JNI_VERSION_1_6;
+  args.name = (char *)"bond-sampler";
+  args.group = nullptr;
+
+  if(vm->AttachCurrentThreadAsDaemon((void **)&env, &args)!=JNI_OK){
+    getRuntime()->logError("Sampling profiler: cannot attach aggregator thread");
+    return;
+  }
+
+  struct timespec pause = {0, SAMPLING_DRAIN_PERIOD_MS*1000*1000};
+  while(running.load()){
+    drainSamples(env);
+    nanosleep(&pause, nullptr);
+  }
+}
+
+void SamplingProfiler::drainSamples(JNIEnv *env){
+  lock_guard<mutex> guard(treeLock);
+  tracer->drain([&](RawSample *sample){
+    aggregate(env, sample);
+  });
+}
+
+void SamplingProfiler::aggregate(JNIEnv *env, RawSample *sample){
+  SampledThread *owner = nullptr;
+  auto it = statByThread.find(sample->threadId);
+  if(it==statByThread.end()){
+    owner = new SampledThread();
+    statByThread.emplace(sample->threadId, owner);
+  } else {
+    owner = it->second;
+  }
+
+  unsigned long long nanos = ((unsigned long long)intervalMicros)*1000;
+  CallStatistics *parent = &owner->root;
+
+  // frames come callee first, the tree grows from the bottom of the stack
+  for(int i=sample->num_frames-1;i>=0;i--){
+    jmethodID method = sample->frames[i].method_id;
+    unsigned long long methodId = (unsigned long long)method;
+
+    CallStatistics *stat = parent->childs.find(methodId);
+    if(stat==nullptr){
+      getMethodName(env, method);
+      stat = owner->arena.create<CallStatistics>();
+      stat->methodId = methodId;
+      stat->setLevel(parent->level);
+      parent->childs.add(stat, &owner->arena);
+    }
+
+    bump(stat->callCount, 1);
+    bump(stat->ticks_spent, nanos);
+    if(i==0){
+      bump(stat->returnCount, 1);
+    }
+    parent = stat;
+  }
+}
+
+const string &SamplingProfiler::getMethodName(JNIEnv *env, jmethodID method){
+  auto it = methodNames.find(method);
+  if(it!=methodNames.end()){
+    return it->second;
+  }
+
+  string result("(unknown)");
+  jclass klass = nullptr;
+  char *classSignature = nullptr;
+  char *name = nullptr;
+  char *signature = nullptr;
+
+  if(method!=nullptr
+     && jvmti->GetMethodDeclaringClass(method, &klass)==JVMTI_ERROR_NONE
+     && jvmti->GetClassSignature(klass, &classSignature, nullptr)==JVMTI_ERROR_NONE
+     && jvmti->GetMethodName(method, &name, &signature, nullptr)==JVMTI_ERROR_NONE){
+    // Lcom/example/Foo; -> com/example/Foo, the same form the instrumenting profilers print
+    string className(classSignature);
+    if(className.length()>2 && className[0]=='L'){
+      className = className.substr(1, className.length()-2);
+    }
+    result = className + "#" + name + signature;
+  }
+
+  if(classSignature!=nullptr){
+    jvmti->Deallocate((unsigned char *)classSignature);
+  }
+  if(name!=nullptr){
+    jvmti->Deallocate((unsigned char *)name);
+  }
+  if(signature!=nullptr){
+    jvmti->Deallocate((unsigned char *)signature);
+  }
+  if(klass!=nullptr){
+    env->DeleteLocalRef(klass);
+  }
+
+  return methodNames.emplace(method, result).first->second;
+}
+
+static void printSamples(unordered_map<jmethodID, string> &names, CallChildren &stats, int level){
+  stats.forEach([&](CallStatistics *stat){
+    for(int i=0;i<level;i++){
+      cout << "\t";
+    }
+    cout << names[(jmethodID)stat->methodId] << " samples " << stat->callCount << " self "<< stat->returnCount <<endl;
+    printSamples(names, stat->childs, level+1);
+  });
+}
+
+void SamplingProfiler::printOnExit(){
+  lock_guard<mutex> guard(treeLock);
+
+  cout << "Threads " << statByThread.size() << endl;
+
+  for(auto it=statByThread.begin();it!=statByThread.end();it++){
+    cout << "Thread " << it->first << " " << endl;
+    printSamples(methodNames, it->second->root.childs, 1);
+  }
+
+  if(tracer!=nullptr){
+    cout << "Samples taken: " << tracer->getSamples() << endl;
+    cout << "Samples dropped: " << tracer->getDropped() << endl;
+    cout << "Samples outside Java threads: " << tracer->getNotJava() << endl;
+    cout << "Samples in GC: " << tracer->getErrors(kGcTraceError) << endl;
+    cout << "Samples at safepoint: " << tracer->getErrors(kSafepoint) << endl;
+    cout << "Samples not walkable: " << (tracer->getErrors(kNotWalkableFrameJava) + tracer->getErrors(kNotWalkableFrameNotJava)) << endl;
+    cout << "Samples in unknown state: " << (tracer->getErrors(kUnknownJava) + tracer->getErrors(kUnknownNotJava) + tracer->getErrors(kUnknownState)) << endl;
+  }
+}
+
+void SamplingProfiler::reset(){
+  lock_guard<mutex> guard(treeLock);
+
+  for(auto it=statByThread.begin();it!=statByThread.end();it++){
+    SampledThread *owner = it->second;
+    owner->arena.rewind();
+    new (&owner->root.childs) CallChildren();
+  }
+}
+
+static string printSampleCall(unordered_map<jmethodID, string> &names, pthread_t threadId, CallChildren &stats, unsigned long long parentId){
+  string result("");
+
+  stats.forEach([&](CallStatistics *stat){
+    format line("\"%d\";\"%d\";\"%d\";\"%d\";\"%s\";\"%d\";\"%d\";\"%d\"\r\n");
+
+    line % threadId % (unsigned int)stat->level % parentId % stat->methodId % names[(jmethodID)stat->methodId] % stat->callCount % stat->returnCount % stat->ticks_spent;
+    result.append(line.str());
+    result.append(printSampleCall(names, threadId, stat->childs, stat->methodId));
+  });
+
+  return result;
+}
+
+string SamplingProfiler::printCsv(){
+  lock_guard<mutex> guard(treeLock);
+
+  string result = "threadId;level;parentId;methodId;methodName;samples;selfSamples;ticks\r\n";
+
+  for(auto it=statByThread.begin();it!=statByThread.end();it++){
+    result += printSampleCall(methodNames, it->first, it->second->root.childs, 0);
+  }
+
+  return result;
+}
+
+void SamplingProfiler::writeSnapshot(SnapshotWriter &writer){
+  lock_guard<mutex> guard(treeLock);
+
+  writer.writeSchema({"samples", "selfSamples", "ticks"});
+
+  for(auto it=statByThread.begin();it!=statByThread.end();it++){
+    writeCallTree(writer, it->first, it->second->root, [&](unsigned long long methodId){
+      return methodNames[(jmethodID)methodId];
+    });
+  }
+}
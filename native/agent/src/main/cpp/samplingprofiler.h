@@ -0,0 +1,94 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef SAMPLINGPROFILER_H
+#define SAMPLINGPROFILER_H
+
+#include "abstracttracingprofiler.h"
+#include "stacktracer.h"
+#include <unordered_map>
+#include <atomic>
+#include <mutex>
+#include <thread>
+#include <string>
+
+using namespace std;
+
+struct SampledThread final {
+  // synthetic level 0 node, its childs are the bottom frames of the samples
+  CallStatistics root;
+  CallTreeArena arena;
+
+  SampledThread();
+};
+
+/**
+ * Statistical profiler: nothing is instrumented, StackTracer samples threads
+ * on CPU time and a background thread folds the traces into per thread call
+ * trees keyed by jmethodID. callCount is the number of samples the method was
+ * on the stack in, returnCount the number of samples it was on top of it.
+ */
+class SamplingProfiler final : public AbstractTracingProfiler
+{
+public:
+  SamplingProfiler();
+
+  virtual void setData(AgentRuntime *runtime, JavaClassesInfo *classes, JavaThreadsInfo *threads) override;
+
+  virtual void methodEntry(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void methodExit(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void printOnExit() override;
+
+  virtual void new_object(jobject obj) override;
+  virtual void new_array(jobject obj) override;
+
+  virtual void methodInstrumented(JavaMethodInfo *info) override;
+  virtual void threadStarted(jobject thread) override;
+  virtual void threadStopped(jobject thread) override;
+
+  virtual void reset() override;
+  virtual string printCsv() override;
+  virtual void writeSnapshot(SnapshotWriter &writer) override;
+
+  virtual bool isInstrumenting() override;
+  virtual void vmInitialized(jvmtiEnv *jvmti, JNIEnv *env) override;
+  virtual void vmDead(jvmtiEnv *jvmti, JNIEnv *env) override;
+  virtual void classPrepared(jvmtiEnv *jvmti, JNIEnv *env, jclass klass) override;
+
+private:
+  void run();
+  void drainSamples(JNIEnv *env);
+  void aggregate(JNIEnv *env, RawSample *sample);
+  const string &getMethodName(JNIEnv *env, jmethodID method);
+
+  JavaVM *vm;
+  jvmtiEnv *jvmti;
+  StackTracer *tracer;
+  int intervalMicros;
+
+  thread aggregator;
+  atomic<bool> running;
+
+  // the trees and the name cache are touched by the aggregator and exporters only
+  mutex treeLock;
+  unordered_map<pthread_t, SampledThread*> statByThread;
+  unordered_map<jmethodID, string> methodNames;
+};
+
+#endif // SAMPLINGPROFILER_H
@@ -0,0 +1,91 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef SEGMENTEDARRAY_H
+#define SEGMENTEDARRAY_H
+
+#include <atomic>
+
+using namespace std;
+
+/**
+ * Append-only array of pointers split into lazily allocated segments.
+ * Segments are never moved or freed, so get() is wait-free and may run
+ * concurrently with publish(). Every slot can be published only once.
+ */
+template<typename T, unsigned int SEGMENT_BITS, unsigned int MAX_SEGMENTS>
+class SegmentedArray final
+{
+public:
+  SegmentedArray(){
+    for(unsigned int i=0;i<MAX_SEGMENTS;i++){
+      segments[i].store(nullptr, memory_order_relaxed);
+    }
+  }
+
+  ~SegmentedArray(){
+    for(unsigned int i=0;i<MAX_SEGMENTS;i++){
+      delete[] segments[i].load(memory_order_relaxed);
+    }
+  }
+
+  static unsigned long long capacity(){
+    return ((unsigned long long)MAX_SEGMENTS) << SEGMENT_BITS;
+  }
+
+  T *get(unsigned long long index){
+    unsigned long long segment = index >> SEGMENT_BITS;
+    if(segment >= MAX_SEGMENTS){
+      return nullptr;
+    }
+
+    atomic<T*> *slots = segments[segment].load(memory_order_acquire);
+    if(slots==nullptr){
+      return nullptr;
+    }
+
+    return slots[index & ((1ULL << SEGMENT_BITS)-1)].load(memory_order_acquire);
+  }
+
+  bool publish(unsigned long long index, T *value){
+    unsigned long long segment = index >> SEGMENT_BITS;
+    if(segment >= MAX_SEGMENTS){
+      return false;
+    }
+
+    atomic<T*> *slots = segments[segment].load(memory_order_acquire);
+    if(slots==nullptr){
+      atomic<T*> *fresh = new atomic<T*>[1ULL << SEGMENT_BITS]();
+      if(segments[segment].compare_exchange_strong(slots, fresh, memory_order_acq_rel)){
+        slots = fresh;
+      } else {
+        // another thread installed the segment first, slots holds its pointer now
+        delete[] fresh;
+      }
+    }
+
+    T *expected = nullptr;
+    return slots[index & ((1ULL << SEGMENT_BITS)-1)].compare_exchange_strong(expected, value, memory_order_acq_rel);
+  }
+
+private:
+  atomic<atomic<T*>*> segments[MAX_SEGMENTS];
+};
+
+#endif // SEGMENTEDARRAY_H
@@ -19,6 +19,7 @@
 
 #include "simplecallcounterprofiler.h"
 #include <iostream>
+#include <map>
 #include <boost/format.hpp>
 #include "tickscounter.h"
 #include "utils.h"
@@ -26,6 +27,14 @@
 using namespace std;
 using boost::format;
 
+static pthread_key_t key;
+static pthread_once_t key_once = PTHREAD_ONCE_INIT;
+
+static void make_key()
+{
+    (void) pthread_key_create(&key, nullptr);
+}
+
 void SimpleCallCounterProfiler::new_object(jobject obj)
 {
 }
@@ -40,88 +49,104 @@ SimpleCallCounterProfiler::SimpleCallCounterProfiler(){
 void SimpleCallCounterProfiler::methodInstrumented(JavaMethodInfo *info){
 }
 
-void SimpleCallCounterProfiler::methodEntry(int cnum, int mnum, jobject thread){
-  auto methodId = Utils::getMethodId(cnum, mnum);
-  auto info = getRuntime()->getCurrentThreadInfo();
-  pthread_t threadKey = info.getProcessTid();
-  //unsigned long long threadKey = (unsigned long long)(*(long *)thread);
-  auto it = statByThread.find(threadKey);
-  unordered_map<unsigned long long, CallStatistics*> *stat = nullptr;
-
-  if(it==statByThread.end()){
-    stat = new unordered_map<unsigned long long, CallStatistics*>();
-    statByThread.emplace(threadKey, stat);
-  } else {
-    stat = (it->second);
-  }
-
-  CallStatistics *call = nullptr;
-
-  auto stat_it = stat->find(methodId);
+SimpleThreadStats *SimpleCallCounterProfiler::getCurrentThreadStats(){
+  pthread_once(&key_once, make_key);
+  SimpleThreadStats *stats = (SimpleThreadStats *)pthread_getspecific(key);
 
-  if(stat_it == stat->end()){
-    call = new CallStatistics();
-    stat->emplace(methodId, call);
-  } else {
-    call = (stat_it->second);
+  if(stats==nullptr){
+    pthread_t threadKey = getRuntime()->getCurrentThreadInfo().getProcessTid();
+    lock_guard<mutex> guard(statLock);
+    SimpleThreadStats *&registered = statByThread[threadKey];
+    if(registered==nullptr){
+      registered = new SimpleThreadStats(threadKey);
+    }
+    stats = registered;
+    pthread_setspecific(key, stats);
   }
 
-  call->ticks_last = getRuntime()->getTicks();
-  call->callCount++;
+  return stats;
 }
 
-void SimpleCallCounterProfiler::methodExit(int cnum, int mnum, jobject thread){
-  auto info = getRuntime()->getCurrentThreadInfo();
-  pthread_t threadKey = info.getProcessTid();
-  //unsigned long long threadKey = (unsigned long long)(*(long *)thread);
-  auto it = statByThread.find(threadKey);
+vector<SimpleThreadStats*> SimpleCallCounterProfiler::getThreadStats(){
+  vector<SimpleThreadStats*> result;
+  lock_guard<mutex> guard(statLock);
+  for(auto it=statByThread.begin();it!=statByThread.end();it++){
+    result.push_back(it->second);
+  }
+  return result;
+}
 
-  unordered_map<unsigned long long, CallStatistics*> *stat = nullptr;
+void SimpleCallCounterProfiler::methodEntry(int cnum, int mnum, unsigned long long ticks){
+  auto methodId = Utils::getMethodId(cnum, mnum);
+  SimpleThreadStats *stats = getCurrentThreadStats();
 
-  if(it!=statByThread.end()){
-    stat = (it->second);
+  CallStatistics *call = stats->root.childs.find(methodId);
+  if(call==nullptr){
+    call = stats->arena.create<CallStatistics>();
+    call->methodId = methodId;
+    stats->root.childs.add(call, &stats->arena);
   }
 
-  if(stat!=nullptr){
-    CallStatistics *call = nullptr;
-
-    auto methodId = Utils::getMethodId(cnum, mnum);
-    auto stat_it = stat->find(methodId);
+  call->getExtra(&stats->arena)->ticks_last = ticks;
+  bump(call->callCount, 1);
+}
 
-    if(stat_it != stat->end()){
-      call = (stat_it->second);
-    }
+void SimpleCallCounterProfiler::methodExit(int cnum, int mnum, unsigned long long ticks){
+  SimpleThreadStats *stats = getCurrentThreadStats();
+  CallStatistics *call = stats->root.childs.find(Utils::getMethodId(cnum, mnum));
 
-    if(call!=nullptr){
-	call->returnCount++;
-	call->ticks_spent += (getRuntime()->getTicks() - call->ticks_last);
-    }
+  if(call!=nullptr){
+    unsigned long long spent = ticks - call->getExtra(&stats->arena)->ticks_last;
+    bump(call->returnCount, 1);
+    bump(call->ticks_spent, spent);
+    recordLatency(call, spent, &stats->arena);
   }
 }
 
 void SimpleCallCounterProfiler::printOnExit(){
   getRuntime()->agentGlobalLock();
+  vector<SimpleThreadStats*> threadStats = getThreadStats();
 
   unsigned int calls1 = 0;
   unsigned long long total = 0;
 
-  cout << "Threads " << statByThread.size() <<endl;
+  cout << "Threads " << threadStats.size() <<endl;
 
-  for(auto it=statByThread.begin();it!=statByThread.end();it++){
-      cout << "Thread " << it->first << " " << endl;
-      unordered_map<unsigned long long, CallStatistics*> *calls = it->second;
-      cout << "\t" << "calls: " << calls->size() <<endl;
+  for(auto it=threadStats.begin();it!=threadStats.end();it++){
+      cout << "Thread " << (*it)->threadId << " " << endl;
+      cout << "\t" << "calls: " << (*it)->root.childs.size() <<endl;
 
-      for(auto call_it=calls->begin();call_it!=calls->end();call_it++){
-        CallStatistics stat = *call_it->second;
+      (*it)->root.childs.forEach([&](CallStatistics *call){
+        CallStatistics &stat = *call;
         calls1++;
         total += stat.callCount;
 
-        auto method = getClasses()->getMethodById(call_it->first);
+        auto method = getClasses()->getMethodById(stat.methodId);
         cout << "\t" << method->getClass()->getName();
 
         cout << "#" <<  method->getName()<<method->getSignature() << " calls " << stat.callCount << " returns "<<stat.returnCount << " ticks spent "<< stat.ticks_spent <<endl;
+      });
+  }
+
+  // the same method on all threads, histograms merge bucket by bucket
+  map<unsigned long long, HistogramSnapshot> latencies;
+  for(auto it=threadStats.begin();it!=threadStats.end();it++){
+    (*it)->root.childs.forEach([&](CallStatistics *stat){
+      CallStatisticsExtra *extra = stat->findExtra();
+      if(extra!=nullptr){
+        latencies[stat->methodId].add(extra->histogram.load(memory_order_acquire), extra->maxTicks.load(memory_order_relaxed));
       }
+    });
+  }
+  cout << "Latencies of all threads, ns" << endl;
+  for(auto it=latencies.begin();it!=latencies.end();it++){
+    if(it->second.getTotalCount()==0){
+      continue;
+    }
+    unsigned long long percentiles[HISTOGRAM_PERCENTILES];
+    it->second.getPercentiles(percentiles);
+    cout << "\t" << getClasses()->getMethodById(it->first)->getFQN() << " p50 " << percentiles[0] << " p90 " << percentiles[1]
+         << " p99 " << percentiles[2] << " p999 " << percentiles[3] << " max " << percentiles[4] << endl;
   }
 
   cout << "Threads runned: " << getThreads()->getThreadCount() << endl;
@@ -140,40 +165,84 @@ void SimpleCallCounterProfiler::threadStopped(jobject thread){
 }
 
 void SimpleCallCounterProfiler::reset() {
-  for(auto it=statByThread.begin();it!=statByThread.end();it++){
-    unordered_map<unsigned long long, CallStatistics*> *calls = it->second;
-
-    for(auto call_it=calls->begin();call_it!=calls->end();call_it++){
-      CallStatistics *stat = call_it->second;
-
-      stat->callCount=0;
-      stat->returnCount=0;
-      stat->prevCall=nullptr;
-      delete stat;
-    }
-    calls->clear();
-    delete calls;
+  // owners keep counting meanwhile, an increment racing with the store may survive it
+  vector<SimpleThreadStats*> threadStats = getThreadStats();
+  for(auto it=threadStats.begin();it!=threadStats.end();it++){
+    (*it)->root.childs.forEach([](CallStatistics *stat){
+      stat->callCount.store(0, memory_order_relaxed);
+      stat->returnCount.store(0, memory_order_relaxed);
+      stat->ticks_spent.store(0, memory_order_relaxed);
+      CallStatisticsExtra *extra = stat->findExtra();
+      if(extra==nullptr){
+        return;
+      }
+      extra->maxTicks.store(0, memory_order_relaxed);
+      HistogramCounter *histogram = extra->histogram.load(memory_order_acquire);
+      if(histogram!=nullptr){
+        LatencyHistogram::clear(histogram);
+      }
+    });
   }
-  statByThread.clear();
 }
 
 string SimpleCallCounterProfiler::printCsv(){
-  string result = "threadId;methodName;callCount;returnCount;ticks\r\n";
+  string result = "threadId;methodName;callCount;returnCount;ticks;p50;p90;p99;p999;max\r\n";
+  vector<SimpleThreadStats*> threadStats = getThreadStats();
 
-  for(auto it=statByThread.begin();it!=statByThread.end();it++){
-    unordered_map<unsigned long long, CallStatistics*> *calls = it->second;
-    pthread_t threadId = it->first;
+  for(auto it=threadStats.begin();it!=threadStats.end();it++){
+    pthread_t threadId = (*it)->threadId;
 
-    for(auto call_it=calls->begin();call_it!=calls->end();call_it++){
-      auto method = getClasses()->getMethodById(call_it->first);
+    (*it)->root.childs.forEach([&](CallStatistics *stat){
+      auto method = getClasses()->getMethodById(stat->methodId);
       string methodName = method->getFQN();
 
-      format line("\"%d\";\"%s\";\"%d\";\"%d\";\"%d\"\r\n");
-      CallStatistics *stat = call_it->second;
+      format line("\"%d\";\"%s\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\"\r\n");
+      unsigned long long percentiles[HISTOGRAM_PERCENTILES];
+      getPercentiles(stat, percentiles);
       line % threadId % methodName % stat->callCount % stat->returnCount % stat->ticks_spent;
+      line % percentiles[0] % percentiles[1] % percentiles[2] % percentiles[3] % percentiles[4];
       result.append(line.str());
-    }
+    });
   }
 
   return result;
 }
+
+void SimpleCallCounterProfiler::collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit){
+  vector<SimpleThreadStats*> threadStats = getThreadStats();
+  for(auto it=threadStats.begin();it!=threadStats.end();it++){
+    (*it)->root.childs.forEach([&](CallStatistics *stat){
+      JavaMethodInfo *method = getClasses()->getMethodById(stat->methodId);
+      if(method!=nullptr){
+        visit(method, stat->callCount.load(memory_order_relaxed), stat->ticks_spent.load(memory_order_relaxed));
+      }
+    });
+  }
+}
+
+void SimpleCallCounterProfiler::writeSnapshot(SnapshotWriter &writer){
+  writer.writeSchema({"callCount", "returnCount", "ticks"});
+  vector<SimpleThreadStats*> threadStats = getThreadStats();
+  lock_guard<mutex> guard(reportedLock);
+
+  for(auto it=threadStats.begin();it!=threadStats.end();it++){
+    pthread_t threadId = (*it)->threadId;
+
+    (*it)->root.childs.forEach([&](CallStatistics *stat){
+      unsigned long long fields[3];
+      ReportedCounters full;
+      ReportedCounters &reported = writer.isDelta() ? getReported(stat->nodeId) : full;
+      if(!reportCounters(writer, stat->callCount.load(memory_order_relaxed), stat->returnCount.load(memory_order_relaxed), stat->ticks_spent.load(memory_order_relaxed),
+                         reported.callCount, reported.returnCount, reported.ticks, fields)){
+        return;
+      }
+
+      unsigned long long methodId = stat->methodId;
+      writer.writeMethod(methodId, [&](){
+        return getClasses()->getMethodById(methodId)->getFQN();
+      });
+      writer.writeNode(threadId, stat->nodeId, 0, methodId, fields, 3);
+      writeHistogram(writer, threadId, stat);
+    });
+  }
+}
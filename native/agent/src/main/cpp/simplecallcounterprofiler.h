@@ -24,15 +24,29 @@
 #include <unordered_map>
 #include "javamethodinfo.h"
 #include <string>
+#include <vector>
+#include <mutex>
 
 using namespace std;
 
+/**
+ * Counters of one thread, a child of root per method. The owner adds children
+ * the way call trees do, so exporters walk them while the thread keeps counting.
+ */
+struct SimpleThreadStats final {
+  pthread_t threadId;
+  CallTreeArena arena;
+  CallStatistics root;
+
+  SimpleThreadStats(pthread_t threadId):threadId(threadId),arena(CALL_TREE_SMALL_SLAB_SIZE){}
+};
+
 class SimpleCallCounterProfiler final : public AbstractTracingProfiler
 {
 public:
   SimpleCallCounterProfiler();
-  virtual void methodEntry(int cnum, int mnum, jobject thread) override;
-  virtual void methodExit(int cnum, int mnum, jobject thread) override;
+  virtual void methodEntry(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void methodExit(int cnum, int mnum, unsigned long long ticks) override;
   virtual void printOnExit() override;
 
   virtual void new_object(jobject obj) override;
@@ -44,9 +58,17 @@ public:
 
   virtual void reset() override final;
   virtual string printCsv() override final;
+  virtual void writeSnapshot(SnapshotWriter &writer) override final;
+  virtual void collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit) override final;
 
 private:
-  unordered_map<pthread_t, unordered_map<unsigned long long, CallStatistics*>*> statByThread;
+  SimpleThreadStats *getCurrentThreadStats();
+  vector<SimpleThreadStats*> getThreadStats();
+
+  // only taken to register a thread and to copy the registry, never per call;
+  // stats are not freed, a thread reusing a pthread id continues the old ones
+  mutex statLock;
+  unordered_map<pthread_t, SimpleThreadStats*> statByThread;
 };
 
 #endif // SIMPLECALLCOUNTERPROFILER_H
@@ -0,0 +1,60 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "snapshotscheduler.h"
+#include <boost/format.hpp>
+#include <unistd.h>
+#include <stdio.h>
+
+using boost::format;
+
+SnapshotScheduler::SnapshotScheduler(AgentRuntime *runtime, AbstractTracingProfiler *profiler):runtime(runtime),profiler(profiler),sequence(0){
+  AgentOptions *options = runtime->getOptions();
+  dir = options->getSnapshotDir();
+  maxFiles = options->getSnapshotMaxFiles();
+  task = new PeriodicTask("bond-snapshots", options->getSnapshotInterval(), [this](JNIEnv *env){
+    writeNext();
+  });
+}
+
+void SnapshotScheduler::start(JavaVM *vm){
+  task->start(vm);
+  runtime->logInfo((format("Delta snapshots every %d ms into %s") % runtime->getOptions()->getSnapshotInterval() % dir).str());
+}
+
+void SnapshotScheduler::stop(){
+  task->stop();
+}
+
+string SnapshotScheduler::getFileName(unsigned long long sequence){
+  return (format("%s/bond-%d-%06d.snapshot") % dir % getpid() % sequence).str();
+}
+
+void SnapshotScheduler::writeNext(){
+  sequence++;
+
+  // instrumented threads keep running, counters are read with relaxed loads
+  if(!profiler->saveSnapshot(getFileName(sequence), true, sequence)){
+    return;
+  }
+
+  if(maxFiles>0 && sequence>maxFiles){
+    unlink(getFileName(sequence-maxFiles).c_str());
+  }
+}
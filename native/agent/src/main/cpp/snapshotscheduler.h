@@ -0,0 +1,55 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef SNAPSHOTSCHEDULER_H
+#define SNAPSHOTSCHEDULER_H
+
+#include "abstracttracingprofiler.h"
+#include "periodictask.h"
+#include <string>
+
+using namespace std;
+
+/**
+ * Writes a delta snapshot of the profiler every snapshot.interval.ms into
+ * snapshot.dir as bond-<pid>-<sequence>.snapshot and keeps only the last
+ * snapshot.max.files of them.
+ */
+class SnapshotScheduler final
+{
+public:
+  SnapshotScheduler(AgentRuntime *runtime, AbstractTracingProfiler *profiler);
+
+  void start(JavaVM *vm);
+  void stop();
+
+private:
+  void writeNext();
+  string getFileName(unsigned long long sequence);
+
+  AgentRuntime *runtime;
+  AbstractTracingProfiler *profiler;
+  PeriodicTask *task;
+
+  string dir;
+  unsigned int maxFiles;
+  unsigned long long sequence;
+};
+
+#endif // SNAPSHOTSCHEDULER_H
@@ -0,0 +1,173 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "snapshotwriter.h"
+#include <fcntl.h>
+#include <unistd.h>
+#include <string.h>
+#include <errno.h>
+#include <stdlib.h>
+#include <time.h>
+
+SnapshotWriter::SnapshotWriter():fd(-1),failed(false),delta(false),used(0){
+  buffer = (char *)malloc(SNAPSHOT_BUFFER_SIZE);
+}
+
+SnapshotWriter::~SnapshotWriter(){
+  if(fd>=0){
+    ::close(fd);
+  }
+  free(buffer);
+}
+
+bool SnapshotWriter::open(const string &path, bool delta, unsigned long long sequence){
+  if(buffer==nullptr){
+    return false;
+  }
+
+  fd = ::open(path.c_str(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+  if(fd<0){
+    return false;
+  }
+
+  this->delta = delta;
+
+  struct timespec now;
+  clock_gettime(CLOCK_REALTIME, &now);
+
+  writeBytes(SNAPSHOT_MAGIC, 4);
+  writeVarint(SNAPSHOT_VERSION);
+  writeVarint(SNAPSHOT_RECORD_INFO);
+  writeVarint(delta ? 1 : 0);
+  writeVarint(((unsigned long long)now.tv_sec)*1000 + now.tv_nsec/1000000);
+  writeVarint(sequence);
+  return !failed;
+}
+
+bool SnapshotWriter::close(){
+  if(fd<0){
+    return false;
+  }
+
+  writeVarint(SNAPSHOT_RECORD_END);
+  flush();
+
+  if(::close(fd)!=0){
+    failed = true;
+  }
+  fd = -1;
+  return !failed;
+}
+
+void SnapshotWriter::writeSchema(const vector<string> &fields){
+  writeVarint(SNAPSHOT_RECORD_SCHEMA);
+  writeVarint(fields.size());
+  for(auto it=fields.begin();it!=fields.end();it++){
+    writeString(*it);
+  }
+}
+
+void SnapshotWriter::writeNode(unsigned long long threadId, unsigned long long nodeId, unsigned long long parentId, unsigned long long methodId, const unsigned long long *fields, unsigned int count){
+  writeVarint(SNAPSHOT_RECORD_NODE);
+  writeVarint(threadId);
+  writeVarint(nodeId);
+  writeVarint(parentId);
+  writeVarint(methodId);
+  writeVarint(count);
+  for(unsigned int i=0;i<count;i++){
+    writeVarint(fields[i]);
+  }
+}
+
+void SnapshotWriter::writeHistogram(unsigned long long threadId, unsigned long long nodeId, HistogramCounter *counts, unsigned long long max){
+  // the owner thread keeps recording, take one copy so count matches the pairs
+  vector<pair<unsigned int, unsigned long long>> buckets;
+  unsigned int bucketCount = LatencyHistogram::getBucketCount();
+  for(unsigned int i=0;i<bucketCount;i++){
+    unsigned long long count = counts[i].load(memory_order_relaxed);
+    if(count!=0){
+      buckets.push_back(make_pair(i, count));
+    }
+  }
+
+  writeVarint(SNAPSHOT_RECORD_HISTOGRAM);
+  writeVarint(threadId);
+  writeVarint(nodeId);
+  writeVarint(LatencyHistogram::getPrecision());
+  writeVarint(max);
+  writeVarint(buckets.size());
+  unsigned int previous = 0;
+  for(auto it=buckets.begin();it!=buckets.end();it++){
+    writeVarint(it->first-previous);
+    writeVarint(it->second);
+    previous = it->first;
+  }
+}
+
+void SnapshotWriter::writeVarint(unsigned long long value){
+  // a 64 bit value takes 10 bytes at most
+  if(used+10>SNAPSHOT_BUFFER_SIZE){
+    flush();
+  }
+
+  while(value>=0x80){
+    buffer[used++] = (char)(value | 0x80);
+    value >>= 7;
+  }
+  buffer[used++] = (char)value;
+}
+
+void SnapshotWriter::writeString(const string &value){
+  writeVarint(value.length());
+  writeBytes(value.data(), value.length());
+}
+
+void SnapshotWriter::writeBytes(const char *data, size_t length){
+  while(length>0){
+    if(used==SNAPSHOT_BUFFER_SIZE){
+      flush();
+    }
+
+    size_t chunk = SNAPSHOT_BUFFER_SIZE-used;
+    if(chunk>length){
+      chunk = length;
+    }
+    memcpy(buffer+used, data, chunk);
+    used += chunk;
+    data += chunk;
+    length -= chunk;
+  }
+}
+
+void SnapshotWriter::flush(){
+  size_t offset = 0;
+  while(offset<used && !failed){
+    ssize_t written = ::write(fd, buffer+offset, used-offset);
+    if(written<0){
+      if(errno==EINTR){
+        continue;
+      }
+      failed = true;
+      break;
+    }
+    offset += written;
+  }
+  // a failed snapshot keeps consuming records, close() reports it
+  used = 0;
+}
@@ -0,0 +1,103 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef SNAPSHOTWRITER_H
+#define SNAPSHOTWRITER_H
+
+#include <string>
+#include <vector>
+#include <unordered_set>
+#include "latencyhistogram.h"
+
+using namespace std;
+
+#define SNAPSHOT_MAGIC "BOND"
+#define SNAPSHOT_VERSION 2
+#define SNAPSHOT_BUFFER_SIZE (64*1024)
+
+// record tags, every record starts with one
+#define SNAPSHOT_RECORD_END 0
+#define SNAPSHOT_RECORD_SCHEMA 1
+#define SNAPSHOT_RECORD_METHOD 2
+#define SNAPSHOT_RECORD_NODE 3
+#define SNAPSHOT_RECORD_INFO 4
+#define SNAPSHOT_RECORD_HISTOGRAM 5
+
+/**
+ * Writes a profiler snapshot to a file through a fixed buffer.
+ *
+ * Layout: "BOND" magic, varint version, then records until END. Numbers are
+ * unsigned LEB128 varints, strings are a varint length followed by UTF-8 bytes.
+ *   INFO    delta flag, wall clock millis, sequence - always the first record
+ *   SCHEMA  count, count names of the node fields
+ *   METHOD  methodId, name - written before the first node referring to it
+ *   NODE    threadId, nodeId, parentId, methodId, count, count fields
+ *   HISTOGRAM  threadId, nodeId, precision, max, count, count pairs of
+ *           bucket (distance from the previous pair's bucket) and its count
+ *           - latencies of the node written just before it, see latencyhistogram.h
+ * parentId 0 means a root node; flat profilers write all nodes as roots.
+ * Node ids are unique within a thread and stable for the whole run. A delta
+ * snapshot holds only what changed since the previous delta, its fields are
+ * increments; unchanged ancestors of a changed node come with zero fields.
+ * Histograms are never increments, a later one replaces the node's previous.
+ * Version 2 added HISTOGRAM.
+ */
+class SnapshotWriter final
+{
+public:
+  SnapshotWriter();
+  ~SnapshotWriter();
+
+  bool open(const string &path, bool delta=false, unsigned long long sequence=0);
+  bool isDelta(){
+    return delta;
+  }
+  // writes END and flushes, false if any write failed on the way
+  bool close();
+
+  void writeSchema(const vector<string> &fields);
+
+  template<typename Resolver> void writeMethod(unsigned long long methodId, Resolver resolve){
+    if(!methods.insert(methodId).second){
+      return;
+    }
+    writeVarint(SNAPSHOT_RECORD_METHOD);
+    writeVarint(methodId);
+    writeString(resolve());
+  }
+
+  void writeNode(unsigned long long threadId, unsigned long long nodeId, unsigned long long parentId, unsigned long long methodId, const unsigned long long *fields, unsigned int count);
+  // only non-empty buckets are written
+  void writeHistogram(unsigned long long threadId, unsigned long long nodeId, HistogramCounter *counts, unsigned long long max);
+
+private:
+  void writeVarint(unsigned long long value);
+  void writeString(const string &value);
+  void writeBytes(const char *data, size_t length);
+  void flush();
+
+  int fd;
+  bool failed;
+  bool delta;
+  size_t used;
+  char *buffer;
+  unordered_set<unsigned long long> methods;
+};
+
+#endif // SNAPSHOTWRITER_H
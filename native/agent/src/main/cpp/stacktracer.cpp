@@ -1,11 +1,146 @@
 #include "stacktracer.h"
+#include <errno.h>
 
-StackTracer::StackTracer()
+ASGCTType Asgct::asgct_ = nullptr;
+
+std::atomic<StackTracer*> StackTracer::active(nullptr);
+
+StackTracer::StackTracer(JavaVM *vm):vm(vm),head(0),timerCreated(false),samples(0),dropped(0),notJava(0)
 {
-    //ctor
+    ring = new RawSample[STACK_TRACER_RING_SIZE];
+    for (unsigned int i = 0; i < STACK_TRACER_RING_SIZE; i++) {
+        ring[i].state.store(SAMPLE_FREE, std::memory_order_relaxed);
+    }
+    for (int i = 0; i <= kNumCallTraceErrors; i++) {
+        errors[i].store(0, std::memory_order_relaxed);
+    }
 }
 
 StackTracer::~StackTracer()
 {
-    //dtor
+    stop();
+    // the handler stays installed, a late signal has to find no tracer
+    delete[] ring;
+}
+
+bool StackTracer::start(int intervalMicros)
+{
+    ASGCTType asgct = Accessors::GetJvmFunction<ASGCTType>("AsyncGetCallTrace");
+    if (asgct == NULL) {
+        return false;
+    }
+    Asgct::SetAsgct(asgct);
+
+    active.store(this, std::memory_order_release);
+
+    struct sigaction sa;
+    memset(&sa, 0, sizeof(sa));
+    sa.sa_sigaction = &StackTracer::signalHandler;
+    sa.sa_flags = SA_SIGINFO | SA_RESTART;
+    sigemptyset(&sa.sa_mask);
+    if (sigaction(SIGPROF, &sa, NULL) != 0) {
+        return false;
+    }
+
+    // CPU time of the whole process: idle threads do not take samples
+    struct sigevent sev;
+    memset(&sev, 0, sizeof(sev));
+    sev.sigev_notify = SIGEV_SIGNAL;
+    sev.sigev_signo = SIGPROF;
+    if (timer_create(CLOCK_PROCESS_CPUTIME_ID, &sev, &timer) != 0) {
+        return false;
+    }
+    timerCreated = true;
+
+    struct itimerspec its;
+    its.it_interval.tv_sec = intervalMicros / 1000000;
+    its.it_interval.tv_nsec = (intervalMicros % 1000000) * 1000;
+    its.it_value = its.it_interval;
+    return timer_settime(timer, 0, &its, NULL) == 0;
+}
+
+void StackTracer::stop()
+{
+    if (timerCreated) {
+        timer_delete(timer);
+        timerCreated = false;
+    }
+    StackTracer *self = this;
+    active.compare_exchange_strong(self, nullptr);
+}
+
+void StackTracer::signalHandler(int signo, siginfo_t *info, void *ucontext)
+{
+    StackTracer *tracer = active.load(std::memory_order_acquire);
+    if (tracer == nullptr) {
+        return;
+    }
+
+    int saved = errno;
+    tracer->record(ucontext);
+    errno = saved;
+}
+
+void StackTracer::record(void *ucontext)
+{
+    // only JVM attached threads may be walked, GetEnv is safe to call here
+    JNIEnv *env = NULL;
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK || env == NULL) {
+        notJava.fetch_add(1, std::memory_order_relaxed);
+        return;
+    }
+
+    unsigned int index = head.fetch_add(1, std::memory_order_relaxed) & (STACK_TRACER_RING_SIZE - 1);
+    RawSample *sample = &ring[index];
+
+    int expected = SAMPLE_FREE;
+    if (!sample->state.compare_exchange_strong(expected, SAMPLE_FILLING, std::memory_order_acquire)) {
+        dropped.fetch_add(1, std::memory_order_relaxed);
+        return;
+    }
+
+    JVMPI_CallTrace trace;
+    trace.env_id = env;
+    trace.num_frames = 0;
+    trace.frames = sample->frames;
+    Asgct::GetAsgct()(&trace, STACK_TRACER_MAX_FRAMES, ucontext);
+
+    if (trace.num_frames <= 0) {
+        int code = -trace.num_frames;
+        if (code > kNumCallTraceErrors) {
+            code = -kUnknownState;
+        }
+        errors[code].fetch_add(1, std::memory_order_relaxed);
+        sample->state.store(SAMPLE_FREE, std::memory_order_release);
+        return;
+    }
+
+    sample->threadId = pthread_self();
+    sample->num_frames = trace.num_frames;
+    samples.fetch_add(1, std::memory_order_relaxed);
+    sample->state.store(SAMPLE_READY, std::memory_order_release);
+}
+
+unsigned long long StackTracer::getSamples()
+{
+    return samples.load();
+}
+
+unsigned long long StackTracer::getDropped()
+{
+    return dropped.load();
+}
+
+unsigned long long StackTracer::getNotJava()
+{
+    return notJava.load();
+}
+
+unsigned long long StackTracer::getErrors(int code)
+{
+    int index = -code;
+    if (index < 0 || index > kNumCallTraceErrors) {
+        return 0;
+    }
+    return errors[index].load();
 }
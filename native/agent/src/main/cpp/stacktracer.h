@@ -3,6 +3,8 @@
 
 #include <cstdint>
 #include <cassert>
+#include <cstring>
+#include <atomic>
 
 #include <assert.h>
 #include <dlfcn.h>
@@ -10,6 +12,8 @@
 #include <jni.h>
 #include <stdint.h>
 #include <signal.h>
+#include <time.h>
+#include <pthread.h>
 
 // Short version: reinterpret_cast produces undefined behavior in many
 // cases where memcpy doesn't.
@@ -100,13 +104,75 @@ private:
     static ASGCTType asgct_;
 };
 
+// frames kept per sample, deeper stacks are truncated at the bottom
+#define STACK_TRACER_MAX_FRAMES 128
+// preallocated samples, must be a power of two
+#define STACK_TRACER_RING_SIZE 1024
+
+enum SampleState {
+    SAMPLE_FREE = 0,
+    SAMPLE_FILLING = 1,
+    SAMPLE_READY = 2
+};
+
+// One raw trace, written by the signal handler and read by the consumer.
+struct RawSample {
+    std::atomic<int> state;
+    pthread_t threadId;
+    jint num_frames;
+    JVMPI_CallFrame frames[STACK_TRACER_MAX_FRAMES];
+};
+
+// SIGPROF driven sampler. A process CPU time timer fires every interval,
+// the handler grabs the interrupted thread's trace with AsyncGetCallTrace
+// into a preallocated ring. The handler neither allocates nor locks: it
+// claims a slot with a CAS and counts a drop when the consumer lags.
 class StackTracer
 {
     public:
-        StackTracer();
+        StackTracer(JavaVM *vm);
         virtual ~StackTracer();
+
+        bool start(int intervalMicros);
+        void stop();
+
+        // Hands every ready sample to visit and gives its slot back.
+        template<typename Visitor> unsigned int drain(Visitor visit) {
+            unsigned int drained = 0;
+            for (unsigned int i = 0; i < STACK_TRACER_RING_SIZE; i++) {
+                RawSample *sample = &ring[i];
+                if (sample->state.load(std::memory_order_acquire) != SAMPLE_READY) {
+                    continue;
+                }
+                visit(sample);
+                sample->state.store(SAMPLE_FREE, std::memory_order_release);
+                drained++;
+            }
+            return drained;
+        }
+
+        unsigned long long getSamples();
+        unsigned long long getDropped();
+        unsigned long long getNotJava();
+        // code is one of CallTraceErrors
+        unsigned long long getErrors(int code);
     protected:
     private:
+        static void signalHandler(int signo, siginfo_t *info, void *ucontext);
+        void record(void *ucontext);
+
+        static std::atomic<StackTracer*> active;
+
+        JavaVM *vm;
+        RawSample *ring;
+        std::atomic<unsigned int> head;
+        timer_t timer;
+        bool timerCreated;
+
+        std::atomic<unsigned long long> samples;
+        std::atomic<unsigned long long> dropped;
+        std::atomic<unsigned long long> notJava;
+        std::atomic<unsigned long long> errors[kNumCallTraceErrors+1];
 };
 
 #endif // STACKTRACER_H
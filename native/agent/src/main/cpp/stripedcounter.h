@@ -0,0 +1,72 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#ifndef STRIPEDCOUNTER_H
+#define STRIPEDCOUNTER_H
+
+#include <atomic>
+
+using namespace std;
+
+#define STRIPED_COUNTER_STRIPES 8
+
+/**
+ * Signed counter split into cache line sized stripes, each thread adds to
+ * the stripe it was given on first use, so allocating threads and the thread
+ * posting ObjectFree do not fight over one line. sum() is not a snapshot of
+ * a single moment, it may miss adds made while it runs.
+ */
+class StripedCounter final
+{
+public:
+  void add(long long delta){
+    stripes[stripeOfThread()].value.fetch_add(delta, memory_order_relaxed);
+  }
+
+  long long sum(){
+    long long result = 0;
+    for(unsigned int i=0;i<STRIPED_COUNTER_STRIPES;i++){
+      result += stripes[i].value.load(memory_order_relaxed);
+    }
+    return result;
+  }
+
+  void clear(){
+    for(unsigned int i=0;i<STRIPED_COUNTER_STRIPES;i++){
+      stripes[i].value.store(0, memory_order_relaxed);
+    }
+  }
+
+private:
+  // padded rather than aligned, plain new does not honour alignas(64) under C++14;
+  // stripes 64 bytes apart never share a line whatever the address of the counter
+  struct Stripe final {
+    atomic<long long> value{0};
+    char padding[64-sizeof(atomic<long long>)];
+  };
+
+  static unsigned int stripeOfThread(){
+    static atomic<unsigned int> nextStripe{0};
+    static thread_local unsigned int stripe = nextStripe.fetch_add(1, memory_order_relaxed) % STRIPED_COUNTER_STRIPES;
+    return stripe;
+  }
+
+  Stripe stripes[STRIPED_COUNTER_STRIPES];
+};
+
+#endif // STRIPEDCOUNTER_H
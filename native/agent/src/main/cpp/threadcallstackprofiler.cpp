@@ -19,11 +19,17 @@
 
 #include "threadcallstackprofiler.h"
 #include <boost/format.hpp>
+#include <queue>
+#include <unordered_set>
 #include "utils.h"
 using boost::format;
 
 static pthread_key_t key;
 static pthread_once_t key_once = PTHREAD_ONCE_INIT;
+// control of the carrier thread while a virtual thread is mounted on it
+static thread_local ThreadControl *carrierControl = nullptr;
+// false for virtual threads mounted before the profiler saw them, their unmount leaves the carrier alone
+static thread_local bool carrierSaved = false;
 
 
 static void make_key()
@@ -31,71 +37,330 @@ static void make_key()
     (void) pthread_key_create(&key, nullptr);
 }
 
-ThreadCallStackProfiler::ThreadCallStackProfiler(){
+ThreadControl::ThreadControl(unsigned int initialDepth, size_t slabSize):depth(0),capacity(initialDepth),initialCapacity(initialDepth),arena(slabSize),epoch(0),compactEpoch(0),reservedSeen(0),group(nullptr){
+  root.level = 0;
+  frames = (CallFrame *)malloc(sizeof(CallFrame)*capacity);
 }
 
-ThreadControl *ThreadCallStackProfiler::getCurrentThreadControl(){
-    return (ThreadControl *)pthread_getspecific(key);
+ThreadControl::~ThreadControl(){
+  free(frames);
 }
 
-void ThreadCallStackProfiler::methodEntry(int cnum, int mnum, jobject thread) {
-  auto methodId = Utils::getMethodId(cnum, mnum);
+CallFrame *ThreadControl::push(){
+  if(depth==capacity){
+    // amortized: a thread pays for growth once per new maximum depth
+    capacity *= 2;
+    frames = (CallFrame *)realloc(frames, sizeof(CallFrame)*capacity);
+    if(frames==nullptr){
+      fatal_error("ERROR: Out of malloc memory\n");
+    }
+  }
+  return &frames[depth++];
+}
 
-  ThreadControl *ctrl = getCurrentThreadControl();
-  if(ctrl==nullptr){
+void ThreadControl::clear(){
+  CallTreeArena empty(arena.getSlabSize());
+  arena.swap(empty);
+  new (&root.childs) CallChildren();
+  root.callCount = 0;
+  root.returnCount = 0;
+  // it was in the arena just freed
+  root.extra.store(nullptr, memory_order_relaxed);
+  depth = 0;
+  group = nullptr;
+
+  if(capacity>initialCapacity){
+    capacity = initialCapacity;
+    frames = (CallFrame *)realloc(frames, sizeof(CallFrame)*capacity);
+    if(frames==nullptr){
+      fatal_error("ERROR: Out of malloc memory\n");
+    }
+  }
+}
+
+ThreadCallStackProfiler::ThreadCallStackProfiler():resetEpoch(0),maxBytes(0),treeBytes(0),compactEpoch(0),threadCount(0),endedThreads(nullptr),groupThreads(false){
+}
+
+static string getNodeName(JavaClassesInfo *classes, unsigned long long methodId){
+  if(methodId==CALL_NODE_OTHER){
+    return CALL_NODE_OTHER_NAME;
+  }
+  JavaMethodInfo *method = classes->getMethodById(methodId);
+  return method!=nullptr ? method->getFQN() : "?";
+}
+
+// what a node costs in the arena, child tables aside
+static size_t getNodeBytes(CallStatistics *node){
+  CallStatisticsExtra *extra = node->findExtra();
+  if(extra==nullptr){
+    return sizeof(CallStatistics);
+  }
+  return sizeof(CallStatistics) + sizeof(CallStatisticsExtra) + (extra->histogram.load(memory_order_relaxed)!=nullptr ? LatencyHistogram::getSize() : 0);
+}
+
+static void addHistogram(CallStatisticsExtra *to, CallStatisticsExtra *from, CallTreeArena *arena){
+  HistogramCounter *source = from->histogram.load(memory_order_relaxed);
+  if(source==nullptr){
     return;
   }
+  HistogramCounter *target = to->histogram.load(memory_order_relaxed);
+  if(target==nullptr){
+    target = LatencyHistogram::create(arena->allocate(LatencyHistogram::getSize()));
+    to->histogram.store(target, memory_order_release);
+  }
+  for(unsigned int i=0;i<LatencyHistogram::getBucketCount();i++){
+    bump(target[i], source[i].load(memory_order_relaxed));
+  }
+  if(from->maxTicks.load(memory_order_relaxed)>to->maxTicks.load(memory_order_relaxed)){
+    to->maxTicks.store(from->maxTicks.load(memory_order_relaxed), memory_order_relaxed);
+  }
+}
+
+static void addExtraCounters(CallStatisticsExtra *to, CallStatisticsExtra *from){
+  bump(to->allocCount, from->allocCount.load(memory_order_relaxed));
+  bump(to->allocBytes, from->allocBytes.load(memory_order_relaxed));
+  bump(to->blockedTicks, from->blockedTicks.load(memory_order_relaxed));
+}
+
+// counters that belong to the node alone, as opposed to inclusive ticks
+static void addSelfCounters(CallStatistics *to, CallStatistics *from, CallTreeArena *arena){
+  bump(to->callCount, from->callCount.load(memory_order_relaxed));
+  bump(to->returnCount, from->returnCount.load(memory_order_relaxed));
+  CallStatisticsExtra *source = from->findExtra();
+  if(source!=nullptr){
+    addExtraCounters(to->getExtra(arena), source);
+  }
+}
+
+static void addInclusiveCounters(CallStatistics *to, CallStatistics *from, CallTreeArena *arena){
+  bump(to->ticks_spent, from->ticks_spent.load(memory_order_relaxed));
+  CallStatisticsExtra *source = from->findExtra();
+  if(source!=nullptr){
+    addHistogram(to->getExtra(arena), source, arena);
+  }
+}
 
-  // Вход в метод
-  CallStatistics *stat = ctrl->current;
+CallStatistics *ThreadCallStackProfiler::getChild(ThreadControl *ctrl, CallStatistics *parent, unsigned long long methodId){
+  CallStatistics *stat = parent->childs.find(methodId);
 
-  // если еще не были внтури ниодного метода
+  // не найден - создаем новый
   if(stat==nullptr){
-    // ищем такой же, для статистики
-    auto root_it = ctrl->roots.find(methodId);
-
-    // если не бывали в таком методе раньше
-    if(root_it==ctrl->roots.end()){
-      stat = new CallStatistics();
-      stat->methodId = methodId;
-      stat->level=1;
-      ctrl->roots.emplace(methodId, stat);
-      ctrl->current = stat;
-    } else {
-      stat = root_it->second;
-      stat->level=1;
-      ctrl->current = stat;
+    stat = ctrl->arena.create<CallStatistics>();
+    stat->methodId = methodId;
+    stat->setLevel(parent->level);
+    parent->childs.add(stat, &ctrl->arena);
+  }
+
+  return stat;
+}
+
+void ThreadCallStackProfiler::accountArena(ThreadControl *ctrl){
+  size_t reserved = ctrl->arena.getReservedBytes();
+  if(reserved==ctrl->reservedSeen){
+    return;
+  }
+  unsigned long long total = treeBytes.fetch_add(reserved-ctrl->reservedSeen, memory_order_relaxed) + (reserved-ctrl->reservedSeen);
+  ctrl->reservedSeen = reserved;
+
+  // checked once per grown slab, every thread compacts its own tree on its next call
+  if(maxBytes>0 && total>maxBytes){
+    compactEpoch.fetch_add(1, memory_order_relaxed);
+  }
+}
+
+size_t ThreadCallStackProfiler::getThreadBudget(){
+  // half of the budget is shared by the trees, the rest is room to grow until the next compaction
+  unsigned int threads = threadCount.load(memory_order_relaxed);
+  size_t budget = maxBytes/2/(threads==0 ? 1 : threads);
+  return budget<CALL_TREE_SLAB_SIZE ? CALL_TREE_SLAB_SIZE : budget;
+}
+
+void ThreadCallStackProfiler::compactThreadControl(ThreadControl *ctrl){
+  ctrl->compactEpoch = compactEpoch.load(memory_order_relaxed);
+  size_t budget = getThreadBudget();
+  if(ctrl->arena.getUsedBytes()<=budget){
+    return;
+  }
+
+  {
+    lock_guard<mutex> guard(treeLock);
+    compactTree(ctrl, budget);
+  }
+  accountArena(ctrl);
+}
+
+void ThreadCallStackProfiler::compactTree(ThreadControl *ctrl, size_t budget){
+  unordered_set<CallStatistics*> kept;
+  size_t used = 0;
+
+  // frames point to their nodes, the path of the stack stays whatever it costs
+  for(unsigned int i=0;i<ctrl->depth && ctrl->frames[i].node!=nullptr;i++){
+    kept.insert(ctrl->frames[i].node);
+    used += getNodeBytes(ctrl->frames[i].node);
+  }
+
+  // heaviest first, a node is only considered once its parent is kept
+  typedef pair<unsigned long long, CallStatistics*> Weighted;
+  priority_queue<Weighted> candidates;
+  auto weightOf = [](CallStatistics *node){
+    return node->ticks_spent.load(memory_order_relaxed) + node->callCount.load(memory_order_relaxed);
+  };
+  ctrl->root.childs.forEach([&](CallStatistics *child){
+    candidates.push(make_pair(weightOf(child), child));
+  });
+  while(!candidates.empty()){
+    CallStatistics *node = candidates.top().second;
+    candidates.pop();
+    if(kept.find(node)==kept.end()){
+      // a quarter stays free for the (other) nodes and child tables
+      if(used+getNodeBytes(node)>budget*3/4){
+        break;
+      }
+      kept.insert(node);
+      used += getNodeBytes(node);
     }
-  } else {
+    node->childs.forEach([&](CallStatistics *child){
+      candidates.push(make_pair(weightOf(child), child));
+    });
+  }
+
+  CallTreeArena fresh(ctrl->arena.getSlabSize());
+  unordered_map<CallStatistics*, CallStatistics*> copies;
+  // old node whose children are still to be rebuilt below its copy
+  vector<pair<CallStatistics*, CallStatistics*>> pending;
+
+  vector<CallStatistics*> rootChildren;
+  ctrl->root.childs.forEach([&](CallStatistics *child){
+    rootChildren.push_back(child);
+  });
+  new (&ctrl->root.childs) CallChildren();
+  // the root's extra counters live in the arena too
+  CallStatisticsExtra *rootExtra = ctrl->root.extra.exchange(nullptr, memory_order_relaxed);
+  if(rootExtra!=nullptr){
+    addExtraCounters(ctrl->root.getExtra(&fresh), rootExtra);
+  }
 
-    if(ctrl->current->level>=maxDepth){
-        return;
+  auto rebuild = [&](const vector<CallStatistics*> &children, CallStatistics *parent){
+    // kept children go first, an (other) node kept from a previous compaction takes the folded ones
+    for(auto it=children.begin();it!=children.end();++it){
+      CallStatistics *old = *it;
+      if(kept.find(old)==kept.end()){
+        continue;
+      }
+      CallStatistics *copy = fresh.create<CallStatistics>();
+      copy->methodId = old->methodId;
+      copy->nodeId = old->nodeId;
+      copy->level = old->level;
+      addSelfCounters(copy, old, &fresh);
+      addInclusiveCounters(copy, old, &fresh);
+      parent->childs.add(copy, &fresh);
+      copies[old] = copy;
+      pending.push_back(make_pair(old, copy));
     }
 
-    // если уже внутри какого-то метода
-    // пробуем найти метод внутри текущего, в который уже погружались
-    auto child_it = ctrl->current->childs.find(methodId);
+    for(auto it=children.begin();it!=children.end();++it){
+      CallStatistics *old = *it;
+      if(kept.find(old)!=kept.end()){
+        continue;
+      }
+      CallStatistics *other = parent->childs.find(CALL_NODE_OTHER);
+      if(other==nullptr){
+        other = fresh.create<CallStatistics>();
+        other->methodId = CALL_NODE_OTHER;
+        other->setLevel(parent->level);
+        parent->childs.add(other, &fresh);
+      }
+      // ticks are inclusive, the subtree's own calls are counted node by node
+      addInclusiveCounters(other, old, &fresh);
+      addSelfCounters(other, old, &fresh);
+      addReported(other->nodeId, old->nodeId, true);
+      walkCallTree(*old, [&](CallStatistics *node, unsigned long long parentId){
+        addSelfCounters(other, node, &fresh);
+        addReported(other->nodeId, node->nodeId, false);
+        return 0ULL;
+      });
+    }
+  };
+
+  rebuild(rootChildren, &ctrl->root);
+  while(!pending.empty()){
+    CallStatistics *old = pending.back().first;
+    CallStatistics *copy = pending.back().second;
+    pending.pop_back();
+
+    vector<CallStatistics*> children;
+    old->childs.forEach([&](CallStatistics *child){
+      children.push_back(child);
+    });
+    rebuild(children, copy);
+  }
 
-    // не найден - создаем новый
-    if(child_it == ctrl->current->childs.end()){
-        stat = new CallStatistics();
-        stat->methodId = methodId;
-        stat->level = ctrl->current->level+1;
-        ctrl->current->childs.emplace(methodId, stat);
-    } else {
-      stat = child_it->second;
+  for(unsigned int i=0;i<ctrl->depth && ctrl->frames[i].node!=nullptr;i++){
+    ctrl->frames[i].node = copies[ctrl->frames[i].node];
+  }
+
+  // the old nodes go away with fresh
+  ctrl->arena.swap(fresh);
+}
+
+void ThreadCallStackProfiler::mergeTree(ThreadControl *from, ThreadControl *to){
+  addSelfCounters(&to->root, &from->root, &to->arena);
+
+  vector<pair<CallStatistics*, CallStatistics*>> pending;
+  pending.push_back(make_pair(&from->root, &to->root));
+  while(!pending.empty()){
+    CallStatistics *source = pending.back().first;
+    CallStatistics *target = pending.back().second;
+    pending.pop_back();
+
+    source->childs.forEach([&](CallStatistics *child){
+      CallStatistics *merged = getChild(to, target, child->methodId);
+      addSelfCounters(merged, child, &to->arena);
+      addInclusiveCounters(merged, child, &to->arena);
+      addReported(merged->nodeId, child->nodeId, true);
+      pending.push_back(make_pair(child, merged));
+    });
+  }
+}
+
+void ThreadCallStackProfiler::rewindThreadControl(ThreadControl *ctrl){
+  // keep exporters off the slabs being reused
+  lock_guard<mutex> guard(treeLock);
+
+  ctrl->arena.rewind();
+  new (&ctrl->root.childs) CallChildren();
+  ctrl->root.extra.store(nullptr, memory_order_relaxed);
+
+  // the thread is still inside these calls, give them nodes in the new tree
+  CallStatistics *parent = &ctrl->root;
+  for(unsigned int i=0;i<ctrl->depth;i++){
+    CallFrame *frame = &ctrl->frames[i];
+    if(frame->node==nullptr || parent==nullptr){
+      frame->node = nullptr;
+      parent = nullptr;
+      continue;
     }
-    // кладем в стек потока текущий метод
-    stat->prevCall = ctrl->current;
-    // текущим становиться stat метод
-    ctrl->current = stat;
+    frame->node = getChild(ctrl, parent, frame->methodId);
+    parent = frame->node;
   }
 
-  stat->callCount++;
-  stat->ticks_last = getRuntime()->getTicks();
+  ctrl->epoch = resetEpoch.load(memory_order_relaxed);
+}
+
+vector<pair<pthread_t, ThreadControl*>> ThreadCallStackProfiler::getThreadControls(){
+  // thread controls are never freed, the global lock only guards the map while it is copied
+  getRuntime()->agentGlobalLock();
+  vector<pair<pthread_t, ThreadControl*>> result(statByThread.begin(), statByThread.end());
+  getRuntime()->agentGlobalUnlock();
+
+  return result;
+}
+
+ThreadControl *ThreadCallStackProfiler::getCurrentThreadControl(){
+    return (ThreadControl *)pthread_getspecific(key);
 }
 
-void ThreadCallStackProfiler::methodExit(int cnum, int mnum, jobject thread){
+void ThreadCallStackProfiler::methodEntry(int cnum, int mnum, unsigned long long ticks) {
   auto methodId = Utils::getMethodId(cnum, mnum);
 
   ThreadControl *ctrl = getCurrentThreadControl();
@@ -103,23 +368,186 @@ void ThreadCallStackProfiler::methodExit(int cnum, int mnum, jobject thread){
     return;
   }
 
-  CallStatistics *stat = ctrl->current;
+  if(ctrl->epoch!=resetEpoch.load(memory_order_relaxed)){
+    rewindThreadControl(ctrl);
+  }
+  if(ctrl->compactEpoch!=compactEpoch.load(memory_order_relaxed)){
+    compactThreadControl(ctrl);
+  }
+
+  // Вход в метод: родитель - метод на вершине теневого стека
+  CallStatistics *parent = ctrl->depth==0 ? &ctrl->root : ctrl->frames[ctrl->depth-1].node;
+  CallStatistics *stat = nullptr;
 
-  if(stat==nullptr) {
+  // за пределами tracing.profiler.depth узлы не создаем, но кадр кладем всегда
+  if(parent!=nullptr && (maxDepth==0 || parent->level<(unsigned int)maxDepth)){
+    stat = getChild(ctrl, parent, methodId);
+    bump(stat->callCount, 1);
+  }
+
+  CallFrame *frame = ctrl->push();
+  frame->node = stat;
+  frame->methodId = methodId;
+  frame->ticks_enter = ticks;
+
+  if(maxBytes>0){
+    accountArena(ctrl);
+  }
+}
+
+void ThreadCallStackProfiler::methodExit(int cnum, int mnum, unsigned long long ticks){
+  auto methodId = Utils::getMethodId(cnum, mnum);
+
+  ThreadControl *ctrl = getCurrentThreadControl();
+  if(ctrl==nullptr){
     return;
   }
 
-  if(stat->methodId!=methodId){
+  // Exits are injected before return opcodes only, so frames left by an exception
+  // stay on the stack until some caller returns. Find the frame being exited.
+  unsigned int index = ctrl->depth;
+  while(index>0 && ctrl->frames[index-1].methodId!=methodId){
+    index--;
+  }
+
+  // the entry happened before the thread was traced
+  if(index==0){
     return;
   }
 
-  stat->ticks_spent += (getRuntime()->getTicks() - stat->ticks_last);
-  stat->returnCount++;
+  popFrames(ctrl, index-1, ticks, true);
+}
 
-  if(stat->prevCall!=nullptr){
-    ctrl->current = stat->prevCall;
-  } else {
-    ctrl->current = nullptr;
+void ThreadCallStackProfiler::popFrames(ThreadControl *ctrl, unsigned int depth, unsigned long long ticks, bool returned){
+  for(unsigned int i=ctrl->depth;i>depth;i--){
+    CallFrame *frame = &ctrl->frames[i-1];
+    if(frame->node==nullptr){
+      continue;
+    }
+
+    bump(frame->node->ticks_spent, ticks - frame->ticks_enter);
+    recordLatency(frame->node, ticks - frame->ticks_enter, &ctrl->arena);
+    // unwound frames get their time, but they did not return normally
+    if(returned && i==depth+1){
+      bump(frame->node->returnCount, 1);
+    }
+  }
+
+  ctrl->depth = depth;
+}
+
+bool ThreadCallStackProfiler::isTrackingExceptions(){
+  return true;
+}
+
+// com/example/Foo#name(sig) of a Java frame, the form JavaMethodInfo::getFQN gives; cached per thread
+static const string &getFrameName(jvmtiEnv *jvmti, JNIEnv *env, jmethodID method){
+  static thread_local unordered_map<jmethodID, string> frameNames;
+  auto it = frameNames.find(method);
+  if(it!=frameNames.end()){
+    return it->second;
+  }
+  // methods of unloaded classes may leave ids behind, keep the cache small
+  if(frameNames.size()>4096){
+    frameNames.clear();
+  }
+
+  string result;
+  jclass klass = nullptr;
+  char *classSignature = nullptr;
+  char *name = nullptr;
+  char *signature = nullptr;
+
+  if(jvmti->GetMethodDeclaringClass(method, &klass)==JVMTI_ERROR_NONE
+     && jvmti->GetClassSignature(klass, &classSignature, nullptr)==JVMTI_ERROR_NONE
+     && jvmti->GetMethodName(method, &name, &signature, nullptr)==JVMTI_ERROR_NONE){
+    string className(classSignature);
+    if(className.length()>2 && className[0]=='L'){
+      className = className.substr(1, className.length()-2);
+    }
+    result = className + "#" + name + signature;
+  }
+
+  if(classSignature!=nullptr){
+    jvmti->Deallocate((unsigned char *)classSignature);
+  }
+  if(name!=nullptr){
+    jvmti->Deallocate((unsigned char *)name);
+  }
+  if(signature!=nullptr){
+    jvmti->Deallocate((unsigned char *)signature);
+  }
+  if(klass!=nullptr){
+    env->DeleteLocalRef(klass);
+  }
+
+  return frameNames.emplace(method, result).first->second;
+}
+
+unsigned int ThreadCallStackProfiler::getLiveDepth(ThreadControl *ctrl, const vector<string> &names){
+  vector<string> shadow(ctrl->depth);
+  unordered_set<string> traced;
+  for(unsigned int i=0;i<ctrl->depth;i++){
+    JavaMethodInfo *info = getClasses()->getMethodById(ctrl->frames[i].methodId);
+    if(info!=nullptr){
+      shadow[i] = info->getFQN();
+      traced.insert(shadow[i]);
+    }
+  }
+
+  // the innermost Java frame that can be on the shadow stack, the top live frame is this method
+  size_t first = 0;
+  while(first<names.size() && traced.count(names[first])==0){
+    first++;
+  }
+  if(first==names.size()){
+    return 0;
+  }
+
+  // the deepest top whose frames all appear on the Java stack in order, recursion makes
+  // a stale frame look like a live one, so the match goes all the way down
+  for(unsigned int top=ctrl->depth;top>0;top--){
+    if(shadow[top-1]!=names[first]){
+      continue;
+    }
+    unsigned int frame = top;
+    for(size_t i=first;i<names.size() && frame>0;i++){
+      if(names[i]==shadow[frame-1]){
+        frame--;
+      }
+    }
+    if(frame==0){
+      return top;
+    }
+  }
+  return 0;
+}
+
+void ThreadCallStackProfiler::exceptionCaught(jvmtiEnv *jvmti, JNIEnv *env){
+  ThreadControl *ctrl = getCurrentThreadControl();
+  if(ctrl==nullptr || ctrl->depth==0){
+    return;
+  }
+
+  jint count = 0;
+  if(jvmti->GetFrameCount(nullptr, &count)!=JVMTI_ERROR_NONE || count<=0){
+    return;
+  }
+  vector<jvmtiFrameInfo> frames(count);
+  if(jvmti->GetStackTrace(nullptr, 0, count, frames.data(), &count)!=JVMTI_ERROR_NONE){
+    return;
+  }
+
+  // frames are innermost first, the first one is the method catching the exception
+  vector<string> names;
+  names.reserve(count);
+  for(jint i=0;i<count;i++){
+    names.push_back(getFrameName(jvmti, env, frames[i].method));
+  }
+
+  unsigned int depth = getLiveDepth(ctrl, names);
+  if(depth<ctrl->depth){
+    popFrames(ctrl, depth, getRuntime()->getTicks(), false);
   }
 }
 
@@ -128,29 +556,25 @@ void make_shift(int level){
     cout << "\t";
 }
 
-void printCalls(JavaClassesInfo *classes, unordered_map<unsigned long long, CallStatistics *> &stats, int level){
-  for(auto it=stats.begin();it!=stats.end();it++){
-    CallStatistics *stat = it->second;
-    auto method = classes->getMethodById(it->first);
-    make_shift(level);
-    cout << method->getClass()->getName();
-    cout << "#" <<  method->getName()<<method->getSignature() << " calls " << stat->callCount << " returns "<<stat->returnCount <<endl;
-    printCalls(classes, stat->childs, level+1);
-  }
+void printCalls(JavaClassesInfo *classes, CallStatistics &root){
+  walkCallTree(root, [&](CallStatistics *stat, unsigned long long parentId){
+    make_shift(stat->level);
+    cout << getNodeName(classes, stat->methodId) << " calls " << stat->callCount << " returns "<<stat->returnCount <<endl;
+    return 0ULL;
+  });
 }
 
 void ThreadCallStackProfiler::printOnExit(){
-  getRuntime()->agentGlobalLock();
+  auto controls = getThreadControls();
+  lock_guard<mutex> guard(treeLock);
 
-  cout << "Threads " << statByThread.size() << "Buckets " << statByThread.bucket_count() << endl;
+  cout << "Threads " << controls.size() << endl;
 
-  for(auto it=statByThread.begin();it!=statByThread.end();it++){
-    cout << "Thread " << it->first << " " << endl;
+  for(auto it=controls.begin();it!=controls.end();it++){
+    cout << "Thread " << it->first << " " << it->second->name << endl;
     ThreadControl *ctrl = it->second;
-    printCalls(getClasses(), ctrl->roots, 1);
+    printCalls(getClasses(), ctrl->root);
   }
-
-  getRuntime()->agentGlobalUnlock();
 }
 
 void ThreadCallStackProfiler::methodInstrumented(JavaMethodInfo *info){
@@ -158,67 +582,285 @@ void ThreadCallStackProfiler::methodInstrumented(JavaMethodInfo *info){
 
 void ThreadCallStackProfiler::threadStarted(jobject thread){
   pthread_once(&key_once, make_key);
-  ThreadControl *ctrl = new ThreadControl();
+  ThreadControl *ctrl = nullptr;
+  if(!unusedControls.empty()){
+    ctrl = unusedControls.back();
+    unusedControls.pop_back();
+  } else {
+    ctrl = new ThreadControl();
+  }
+  ctrl->epoch = resetEpoch.load();
+  ctrl->compactEpoch = compactEpoch.load();
+  ctrl->group = getThreadGroup(thread);
+  threadCount.fetch_add(1, memory_order_relaxed);
   statByThread.emplace(getRuntime()->getCurrentThreadInfo().getProcessTid(), ctrl);
 
   pthread_setspecific(key, ctrl);
 }
 
+bool ThreadCallStackProfiler::getThreadGroupName(jobject thread, string &name){
+  if(!groupThreads || thread==nullptr){
+    return false;
+  }
+
+  string threadName = getRuntime()->getThreadInfo((jthread)thread).getName();
+  smatch match;
+  if(!regex_match(threadName, match, groupPattern)){
+    return false;
+  }
+  name = match.size()>1 && match[1].matched ? match[1].str() : threadName;
+  return true;
+}
+
+ThreadControl *ThreadCallStackProfiler::getThreadGroup(jobject thread){
+  string name;
+  if(!getThreadGroupName(thread, name)){
+    return nullptr;
+  }
+  return getGroup(name);
+}
+
+ThreadControl *ThreadCallStackProfiler::getGroup(const string &name){
+  lock_guard<mutex> guard(groupLock);
+  auto it = groups.find(name);
+  if(it!=groups.end()){
+    return it->second;
+  }
+  ThreadControl *group = new ThreadControl();
+  group->name = name;
+  pthread_t groupId = (pthread_t)(THREAD_GROUP_FIRST_ID + groups.size());
+  groups.emplace(name, group);
+  statByThread.emplace(groupId, group);
+  getRuntime()->logInfo("Thread group " + to_string((unsigned long long)groupId) + ": " + name);
+  return group;
+}
+
+ThreadControl *ThreadCallStackProfiler::getVirtualThreadGroup(const string &name){
+  {
+    lock_guard<mutex> guard(groupLock);
+    auto it = groups.find(name);
+    if(it!=groups.end()){
+      return it->second;
+    }
+  }
+
+  // a new group goes to statByThread, which exporters copy under the global lock
+  getRuntime()->agentGlobalLock();
+  ThreadControl *group = getGroup(name);
+  getRuntime()->agentGlobalUnlock();
+  return group;
+}
+
 void ThreadCallStackProfiler::threadStopped(jobject thread){
-//    ThreadControl *ctrl = getCurrentThreadControl();
+  ThreadControl *ctrl = getCurrentThreadControl();
+  if(ctrl==nullptr){
+    return;
+  }
+  threadCount.fetch_sub(1, memory_order_relaxed);
+  // without a group or a budget the thread keeps its own tree to the end
+  if(ctrl->group==nullptr && maxBytes==0){
+    return;
+  }
+
+  // the global lock is held, statByThread may change
+  statByThread.erase(getRuntime()->getCurrentThreadInfo().getProcessTid());
+  pthread_setspecific(key, nullptr);
+  retireThreadControl(ctrl, ctrl->group);
+  unusedControls.push_back(ctrl);
+}
+
+void ThreadCallStackProfiler::retireThreadControl(ThreadControl *ctrl, ThreadControl *target){
+  {
+    lock_guard<mutex> guard(treeLock);
+    if(target==nullptr){
+      if(endedThreads==nullptr){
+        endedThreads = new ThreadControl();
+        statByThread.emplace((pthread_t)ENDED_THREADS_ID, endedThreads);
+      }
+      target = endedThreads;
+    }
+    mergeTree(ctrl, target);
+    if(maxBytes>0 && target->arena.getUsedBytes()>getThreadBudget()){
+      compactTree(target, getThreadBudget());
+    }
+    // ended threads of a group may retire at once, its arena is only counted under treeLock
+    accountArena(target);
+
+    // exporters may still hold the control, so it is emptied and reused instead of deleted
+    ctrl->clear();
+  }
+  accountArena(ctrl);
+}
+
+void *ThreadCallStackProfiler::virtualThreadStarted(jobject thread){
+  ThreadControl *ctrl = nullptr;
+  {
+    lock_guard<mutex> guard(virtualLock);
+    if(!unusedVirtualControls.empty()){
+      ctrl = unusedVirtualControls.back();
+      unusedVirtualControls.pop_back();
+    }
+  }
+  if(ctrl==nullptr){
+    ctrl = new ThreadControl(VIRTUAL_THREAD_STACK_INITIAL_DEPTH, CALL_TREE_SMALL_SLAB_SIZE);
+  }
+  ctrl->epoch = resetEpoch.load();
+  ctrl->compactEpoch = compactEpoch.load();
+  // a virtual thread's tree is only seen once it ends, so it always goes to a group
+  string name;
+  ctrl->group = getVirtualThreadGroup(getThreadGroupName(thread, name) ? name : VIRTUAL_THREADS_GROUP);
+
+  virtualThreadMounted(ctrl);
+  return ctrl;
+}
 
-//    if(ctrl!=nullptr){
-//        delete ctrl;
-//    }
+void ThreadCallStackProfiler::virtualThreadMounted(void *state){
+  pthread_once(&key_once, make_key);
+  // calls of a virtual thread the profiler has no state for are dropped rather than mixed into the carrier's stack
+  carrierControl = getCurrentThreadControl();
+  carrierSaved = true;
+  pthread_setspecific(key, state);
 }
 
-void resetCalls(unordered_map<unsigned long long, CallStatistics *> &stats){
-  for(auto it=stats.begin();it!=stats.end();it++){
-    CallStatistics *stat = it->second;
+void ThreadCallStackProfiler::virtualThreadUnmounted(){
+  if(!carrierSaved){
+    return;
+  }
+  pthread_setspecific(key, carrierControl);
+  carrierControl = nullptr;
+  carrierSaved = false;
+}
+
+void ThreadCallStackProfiler::virtualThreadEnded(void *state){
+  ThreadControl *ctrl = (ThreadControl *)state;
+  if(ctrl!=nullptr){
+    retireThreadControl(ctrl, ctrl->group);
+    bool pooled = false;
+    {
+      lock_guard<mutex> guard(virtualLock);
+      if(unusedVirtualControls.size()<VIRTUAL_THREAD_POOL_SIZE){
+        unusedVirtualControls.push_back(ctrl);
+        pooled = true;
+      }
+    }
+    if(!pooled){
+      delete ctrl;
+    }
+  }
+  virtualThreadUnmounted();
+}
+
+void resetCalls(CallStatistics &root){
+  walkCallTree(root, [](CallStatistics *stat, unsigned long long parentId){
     stat->callCount=0;
     stat->returnCount=0;
-    stat->prevCall=nullptr;
-    resetCalls(stat->childs);
-  }
+    stat->ticks_spent=0;
+    CallStatisticsExtra *extra = stat->findExtra();
+    if(extra!=nullptr){
+      extra->maxTicks=0;
+      extra->blockedTicks=0;
+      HistogramCounter *histogram = extra->histogram.load(memory_order_acquire);
+      if(histogram!=nullptr){
+        LatencyHistogram::clear(histogram);
+      }
+    }
+    return 0ULL;
+  });
 }
 
 void ThreadCallStackProfiler::setData(AgentRuntime *runtime, JavaClassesInfo *classes, JavaThreadsInfo *threads){
   AbstractTracingProfiler::setData(runtime, classes, threads);
   maxDepth = getRuntime()->getOptions()->getTracingProfilerDepth();
+  maxBytes = getRuntime()->getOptions()->getTracingProfilerMaxBytes();
+
+  string pattern = getRuntime()->getOptions()->getThreadGroupPattern();
+  if(pattern.length()>0){
+    try{
+      groupPattern.assign(pattern, regex::ECMAScript|regex::optimize);
+      groupThreads = true;
+    }catch(regex_error &e){
+      getRuntime()->logWarning("Thread groups are off, bad tracing.profiler.thread.groups " + pattern + ": " + e.what());
+    }
+  }
 }
 
 void ThreadCallStackProfiler::reset() {
-  getRuntime()->agentGlobalLock();
-
-  for(auto it=statByThread.begin();it!=statByThread.end();it++){
-    ThreadControl *ctrl = it->second;
-    ctrl->current = nullptr;
-    resetCalls(ctrl->roots);
+  auto controls = getThreadControls();
+  {
+    // owner threads rewind and compact their trees under treeLock, the same as exporters reset walks under it
+    lock_guard<mutex> guard(treeLock);
+    // counters drop to zero right away, each thread rewinds its arena on its next call
+    for(auto it=controls.begin();it!=controls.end();it++){
+      resetCalls(it->second->root);
+    }
   }
-  getRuntime()->agentGlobalUnlock();
+  resetEpoch.fetch_add(1);
 }
 
-string printCall(JavaClassesInfo *classes, pthread_t threadId, unordered_map<unsigned long long, CallStatistics *> &stats, unsigned long long parentId){
+void printCall(string &result, JavaClassesInfo *classes, pthread_t threadId, CallStatistics &root){
+  walkCallTree(root, [&](CallStatistics *stat, unsigned long long parentId){
+    string methodName = getNodeName(classes, stat->methodId);
 
-  string result("");
+    format line("\"%d\";\"%d\";\"%d\";\"%d\";\"%s\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\";\"%d\"\r\n");
 
-  for(auto it=stats.begin();it!=stats.end();it++){
-    auto method = classes->getMethodById(it->first);
-    string methodName = method->getFQN();
+    unsigned long long percentiles[HISTOGRAM_PERCENTILES];
+    AbstractTracingProfiler::getPercentiles(stat, percentiles);
+    CallStatisticsExtra *extra = stat->findExtra();
+    line % threadId % (unsigned int)stat->level % parentId % (unsigned long long)stat->methodId % methodName % stat->callCount % stat->returnCount % stat->ticks_spent;
+    line % (extra!=nullptr ? extra->allocCount.load() : 0ULL) % (extra!=nullptr ? extra->allocBytes.load() : 0ULL) % (extra!=nullptr ? extra->blockedTicks.load() : 0ULL);
+    line % percentiles[0] % percentiles[1] % percentiles[2] % percentiles[3] % percentiles[4];
+    result.append(line.str());
+    // parentId of the csv is the parent's method id
+    return (unsigned long long)stat->methodId;
+  });
+}
 
-    format line("\"%d\";\"%d\";\"%d\";\"%d\";\"%s\";\"%d\";\"%d\";\"%d\"\r\n");
-    CallStatistics *stat = it->second;
+void ThreadCallStackProfiler::new_object(jobject obj)
+{
+}
 
-    line % threadId % stat->level % parentId % (unsigned long long)stat->methodId % methodName % stat->callCount % stat->returnCount % stat->ticks_spent;
-    result.append(line.str());
-    result.append(printCall(classes, threadId, stat->childs, (unsigned long long)stat->methodId));
+void ThreadCallStackProfiler::allocationSampled(unsigned long long count, unsigned long long bytes){
+  ThreadControl *ctrl = getCurrentThreadControl();
+  if(ctrl==nullptr || ctrl->epoch!=resetEpoch.load(memory_order_relaxed)){
+    return;
   }
 
-  return result;
+  // frames past tracing.profiler.depth have no node, their deepest recorded caller gets it
+  unsigned int index = ctrl->depth;
+  while(index>0 && ctrl->frames[index-1].node==nullptr){
+    index--;
+  }
+  CallStatistics *node = index==0 ? &ctrl->root : ctrl->frames[index-1].node;
+  CallStatisticsExtra *extra = node->getExtra(&ctrl->arena);
+  bump(extra->allocCount, count);
+  bump(extra->allocBytes, bytes);
 }
 
-void ThreadCallStackProfiler::new_object(jobject obj)
-{
+void ThreadCallStackProfiler::monitorBlocked(unsigned long long ticks){
+  ThreadControl *ctrl = getCurrentThreadControl();
+  if(ctrl==nullptr || ctrl->epoch!=resetEpoch.load(memory_order_relaxed)){
+    return;
+  }
+
+  unsigned int index = ctrl->depth;
+  while(index>0 && ctrl->frames[index-1].node==nullptr){
+    index--;
+  }
+  CallStatistics *node = index==0 ? &ctrl->root : ctrl->frames[index-1].node;
+  bump(node->getExtra(&ctrl->arena)->blockedTicks, ticks);
+}
+
+void ThreadCallStackProfiler::getCallPath(vector<unsigned long long> &methodIds){
+  methodIds.clear();
+  ThreadControl *ctrl = getCurrentThreadControl();
+  if(ctrl==nullptr){
+    return;
+  }
+
+  // the same frames allocationSampled attributes to, deeper ones have no node
+  for(unsigned int i=0;i<ctrl->depth && ctrl->frames[i].node!=nullptr;i++){
+    methodIds.push_back(ctrl->frames[i].methodId);
+  }
 }
 
 void ThreadCallStackProfiler::new_array(jobject obj)
@@ -226,16 +868,50 @@ void ThreadCallStackProfiler::new_array(jobject obj)
 }
 
 string ThreadCallStackProfiler::printCsv(){
-  getRuntime()->agentGlobalLock();
+  auto controls = getThreadControls();
+  lock_guard<mutex> guard(treeLock);
 
-  string result = "threadId;level;parentId;methodId;methodName;callCount;returnCount;ticks\r\n";
+  string result = "threadId;level;parentId;methodId;methodName;callCount;returnCount;ticks;allocCount;allocBytes;blockedTicks;p50;p90;p99;p999;max\r\n";
 
-  for(auto it=statByThread.begin();it!=statByThread.end();it++){
+  for(auto it=controls.begin();it!=controls.end();it++){
     ThreadControl *ctrl = it->second;
-    result += printCall(getClasses(), it->first, ctrl->roots, 0);
+    printCall(result, getClasses(), it->first, ctrl->root);
   }
 
-  getRuntime()->agentGlobalUnlock();
-
   return result;
 }
+
+void ThreadCallStackProfiler::collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit){
+  auto controls = getThreadControls();
+  lock_guard<mutex> guard(treeLock);
+
+  for(auto it=controls.begin();it!=controls.end();it++){
+    walkCallTree(it->second->root, [&](CallStatistics *node, unsigned long long parentId){
+      unsigned long long ticks = node->ticks_spent.load(memory_order_relaxed);
+      unsigned long long children = 0;
+      node->childs.forEach([&](CallStatistics *child){
+        children += child->ticks_spent.load(memory_order_relaxed);
+      });
+
+      JavaMethodInfo *method = getClasses()->getMethodById(node->methodId);
+      if(method!=nullptr){
+        // children are read after the parent, racing calls may make them look larger
+        visit(method, node->callCount.load(memory_order_relaxed), ticks>children ? ticks-children : 0);
+      }
+      return node->nodeId;
+    });
+  }
+}
+
+void ThreadCallStackProfiler::writeSnapshot(SnapshotWriter &writer){
+  auto controls = getThreadControls();
+  lock_guard<mutex> guard(treeLock);
+
+  writer.writeSchema({"callCount", "returnCount", "ticks", "allocCount", "allocBytes"});
+
+  for(auto it=controls.begin();it!=controls.end();it++){
+    writeCallTree(writer, it->first, it->second->root, [&](unsigned long long methodId){
+      return getNodeName(getClasses(), methodId);
+    }, true);
+  }
+}
@@ -22,21 +22,77 @@
 
 #include "abstracttracingprofiler.h"
 #include <unordered_map>
+#include <atomic>
+#include <mutex>
+#include <vector>
+#include <regex>
 
 #include <string>
 
 using namespace std;
 
-struct ThreadControl final {
-  unordered_map<unsigned long long, CallStatistics *> roots;
-  CallStatistics *current;
+// thread id the merged trees of ended threads are reported under
+#define ENDED_THREADS_ID 0
+// thread groups are reported under ids from this one on, real pthread_t values are addresses
+#define THREAD_GROUP_FIRST_ID 1
+
+// initial shadow stack size, it doubles when a thread goes deeper
+#define THREAD_STACK_INITIAL_DEPTH 1024
+// virtual threads come by the million and are mostly shallow
+#define VIRTUAL_THREAD_STACK_INITIAL_DEPTH 64
+// emptied controls of ended virtual threads kept for new ones, the rest are freed
+#define VIRTUAL_THREAD_POOL_SIZE 1024
+// group the trees of ended virtual threads are merged into when tracing.profiler.thread.groups does not match them
+#define VIRTUAL_THREADS_GROUP "(virtual threads)"
+
+/**
+ * One active invocation on the thread's shadow stack.
+ * node is nullptr for frames deeper than tracing.profiler.depth, they are
+ * still pushed to keep entries and exits paired.
+ */
+struct CallFrame final {
+  CallStatistics *node;
+  unsigned long long methodId;
+  unsigned long long ticks_enter;
+};
 
-  ThreadControl():current(nullptr){};
+struct ThreadControl final {
+  // synthetic level 0 node, its childs are the thread's root calls
+  CallStatistics root;
+  CallFrame *frames;
+  unsigned int depth;
+  unsigned int capacity;
+  unsigned int initialCapacity;
+  // nodes of this thread's tree, only the owner thread allocates from it
+  CallTreeArena arena;
+  unsigned int epoch;
+  unsigned int compactEpoch;
+  // arena bytes already counted in treeBytes
+  size_t reservedSeen;
+  // tree of the thread's group, the thread's tree is merged into it when the thread ends
+  ThreadControl *group;
+  // name of a group tree, empty for threads
+  string name;
+
+  ThreadControl(unsigned int initialDepth=THREAD_STACK_INITIAL_DEPTH, size_t slabSize=CALL_TREE_SLAB_SIZE);
+  ~ThreadControl();
+
+  CallFrame *push();
+  // drops the tree and a grown stack, the control may be given to another thread
+  void clear();
 };
 
 struct Hash{
   size_t operator()(const pthread_t &x) const{
-    return x % 200;//std::hash<long>()(x);
+    // pthread_t is the address of the thread's descriptor, low bits are alike for all threads.
+    // The murmur3 finalizer spreads every bit of it over the result
+    unsigned long long h = (unsigned long long)x;
+    h ^= h >> 33;
+    h *= 0xff51afd7ed558ccdULL;
+    h ^= h >> 33;
+    h *= 0xc4ceb9fe1a85ec53ULL;
+    h ^= h >> 33;
+    return (size_t)h;
   }
 };
 
@@ -54,8 +110,8 @@ public:
 
   virtual void setData(AgentRuntime *runtime, JavaClassesInfo *classes, JavaThreadsInfo *threads) final;
 
-  virtual void methodEntry(int cnum, int mnum, jobject thread) override;
-  virtual void methodExit(int cnum, int mnum, jobject thread) override;
+  virtual void methodEntry(int cnum, int mnum, unsigned long long ticks) override;
+  virtual void methodExit(int cnum, int mnum, unsigned long long ticks) override;
   virtual void printOnExit() override;
 
   virtual void new_object(jobject obj) override;
@@ -67,10 +123,67 @@ public:
 
   virtual void reset() override final;
   virtual string printCsv() override final;
+  virtual void writeSnapshot(SnapshotWriter &writer) override final;
+  virtual void collectMethodTotals(function<void(JavaMethodInfo *method, unsigned long long calls, unsigned long long selfTicks)> visit) override final;
+  virtual void allocationSampled(unsigned long long count, unsigned long long bytes) override final;
+  virtual void getCallPath(vector<unsigned long long> &methodIds) override final;
+  virtual void monitorBlocked(unsigned long long ticks) override final;
+  virtual void *virtualThreadStarted(jobject thread) override final;
+  virtual void virtualThreadMounted(void *state) override final;
+  virtual void virtualThreadUnmounted() override final;
+  virtual void virtualThreadEnded(void *state) override final;
+  virtual bool isTrackingExceptions() override final;
+  virtual void exceptionCaught(jvmtiEnv *jvmti, JNIEnv *env) override final;
 
 private:
   ThreadControl *getCurrentThreadControl();
+  CallStatistics *getChild(ThreadControl *ctrl, CallStatistics *parent, unsigned long long methodId);
+  void rewindThreadControl(ThreadControl *ctrl);
+  // ends the frames above depth, they get their time, returned counts a return of the last one
+  void popFrames(ThreadControl *ctrl, unsigned int depth, unsigned long long ticks, bool returned);
+  // how many frames of the shadow stack are still on the Java stack, names are its frames innermost first
+  unsigned int getLiveDepth(ThreadControl *ctrl, const vector<string> &names);
+
+  // tracing.profiler.max.bytes: trees past their share are compacted by their owner threads
+  void accountArena(ThreadControl *ctrl);
+  size_t getThreadBudget();
+  void compactThreadControl(ThreadControl *ctrl);
+  // keeps the heaviest nodes and the ones on the stack within budget, the rest is folded into (other) nodes; treeLock is held
+  void compactTree(ThreadControl *ctrl, size_t budget);
+  // adds the tree of from to the tree of to; treeLock is held
+  void mergeTree(ThreadControl *from, ThreadControl *to);
+  // tracing.profiler.thread.groups: the group name for the thread's name, false when it does not match
+  bool getThreadGroupName(jobject thread, string &name);
+  // the group tree for the thread's name, nullptr when it does not match; the global lock is held
+  ThreadControl *getThreadGroup(jobject thread);
+  // the group tree named name, created on first use; the global lock is held
+  ThreadControl *getGroup(const string &name);
+  // the same for virtual threads, the global lock is only taken to create the group
+  ThreadControl *getVirtualThreadGroup(const string &name);
+  // merges the tree of an ended thread into target and empties ctrl; without a target the global lock is held
+  // and the tree goes to the ended threads tree
+  void retireThreadControl(ThreadControl *ctrl, ThreadControl *target);
+  vector<pair<pthread_t, ThreadControl*>> getThreadControls();
   int maxDepth;
+  atomic<unsigned int> resetEpoch;
+  unsigned long long maxBytes;
+  atomic<unsigned long long> treeBytes;
+  atomic<unsigned int> compactEpoch;
+  atomic<unsigned int> threadCount;
+  // with a budget, trees of ended threads are merged into this one, their controls are reused
+  ThreadControl *endedThreads;
+  vector<ThreadControl*> unusedControls;
+  // virtual thread controls are never in statByThread, exporters can not hold them
+  vector<ThreadControl*> unusedVirtualControls;
+  // virtual threads start and end without the global lock, this one only guards the pool
+  mutex virtualLock;
+  bool groupThreads;
+  regex groupPattern;
+  // written under the global lock and groupLock, virtual threads look groups up under groupLock alone
+  mutex groupLock;
+  unordered_map<string, ThreadControl*> groups;
+  // held by exporters while they walk the trees and by a thread rewinding its arena
+  mutex treeLock;
   unordered_map<pthread_t, ThreadControl*, Hash, Equal> statByThread;
 };
 
@@ -18,6 +18,11 @@ unsigned long long TicksCounter::getCounter()
     return counter;
 }
 
+bool TicksCounter::isRunning()
+{
+    return running;
+}
+
 TicksCounter::TicksCounter(AgentOptions *option)
 {
     int freq = option->getTimerFrequency();
@@ -42,23 +47,27 @@ TicksCounter::TicksCounter(AgentOptions *option)
     if (fd < 0) {
         runtime->logError("ERROR: Failed to open /dev/hpet");
         fallback();
+        return;
     }
 
     if ((fcntl(fd, F_SETOWN, getpid()) == 1) || ((value = fcntl(fd, F_GETFL)) == 1) || (fcntl(fd, F_SETFL, value | O_ASYNC) == 1))
     {
         runtime->logError("ERROR: fcntl failed");
         fallback();
+        return;
     }
     if (ioctl(fd, HPET_IRQFREQ, freq) < 0)
     {
         runtime->logError((boost::format("ERROR: Could not set /dev/hpet to have a %2dHz timer") % freq).str());
         fallback();
+        return;
     }
 
     if (ioctl(fd, HPET_INFO, &info) < 0)
     {
         runtime->logError("ERROR: failed to get info");
         fallback();
+        return;
     }
 
     runtime->logInfo((boost::format("HPET Timer on %dHz frequency") % freq).str());
@@ -69,23 +78,31 @@ TicksCounter::TicksCounter(AgentOptions *option)
     {
         runtime->logError("ERROR: HPET_EPI failed");
         fallback();
+        return;
     }
 
     if (ioctl(fd, HPET_IE_ON, 0) < 0)
     {
         runtime->logError("ERROR: HPET_IE_ON failed");
         fallback();
+        return;
     }
+
+    running = true;
 }
 
 void TicksCounter::fallback()
 {
     sigaction(SIGIO, &old_, NULL);
+    if(fd>=0){
+        close(fd);
+        fd = -1;
+    }
 }
 
 TicksCounter::~TicksCounter()
 {
-    if(fd<0){
+    if(!running){
         return;
     }
     if (ioctl(fd, HPET_IE_OFF, 0) < 0)
@@ -48,9 +48,11 @@ class TicksCounter
         virtual ~TicksCounter();
         void increaseCounter();
         unsigned long long getCounter();
+        bool isRunning();
     protected:
     private:
         int fd=-1;
+        bool running=false;
         struct sigaction old_, new_;
         atomic<unsigned long long> counter = {0};
 
@@ -0,0 +1,103 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "timesource.h"
+#include "tickscounter.h"
+
+#if defined(__x86_64__) || defined(__i386__)
+#include <x86intrin.h>
+#include <cpuid.h>
+#define HAS_TSC 1
+#endif
+
+static inline unsigned long long clockNanos(clockid_t clock){
+  struct timespec ts;
+  clock_gettime(clock, &ts);
+  return ((unsigned long long)ts.tv_sec)*1000000000ULL + ts.tv_nsec;
+}
+
+TscTimeSource::TscTimeSource():baseCycles(0),nanosPerCycle(0){
+#ifdef HAS_TSC
+  struct timespec pause = {0, 20*1000*1000};
+
+  unsigned long long startNanos = clockNanos(CLOCK_MONOTONIC_RAW);
+  unsigned long long startCycles = __rdtsc();
+  nanosleep(&pause, nullptr);
+  unsigned long long endNanos = clockNanos(CLOCK_MONOTONIC_RAW);
+  unsigned long long endCycles = __rdtsc();
+
+  baseCycles = startCycles;
+  if(endCycles>startCycles){
+    nanosPerCycle = ((endNanos-startNanos) << 32) / (endCycles-startCycles);
+  }
+#endif
+}
+
+bool TscTimeSource::isAvailable(){
+#ifdef HAS_TSC
+  unsigned int eax, ebx, ecx, edx;
+  if(!__get_cpuid(0x80000007, &eax, &ebx, &ecx, &edx)){
+    return false;
+  }
+  // CPUID.80000007H:EDX[8] - TSC runs at a constant rate in all P/C states
+  return (edx & (1 << 8)) != 0;
+#else
+  return false;
+#endif
+}
+
+unsigned long long TscTimeSource::getNanos(){
+#ifdef HAS_TSC
+  return (unsigned long long)(((unsigned __int128)(__rdtsc()-baseCycles) * nanosPerCycle) >> 32);
+#else
+  return 0;
+#endif
+}
+
+string TscTimeSource::getName(){
+  return "tsc";
+}
+
+unsigned long long MonotonicTimeSource::getNanos(){
+  return clockNanos(CLOCK_MONOTONIC_RAW);
+}
+
+string MonotonicTimeSource::getName(){
+  return "monotonic";
+}
+
+unsigned long long ThreadCpuTimeSource::getNanos(){
+  return clockNanos(CLOCK_THREAD_CPUTIME_ID);
+}
+
+string ThreadCpuTimeSource::getName(){
+  return "threadcpu";
+}
+
+HpetTimeSource::HpetTimeSource(TicksCounter *counter, int frequency):counter(counter){
+  nanosPerTick = 1000000000ULL / frequency;
+}
+
+unsigned long long HpetTimeSource::getNanos(){
+  return counter->getCounter() * nanosPerTick;
+}
+
+string HpetTimeSource::getName(){
+  return "hpet";
+}
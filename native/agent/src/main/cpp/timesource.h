@@ -0,0 +1,93 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef TIMESOURCE_H
+#define TIMESOURCE_H
+
+#include <string>
+#include <time.h>
+
+using namespace std;
+
+class TicksCounter;
+
+/**
+ * Clock behind AgentRuntime::getTicks(). Every backend reports nanoseconds,
+ * so ticks_spent means the same whatever timer.source is configured.
+ */
+class TimeSource
+{
+public:
+  virtual ~TimeSource(){};
+  virtual unsigned long long getNanos()=0;
+  virtual string getName()=0;
+};
+
+/**
+ * Invariant TSC read with rdtsc. Cycles are converted with a 32.32 fixed
+ * point factor calibrated against CLOCK_MONOTONIC_RAW on start.
+ */
+class TscTimeSource final : public TimeSource
+{
+public:
+  TscTimeSource();
+  static bool isAvailable();
+  virtual unsigned long long getNanos() override;
+  virtual string getName() override;
+private:
+  unsigned long long baseCycles;
+  unsigned long long nanosPerCycle;
+};
+
+/**
+ * clock_gettime(CLOCK_MONOTONIC_RAW), served by the vDSO without a syscall.
+ */
+class MonotonicTimeSource final : public TimeSource
+{
+public:
+  virtual unsigned long long getNanos() override;
+  virtual string getName() override;
+};
+
+/**
+ * CPU time of the calling thread. Blocked and sleeping time is not counted,
+ * the kernel answers it with a syscall, so it costs more than the others.
+ */
+class ThreadCpuTimeSource final : public TimeSource
+{
+public:
+  virtual unsigned long long getNanos() override;
+  virtual string getName() override;
+};
+
+/**
+ * Legacy /dev/hpet interrupt counter scaled to nanoseconds by timer.freq.
+ */
+class HpetTimeSource final : public TimeSource
+{
+public:
+  HpetTimeSource(TicksCounter *counter, int frequency);
+  virtual unsigned long long getNanos() override;
+  virtual string getName() override;
+private:
+  TicksCounter *counter;
+  unsigned long long nanosPerTick;
+};
+
+#endif // TIMESOURCE_H
@@ -18,6 +18,31 @@
  */
 
 #include "utils.h"
+#include <string.h>
+
+unsigned long long Utils::hash64(const void *data, size_t length, unsigned long long seed){
+  const unsigned long long multiplier = 0xff51afd7ed558ccdULL;
+  const unsigned char *bytes = (const unsigned char *)data;
+  unsigned long long result = seed ^ (length * multiplier);
+
+  size_t i = 0;
+  for(;i+8<=length;i+=8){
+    unsigned long long word;
+    memcpy(&word, bytes+i, 8);
+    result = (result ^ word) * multiplier;
+    result ^= result >> 29;
+  }
+
+  unsigned long long tail = 0;
+  memcpy(&tail, bytes+i, length-i);
+  result = (result ^ tail) * multiplier;
+
+  // murmur3 finalizer
+  result ^= result >> 33;
+  result *= 0xc4ceb9fe1a85ec53ULL;
+  result ^= result >> 33;
+  return result;
+}
 
 unsigned long long Utils::getMethodId(int cnum, int mnum){
   unsigned long long result = cnum;
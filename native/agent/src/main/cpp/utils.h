@@ -32,6 +32,8 @@ class Utils
 public:
   static vector<string> splitString(string value, const char *separator);
   static unsigned long long getMethodId(int cnum, int mnum);
+  // fast non cryptographic hash, 8 bytes per step
+  static unsigned long long hash64(const void *data, size_t length, unsigned long long seed);
 };
 
 #endif // UTILS_H
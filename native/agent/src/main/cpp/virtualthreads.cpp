@@ -0,0 +1,129 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#include "virtualthreads.h"
+#include <cstring>
+
+VirtualThreadTracker::VirtualThreadTracker(AgentRuntime *runtime, AbstractTracingProfiler *profiler, jvmtiEnv *jvmti):runtime(runtime),profiler(profiler),jvmti(jvmti){
+}
+
+bool VirtualThreadTracker::addCapability(AgentRuntime *runtime, jvmtiEnv *jvmti, jvmtiCapabilities *capabilities){
+  jvmtiCapabilities potential;
+  (void) memset(&potential, 0, sizeof(potential));
+  jvmtiError error = jvmti->GetPotentialCapabilities(&potential);
+  runtime->JVMTIExitIfError(error, "Cannot get potential JVMTI capabilities");
+
+  // capabilities are bit fields in declaration order, 32 to an unsigned int
+  unsigned int *words = reinterpret_cast<unsigned int *>(&potential);
+  unsigned int mask = 1u << (CAN_SUPPORT_VIRTUAL_THREADS_BIT % 32);
+  if((words[CAN_SUPPORT_VIRTUAL_THREADS_BIT / 32] & mask)==0){
+    runtime->logWarning("Virtual threads are not tracked, the VM has no can_support_virtual_threads");
+    return false;
+  }
+  reinterpret_cast<unsigned int *>(capabilities)[CAN_SUPPORT_VIRTUAL_THREADS_BIT / 32] |= mask;
+  return true;
+}
+
+jvmtiError VirtualThreadTracker::setEventCallbacks(jvmtiEnv *jvmti, const jvmtiEventCallbacks &callbacks, VirtualThreadEvent start, VirtualThreadEvent end){
+  // jvmtiEventCallbacks has a slot per event from JVMTI_MIN_EVENT_TYPE_VAL on
+  union {
+    jvmtiEventCallbacks callbacks;
+    void *slots[VIRTUAL_THREAD_END_EVENT - JVMTI_MIN_EVENT_TYPE_VAL + 1];
+  } extended;
+  (void) memset(&extended, 0, sizeof(extended));
+  extended.callbacks = callbacks;
+  extended.slots[VIRTUAL_THREAD_START_EVENT - JVMTI_MIN_EVENT_TYPE_VAL] = reinterpret_cast<void *>(start);
+  extended.slots[VIRTUAL_THREAD_END_EVENT - JVMTI_MIN_EVENT_TYPE_VAL] = reinterpret_cast<void *>(end);
+
+  return jvmti->SetEventCallbacks(&extended.callbacks, (jint)sizeof(extended));
+}
+
+bool VirtualThreadTracker::enableEvents(VirtualThreadEvent mount, VirtualThreadEvent unmount){
+  jint count = 0;
+  jvmtiExtensionEventInfo *events = nullptr;
+  jvmtiError error = jvmti->GetExtensionEvents(&count, &events);
+  runtime->JVMTIExitIfError(error, "Cannot get extension events");
+
+  jint mountIndex = -1;
+  jint unmountIndex = -1;
+  for(jint i=0;i<count;i++){
+    if(strcmp(events[i].id, VIRTUAL_THREAD_MOUNT_EVENT)==0){
+      mountIndex = events[i].extension_event_index;
+    } else if(strcmp(events[i].id, VIRTUAL_THREAD_UNMOUNT_EVENT)==0){
+      unmountIndex = events[i].extension_event_index;
+    }
+
+    for(jint j=0;j<events[i].param_count;j++){
+      runtime->JVMTIFree(events[i].params[j].name);
+    }
+    runtime->JVMTIFree(events[i].params);
+    runtime->JVMTIFree(events[i].id);
+    runtime->JVMTIFree(events[i].short_description);
+  }
+  runtime->JVMTIFree(events);
+
+  // without mount events a virtual thread would keep its state on the carrier it started on
+  if(mountIndex<0 || unmountIndex<0){
+    runtime->logWarning("Virtual threads are not tracked, the VM has no mount events");
+    return false;
+  }
+
+  error = jvmti->SetExtensionEventCallback(mountIndex, reinterpret_cast<jvmtiExtensionEvent>(mount));
+  runtime->JVMTIExitIfError(error, "Cannot set virtual thread mount callback");
+  error = jvmti->SetExtensionEventCallback(unmountIndex, reinterpret_cast<jvmtiExtensionEvent>(unmount));
+  runtime->JVMTIExitIfError(error, "Cannot set virtual thread unmount callback");
+  error = jvmti->SetEventNotificationMode(JVMTI_ENABLE, (jvmtiEvent)VIRTUAL_THREAD_START_EVENT, (jthread)nullptr);
+  runtime->JVMTIExitIfError(error, "Cannot set event notification");
+  error = jvmti->SetEventNotificationMode(JVMTI_ENABLE, (jvmtiEvent)VIRTUAL_THREAD_END_EVENT, (jthread)nullptr);
+  runtime->JVMTIExitIfError(error, "Cannot set event notification");
+
+  return true;
+}
+
+void *VirtualThreadTracker::getState(jthread thread){
+  void *state = nullptr;
+  if(jvmti->GetThreadLocalStorage(thread, &state)!=JVMTI_ERROR_NONE){
+    return nullptr;
+  }
+  return state;
+}
+
+void VirtualThreadTracker::started(jthread thread){
+  void *state = profiler->virtualThreadStarted(thread);
+  if(state!=nullptr){
+    jvmtiError error = jvmti->SetThreadLocalStorage(thread, state);
+    runtime->JVMTIExitIfError(error, "Cannot set thread local storage");
+  }
+}
+
+void VirtualThreadTracker::mounted(jthread thread){
+  profiler->virtualThreadMounted(getState(thread));
+}
+
+void VirtualThreadTracker::unmounted(jthread thread){
+  profiler->virtualThreadUnmounted();
+}
+
+void VirtualThreadTracker::ended(jthread thread){
+  void *state = getState(thread);
+  // the state goes back to the profiler's pool, the thread must not point to it any more
+  if(state!=nullptr){
+    jvmti->SetThreadLocalStorage(thread, nullptr);
+  }
+  profiler->virtualThreadEnded(state);
+}
@@ -0,0 +1,74 @@
+/*
+ * <one line to give the program's name and a brief idea of what it does.>
+ * Copyright (C) 2015  <copyright holder> <email>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef VIRTUALTHREADS_H
+#define VIRTUALTHREADS_H
+
+#include "abstracttracingprofiler.h"
+#include <jvmti.h>
+
+using namespace std;
+
+// can_support_virtual_threads is bit 44 of jvmtiCapabilities in JDK 21 headers, older ones do not name it
+#define CAN_SUPPORT_VIRTUAL_THREADS_BIT 44
+// JVMTI_EVENT_VIRTUAL_THREAD_START and JVMTI_EVENT_VIRTUAL_THREAD_END of JDK 21
+#define VIRTUAL_THREAD_START_EVENT 87
+#define VIRTUAL_THREAD_END_EVENT 88
+// HotSpot extension events of JDK 21, the standard ones only tell start and end
+#define VIRTUAL_THREAD_MOUNT_EVENT "com.sun.hotspot.events.VirtualThreadMount"
+#define VIRTUAL_THREAD_UNMOUNT_EVENT "com.sun.hotspot.events.VirtualThreadUnmount"
+
+typedef void (JNICALL *VirtualThreadEvent)(jvmtiEnv *jvmti, JNIEnv *env, jthread thread);
+
+/**
+ * Keeps call stacks of virtual threads apart from the ones of their carriers.
+ * Instrumented calls find the thread's state by the carrier pthread, so the
+ * profiler gets a state for each virtual thread when it starts, kept by the
+ * VM in the thread's JVMTI local storage, and swaps it in and out as the
+ * thread is mounted on and unmounted from a carrier.
+ *
+ * The agent is built against any JDK headers, so the JDK 21 capability and
+ * events are addressed by number.
+ */
+class VirtualThreadTracker final
+{
+public:
+  VirtualThreadTracker(AgentRuntime *runtime, AbstractTracingProfiler *profiler, jvmtiEnv *jvmti);
+
+  // sets can_support_virtual_threads when the VM has it, false for VMs before 21
+  static bool addCapability(AgentRuntime *runtime, jvmtiEnv *jvmti, jvmtiCapabilities *capabilities);
+  // SetEventCallbacks with start and end put past the callbacks older headers know of
+  static jvmtiError setEventCallbacks(jvmtiEnv *jvmti, const jvmtiEventCallbacks &callbacks, VirtualThreadEvent start, VirtualThreadEvent end);
+  // enables start, end, mount and unmount, false when the VM has no mount events
+  bool enableEvents(VirtualThreadEvent mount, VirtualThreadEvent unmount);
+
+  void started(jthread thread);
+  void mounted(jthread thread);
+  void unmounted(jthread thread);
+  void ended(jthread thread);
+
+private:
+  void *getState(jthread thread);
+
+  AgentRuntime *runtime;
+  AbstractTracingProfiler *profiler;
+  jvmtiEnv *jvmti;
+};
+
+#endif // VIRTUALTHREADS_H
@@ -0,0 +1,21 @@
+#!/bin/bash
+
+# runs the example twice with a class cache, the second run must reuse the images of the first
+
+CACHE=$(mktemp -d)
+CONFIG=${CACHE}/agent.properties
+cp agent.properties ${CONFIG}
+printf "\nclass.cache.dir=${CACHE}\nprint.vm.events=true\n" >> ${CONFIG}
+
+CMD="-Dagent.config=${CONFIG} -classpath ../../example/target/example-1.0-SNAPSHOT.jar:../../jassie/src/main/resources/bond.jar:../../jassie/target/jassie.jar:/usr/lib/jvm/java-8-oracle/lib/tools.jar com.focusit.agent.example.example01.JavaAppExample02"
+
+echo ${CMD}
+
+/usr/lib/jvm/java-8-oracle/bin/java -agentpath:./build/libbond.so ${CMD} | grep "Class cache hits"
+HITS=$(/usr/lib/jvm/java-8-oracle/bin/java -agentpath:./build/libbond.so ${CMD} | grep "Class cache hits" | awk '{print $4}')
+rm -r -f ${CACHE}
+
+echo "Class cache hits on the second run: ${HITS}"
+if [ -z "${HITS}" ] || [ "${HITS}" -eq 0 ]; then
+  exit 1
+fi